@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * Measures how long {@link Mailbox#mapMessageIds} takes to look up a batch of messages against a
+ * {@link FakeGmailBackend}, with each message id looked up on its own, several to a search, or in
+ * message ids preloaded from Gmail. The preload happens during setup, so it isn't measured.
+ *
+ * <p>Of the {@code batchSize} messages, {@code existingMessages} are already in Gmail, so they are
+ * found and, when searches are combined, fetched again to tell them apart.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class LookUpBenchmark {
+
+  @Param("500")
+  public int batchSize;
+
+  @Param({"0", "500"})
+  public int existingMessages;
+
+  @Param({"1", "25"})
+  public int messageIdsPerQuery;
+
+  @Param({"false", "true"})
+  public boolean preloadMessageIds;
+
+  @Param("20")
+  public int latencyMillis;
+
+  private Mailbox mailbox;
+  private List<LocalMessage> localMessages;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    FakeGmailBackend backend =
+        new FakeGmailBackend(new JacksonFactory())
+            .setLatency(Duration.ofMillis(latencyMillis))
+            .setBatchItemLatency(Duration.ofMillis(latencyMillis / 20));
+    User user = User.create("someone@example.com");
+    GmailService gmailService =
+        new GmailService(
+            user,
+            new Credential(BearerToken.authorizationHeaderAccessMethod()),
+            () -> BackOff.STOP_BACKOFF,
+            backend,
+            backend.getJsonFactory());
+    // The quota is set high enough that pacing doesn't hide the cost of the requests. Without a
+    // message index file, every lookup goes to the backend.
+    SyncOptions options =
+        SyncOptions.builder()
+            .setMessageIdsPerQuery(messageIdsPerQuery)
+            .setPreloadMessageIds(preloadMessageIds)
+            .setQuotaUnitsPerSecond(1_000_000)
+            .build();
+    mailbox =
+        new Mailbox(
+            gmailService,
+            user,
+            new MessageIndex(Logger.getLogger("benchmark"), options),
+            new QuotaLimiter(options),
+            () -> BackOff.ZERO_BACKOFF,
+            options);
+
+    localMessages = new ArrayList<>();
+    for (int i = 0; i < batchSize; i++) {
+      String messageId = "<" + i + "@synthetic.example.com>";
+      if (i < existingMessages) {
+        backend.addMessage(messageId, "INBOX");
+      }
+      localMessages.add(newMessage(messageId));
+    }
+    mailbox.connect();
+  }
+
+  @Benchmark
+  public int lookUp() {
+    return mailbox.mapMessageIds(localMessages).size();
+  }
+
+  /** Returns a message with nothing but a message id, which is all that a lookup needs. */
+  private static LocalMessage newMessage(String messageId) {
+    return new LocalMessage() {
+      @Override
+      public String getMessageId() {
+        return messageId;
+      }
+
+      @Override
+      public String getFromHeader() {
+        return "sender@example.com";
+      }
+
+      @Override
+      public List<String> getFolders() {
+        return ImmutableList.of("INBOX");
+      }
+
+      @Override
+      public byte[] getRawContent() {
+        return new byte[0];
+      }
+
+      @Override
+      public boolean isUnread() {
+        return false;
+      }
+
+      @Override
+      public boolean isStarred() {
+        return false;
+      }
+    };
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * Measures how long {@link GmailSyncer} takes to sync a batch of messages against a {@link
+ * FakeGmailBackend}, entirely offline. The latency of the backend stands in for the round trips to
+ * Gmail, which dominate a real import.
+ *
+ * <p>Each batch holds {@code batchSize} messages, of which {@code newMessages} have not been
+ * imported yet and have to be uploaded. The rest are already in Gmail, so only their labels are
+ * checked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SyncBenchmark {
+
+  @Param("100")
+  public int batchSize;
+
+  @Param({"0", "10"})
+  public int newMessages;
+
+  @Param({"0", "20"})
+  public int latencyMillis;
+
+  @Param({"1", "4"})
+  public int uploadConcurrency;
+
+  @Param("4096")
+  public int messageBytes;
+
+  private FakeGmailBackend backend;
+  private GmailSyncer gmailSyncer;
+  private List<LocalMessage> existingMessages;
+  private int nextMessageNumber;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    backend =
+        new FakeGmailBackend(new JacksonFactory())
+            .setLatency(Duration.ofMillis(latencyMillis))
+            .setBatchItemLatency(Duration.ofMillis(latencyMillis / 20));
+    User user = User.create("someone@example.com");
+    GmailService gmailService =
+        new GmailService(
+            user,
+            new Credential(BearerToken.authorizationHeaderAccessMethod()),
+            () -> BackOff.STOP_BACKOFF,
+            backend,
+            backend.getJsonFactory());
+    // The quota is set high enough that pacing doesn't hide the cost of the requests.
+    SyncOptions options =
+        SyncOptions.builder()
+            .setUploadConcurrency(uploadConcurrency)
+            .setQuotaUnitsPerSecond(1_000_000)
+            .build();
+    Mailbox mailbox =
+        new Mailbox(
+            gmailService,
+            user,
+            new MessageIndex(Logger.getLogger("benchmark"), options),
+            new QuotaLimiter(options),
+            () -> BackOff.ZERO_BACKOFF,
+            options);
+    gmailSyncer = new GmailSyncer(mailbox, options);
+    gmailSyncer.init();
+
+    existingMessages = new ArrayList<>();
+    for (int i = 0; i < batchSize - newMessages; i++) {
+      LocalMessage message = newMessage();
+      backend.addMessage(message.getMessageId(), "INBOX");
+      existingMessages.add(message);
+    }
+  }
+
+  @Benchmark
+  public void syncBatch() throws Exception {
+    List<LocalMessage> batch = new ArrayList<>(existingMessages);
+    for (int i = 0; i < newMessages; i++) {
+      batch.add(newMessage());
+    }
+    gmailSyncer.sync(batch);
+  }
+
+  private LocalMessage newMessage() {
+    String messageId = "<" + nextMessageNumber++ + "@synthetic.example.com>";
+    String headers = "Message-ID: " + messageId + "\r\nSubject: Synthetic\r\n\r\n";
+    byte[] rawContent = (headers + Strings.repeat("x", messageBytes)).getBytes(UTF_8);
+    return new LocalMessage() {
+      @Override
+      public String getMessageId() {
+        return messageId;
+      }
+
+      @Override
+      public String getFromHeader() {
+        return "sender@example.com";
+      }
+
+      @Override
+      public List<String> getFolders() {
+        return ImmutableList.of("INBOX");
+      }
+
+      @Override
+      public byte[] getRawContent() {
+        return rawContent;
+      }
+
+      @Override
+      public boolean isUnread() {
+        return false;
+      }
+
+      @Override
+      public boolean isStarred() {
+        return false;
+      }
+    };
+  }
+}
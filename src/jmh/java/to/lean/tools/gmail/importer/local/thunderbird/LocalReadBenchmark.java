@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import com.google.common.base.Verify;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.mail.Folder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import to.lean.tools.gmail.importer.CommandLineArguments;
+import to.lean.tools.gmail.importer.local.JavaxMailFolder;
+import to.lean.tools.gmail.importer.local.JavaxMailMessage;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * Measures the local side of an import: reading a Thunderbird mailbox through Mstor, {@link
+ * JavaxMailMessage} and {@link ThunderbirdLocalMessage}, or scanning it with {@link MboxScanner}.
+ *
+ * <p>{@link #iterateStorage} and {@link #scanStorage} measure whole traversals of a {@link
+ * SyntheticMailbox}, so their scores have to be multiplied by {@code folders * messagesPerFolder}
+ * to get messages per second. The other benchmarks each handle one message per operation, cycling
+ * through all of the messages in the mailbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalReadBenchmark {
+
+  @Param("10")
+  public int folders;
+
+  @Param("100")
+  public int messagesPerFolder;
+
+  @Param("4096")
+  public int bodyBytes;
+
+  private final XMozillaStatusParser statusParser = new XMozillaStatusParser();
+  private Path mailboxDirectory;
+  private ThunderbirdMailStorage storage;
+  private MboxMailStorage scannedStorage;
+  private JavaxMailMessage[] javaxMailMessages;
+  private ThunderbirdLocalMessage[] localMessages;
+  private LocalMessage[] scannedMessages;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    mailboxDirectory = Files.createTempDirectory("synthetic-mailbox");
+    SyntheticMailbox mailbox = new SyntheticMailbox(folders, messagesPerFolder, bodyBytes);
+    mailbox.writeTo(mailboxDirectory);
+
+    CommandLineArguments arguments = new CommandLineArguments();
+    arguments.mailboxFileName = mailboxDirectory.toString();
+    storage =
+        (ThunderbirdMailStorage)
+            new ThunderbirdMailbox(Logger.getLogger("benchmark"), arguments).get();
+
+    scannedStorage = new MboxMailbox(Logger.getLogger("benchmark"), arguments).get();
+    scannedMessages = Iterables.toArray(scannedStorage, LocalMessage.class);
+
+    List<JavaxMailMessage> messages = new ArrayList<>(mailbox.getMessageCount());
+    addMessages(storage.getRoot(), messages);
+    Verify.verify(
+        messages.size() == mailbox.getMessageCount(),
+        "Expected %s messages, found %s",
+        mailbox.getMessageCount(),
+        messages.size());
+    javaxMailMessages = messages.toArray(new JavaxMailMessage[0]);
+    localMessages = new ThunderbirdLocalMessage[javaxMailMessages.length];
+    for (int i = 0; i < javaxMailMessages.length; i++) {
+      localMessages[i] = storage.createLocalMessage(javaxMailMessages[i]);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    MoreFiles.deleteRecursively(mailboxDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Benchmark
+  public void iterateStorage(Blackhole blackhole) {
+    for (Iterator<LocalMessage> iterator = storage.iterator(); iterator.hasNext(); ) {
+      blackhole.consume(iterator.next());
+    }
+  }
+
+  /** Reads what the importer needs to know about each message before uploading it. */
+  @Benchmark
+  public void scanStorage(Blackhole blackhole) {
+    for (LocalMessage message : scannedStorage) {
+      blackhole.consume(message.getMessageId());
+      blackhole.consume(message.isUnread());
+    }
+  }
+
+  @Benchmark
+  public byte[] getRawContent() {
+    return localMessages[nextIndex()].getRawContent();
+  }
+
+  @Benchmark
+  public long openRawStream() throws IOException {
+    try (InputStream rawStream = localMessages[nextIndex()].openRawStream()) {
+      return ByteStreams.exhaust(rawStream);
+    }
+  }
+
+  @Benchmark
+  public long openMappedStream() throws IOException {
+    try (InputStream rawStream = scannedMessages[nextIndex()].openRawStream()) {
+      return ByteStreams.exhaust(rawStream);
+    }
+  }
+
+  @Benchmark
+  public String getMessageId() {
+    return localMessages[nextIndex()].getMessageId();
+  }
+
+  /** Reads the headers that a {@link ThunderbirdLocalMessage} needs, in one pass. */
+  @Benchmark
+  public MessageHeaders readHeaders() {
+    return MessageHeaders.read(javaxMailMessages[nextIndex()]);
+  }
+
+  @Benchmark
+  public XMozillaStatus parseStatus() {
+    return statusParser.parse(javaxMailMessages[nextIndex()]);
+  }
+
+  private int nextIndex() {
+    int index = next;
+    next = index + 1 == localMessages.length ? 0 : index + 1;
+    return index;
+  }
+
+  private static void addMessages(JavaxMailFolder folder, List<JavaxMailMessage> messages) {
+    if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+      folder.open(Folder.READ_ONLY);
+      for (JavaxMailMessage message : folder.getMessages()) {
+        messages.add(message);
+      }
+    }
+    if ((folder.getType() & Folder.HOLDS_FOLDERS) != 0) {
+      for (JavaxMailFolder subfolder : folder.list()) {
+        addMessages(subfolder, messages);
+      }
+    }
+  }
+}
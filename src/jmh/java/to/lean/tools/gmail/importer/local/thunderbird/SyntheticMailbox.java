@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes a Thunderbird mailbox full of made-up messages, laid out the way Thunderbird lays out
+ * "Local Folders": each folder is an mbox file, and the subfolders of folder {@code X} live in the
+ * directory {@code X.sbd}.
+ *
+ * <p>Every odd-numbered folder is a subfolder of the folder before it, so the traversal has to
+ * descend into subfolders as well as move between siblings. The messages are generated from a
+ * fixed seed, so the same parameters always produce the same mailbox.
+ */
+class SyntheticMailbox {
+  private static final String[] WORDS =
+      "the quick brown fox jumps over lazy dog mail importer gmail thunderbird message folder"
+          .split(" ");
+  private static final int LINE_LENGTH = 72;
+
+  private final int folders;
+  private final int messagesPerFolder;
+  private final int bodyBytes;
+
+  /**
+   * @param folders the number of folders to create
+   * @param messagesPerFolder the number of messages in each folder
+   * @param bodyBytes the approximate size of the body of each message
+   */
+  SyntheticMailbox(int folders, int messagesPerFolder, int bodyBytes) {
+    this.folders = folders;
+    this.messagesPerFolder = messagesPerFolder;
+    this.bodyBytes = bodyBytes;
+  }
+
+  /** The total number of messages in the mailbox. */
+  int getMessageCount() {
+    return folders * messagesPerFolder;
+  }
+
+  /** Writes the mailbox into {@code directory}, which must already exist. */
+  void writeTo(Path directory) throws IOException {
+    Random random = new Random(folders * 31L + messagesPerFolder);
+    for (int folder = 0; folder < folders; folder++) {
+      Path parent = directory;
+      if (folder % 2 == 1) {
+        parent = Files.createDirectories(directory.resolve(folderName(folder - 1) + ".sbd"));
+      }
+      try (Writer writer =
+          Files.newBufferedWriter(parent.resolve(folderName(folder)), StandardCharsets.US_ASCII)) {
+        for (int message = 0; message < messagesPerFolder; message++) {
+          writeMessage(writer, folder, message, random);
+        }
+      }
+    }
+  }
+
+  private void writeMessage(Writer writer, int folder, int message, Random random)
+      throws IOException {
+    int status = random.nextInt(4); // read and/or marked
+    writer
+        .append("From - Mon Jan 05 10:00:00 2015\n")
+        .append(String.format("X-Mozilla-Status: %04x\n", status))
+        .append("X-Mozilla-Status2: 00000000\n")
+        .append("X-Mozilla-Keys:                                                 \n")
+        .append(String.format("Message-ID: <%d.%d@synthetic.example.com>\n", folder, message))
+        .append("Date: Mon, 5 Jan 2015 10:00:00 +0000\n")
+        .append(String.format("From: Sender %1$d <sender%1$d@example.com>\n", message % 50))
+        .append("To: someone@example.com\n")
+        .append(String.format("Subject: Synthetic message %d in folder %d\n", message, folder))
+        .append("MIME-Version: 1.0\n")
+        .append("Content-Type: text/plain; charset=US-ASCII\n")
+        .append("\n");
+
+    StringBuilder line = new StringBuilder(LINE_LENGTH + 1);
+    for (int written = 0; written < bodyBytes; written += line.length()) {
+      line.setLength(0);
+      while (line.length() < LINE_LENGTH) {
+        line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      line.setCharAt(line.length() - 1, '\n');
+      writer.append(line);
+    }
+    writer.append("\n");
+  }
+
+  private static String folderName(int folder) {
+    return "Folder" + folder;
+  }
+}
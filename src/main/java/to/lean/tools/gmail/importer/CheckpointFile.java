@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import to.lean.tools.gmail.importer.local.Checkpoint;
+
+/**
+ * Persists the {@link Checkpoint} of the last batch that was completely sync'd, so that an
+ * interrupted import can be resumed from there. The file is replaced atomically, so it always
+ * holds either the old or the new checkpoint.
+ *
+ * <p>Different readers of the same store name its folders differently, so the file also records
+ * which reader saved it, and only that reader can resume from it.
+ */
+class CheckpointFile {
+  private static final String MESSAGE_NUMBER = "message_number";
+  private static final String FOLDER_COUNT = "folder_count";
+  private static final String FOLDER = "folder.";
+  private static final String READER = "reader";
+
+  private final Path path;
+  private final String reader;
+
+  /**
+   * @param reader the name of the reader of the local store that the checkpoints come from
+   */
+  CheckpointFile(Path path, String reader) {
+    this.path = path;
+    this.reader = reader;
+  }
+
+  /**
+   * Returns the saved checkpoint, or empty if none has been saved yet.
+   *
+   * @throws IOException if the checkpoint was saved by a different reader
+   */
+  Optional<Checkpoint> read() throws IOException {
+    if (!Files.exists(path)) {
+      return Optional.empty();
+    }
+
+    Properties properties = new Properties();
+    try (InputStream inputStream = Files.newInputStream(path)) {
+      properties.load(inputStream);
+    }
+    String savedReader = properties.getProperty(READER, reader);
+    if (!savedReader.equals(reader)) {
+      throw new IOException(
+          String.format(
+              "Checkpoint file %s was saved by the %s reader, not the %s reader",
+              path, savedReader, reader));
+    }
+    try {
+      int folderCount = Integer.parseInt(properties.getProperty(FOLDER_COUNT));
+      List<String> folderPath = new ArrayList<>(folderCount);
+      for (int i = 0; i < folderCount; i++) {
+        folderPath.add(properties.getProperty(FOLDER + i));
+      }
+      int messageNumber = Integer.parseInt(properties.getProperty(MESSAGE_NUMBER));
+      return Optional.of(Checkpoint.create(folderPath, messageNumber));
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt checkpoint file: " + path, e);
+    }
+  }
+
+  /** Replaces the saved checkpoint with {@code checkpoint}. */
+  void write(Checkpoint checkpoint) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(READER, reader);
+    properties.setProperty(MESSAGE_NUMBER, Integer.toString(checkpoint.getMessageNumber()));
+    properties.setProperty(FOLDER_COUNT, Integer.toString(checkpoint.getFolderPath().size()));
+    for (int i = 0; i < checkpoint.getFolderPath().size(); i++) {
+      properties.setProperty(FOLDER + i, checkpoint.getFolderPath().get(i));
+    }
+
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream outputStream = Files.newOutputStream(temporaryPath)) {
+      properties.store(outputStream, "Mail Importer checkpoint");
+    }
+    Files.move(
+        temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
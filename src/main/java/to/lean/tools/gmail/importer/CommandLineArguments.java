@@ -47,6 +47,141 @@ public class CommandLineArguments {
               + "run. This can be useful for testing an import.")
   public Integer maxMessages;
 
+  @Option(
+      name = "--checkpoint_file",
+      metaVar = "FILE",
+      usage =
+          "A file in which to save the position of the last batch of messages "
+              + "that was completely imported. Use it with --resume to restart an "
+              + "interrupted import from that position.")
+  public String checkpointFileName;
+
+  @Option(
+      name = "--resume",
+      depends = {"--checkpoint_file"},
+      usage =
+          "Skip the messages before the position saved in --checkpoint_file "
+              + "without reading them.")
+  public boolean resume;
+
+  @Option(
+      name = "--read_parallelism",
+      metaVar = "FOLDERS",
+      usage =
+          "The number of local folders that are read at the same time. With a "
+              + "value greater than 1, the messages of different folders are "
+              + "imported in no particular order. Checkpoints need the messages in "
+              + "order, so folders are read one at a time with --checkpoint_file.")
+  public int readParallelism = 1;
+
+  @Option(
+      name = "--max_open_folders",
+      metaVar = "FOLDERS",
+      usage =
+          "The most local folders that are kept open for messages that are "
+              + "still being sync'd. A folder is closed as soon as all of its "
+              + "messages are sync'd; past this many, the folders that were used "
+              + "least recently are closed early. Folders that are still being "
+              + "read are never closed, so at least --read_parallelism folders "
+              + "can be open.")
+  public int maxOpenFolders = 32;
+
+  @Option(
+      name = "--scan_mbox",
+      usage =
+          "Read the Thunderbird mbox files directly instead of through Mstor. "
+              + "Only the headers that the importer needs are parsed, and message "
+              + "content is read from the files mapped into memory when it is "
+              + "uploaded, exactly as it is in the file: lines that Thunderbird "
+              + "escaped as >From are not unescaped, as Mstor does. The folders "
+              + "are named differently too, so a --checkpoint_file can only be "
+              + "resumed with the --scan_mbox setting it was saved with.")
+  public boolean scanMbox;
+
+  @Option(
+      name = "--aggregate_folders",
+      usage =
+          "Before importing, make a pass over the local messages to find the "
+              + "folders that each message is in. Each message is then sync'd once "
+              + "with the labels for all of its folders, instead of once for each "
+              + "folder that has a copy of it. Thunderbird mbox files are scanned "
+              + "for their headers; other stores are read twice.")
+  public boolean aggregateFolders;
+
+  @Option(
+      name = "--upload_concurrency",
+      metaVar = "UPLOADS",
+      usage =
+          "The maximum number of messages that are uploaded to Gmail at the "
+              + "same time. The default of 1 uploads messages one after another.")
+  public int uploadConcurrency = 1;
+
+  @Option(
+      name = "--batch_concurrency",
+      metaVar = "BATCHES",
+      usage =
+          "The maximum number of batches of Gmail requests, each of up to 100 "
+              + "lookups or label changes, that are sent at the same time. The "
+              + "default of 1 sends them one after another.")
+  public int batchConcurrency = 1;
+
+  @Option(
+      name = "--message_ids_per_query",
+      metaVar = "IDS",
+      usage =
+          "The most message ids to look up in Gmail with one search, by "
+              + "joining them with OR. This takes fewer requests when most of the "
+              + "messages haven't been imported yet. The default of 1 looks up "
+              + "each message on its own.")
+  public int messageIdsPerQuery = 1;
+
+  @Option(
+      name = "--preload_message_ids",
+      usage =
+          "Before importing, fetch the message id of every message already in "
+              + "Gmail, so that messages don't have to be looked up one by one. "
+              + "This pays off when the account already holds most of the mail "
+              + "being imported.")
+  public boolean preloadMessageIds;
+
+  @Option(
+      name = "--quota_units_per_second",
+      metaVar = "UNITS",
+      usage =
+          "The most Gmail API quota units to spend per second. Requests are "
+              + "paced to stay under this, and slowed down further if Gmail still "
+              + "says that they are being sent too fast. Defaults to Gmail's limit "
+              + "of 250 for each user.")
+  public int quotaUnitsPerSecond = 250;
+
+  @Option(
+      name = "--message_index",
+      metaVar = "FILE",
+      usage =
+          "A file in which to remember which messages have already been "
+              + "imported and labelled. When an import is restarted with the same "
+              + "file, those messages are not looked up in Gmail again. Only use "
+              + "this if nothing else modifies the imported messages in Gmail.")
+  public String messageIndexFileName;
+
+  @Option(
+      name = "--pipeline_depth",
+      metaVar = "BATCHES",
+      usage =
+          "The maximum number of batches of messages that can be in flight at "
+              + "once. With a value greater than 1, reading the local store, "
+              + "looking up messages, uploading and labelling run at the same time "
+              + "for different batches. The default of 1 syncs one batch at a time.")
+  public int pipelineDepth = 1;
+
+  @Option(
+      name = "--pipeline_threads",
+      metaVar = "THREADS",
+      usage =
+          "The number of worker threads for each stage of the pipeline. Only "
+              + "used when --pipeline_depth is greater than 1.")
+  public int pipelineThreads = 1;
+
   @Option(
       name = "--client_secret_resource_path",
       metaVar = "SECRET_RESOURCE_PATH",
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import to.lean.tools.gmail.importer.gmail.GmailSyncer;
+import to.lean.tools.gmail.importer.gmail.SyncBatch;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * Runs the stages of {@link GmailSyncer} on separate thread pools so that reading the local store,
+ * looking up message ids, uploading and labelling can all happen at the same time for different
+ * batches.
+ *
+ * <p>At most {@code depth} batches are in the pipeline at once. When the pipeline is full, {@link
+ * #submit(List, Runnable)} blocks, which keeps the reader from getting too far ahead of Gmail and
+ * bounds the memory used by batches waiting to be processed.
+ *
+ * <p>Batches may complete out of order, but the callbacks passed to {@link #submit(List,
+ * Runnable)} are run in the order the batches were submitted, and only once every earlier batch
+ * has completed too.
+ *
+ * <p>If any stage fails, no more batches are accepted and the failure is rethrown from {@link
+ * #submit(List, Runnable)} or {@link #awaitCompletion()}.
+ */
+class ImportPipeline implements AutoCloseable {
+  /** A stage of the pipeline. */
+  private interface Stage<I, O> {
+    O run(I input) throws IOException;
+  }
+
+  private final Logger logger;
+  private final GmailSyncer gmailSyncer;
+  private final int depth;
+  private final Semaphore batchesInFlight;
+  private final ExecutorService lookUpExecutor;
+  private final ExecutorService uploadExecutor;
+  private final ExecutorService fetchLabelsExecutor;
+  private final ExecutorService applyLabelsExecutor;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  /** Completes when every batch submitted so far, and its callback, has completed. */
+  private CompletableFuture<Void> previousBatches = CompletableFuture.completedFuture(null);
+
+  /**
+   * @param depth the maximum number of batches that can be in the pipeline at once
+   * @param threadsPerStage the number of worker threads for each stage
+   */
+  ImportPipeline(Logger logger, GmailSyncer gmailSyncer, int depth, int threadsPerStage) {
+    Preconditions.checkArgument(depth > 0, "depth must be positive: %s", depth);
+    Preconditions.checkArgument(
+        threadsPerStage > 0, "threadsPerStage must be positive: %s", threadsPerStage);
+    this.logger = logger;
+    this.gmailSyncer = gmailSyncer;
+    this.depth = depth;
+    this.batchesInFlight = new Semaphore(depth);
+    this.lookUpExecutor = newStageExecutor("look-up", threadsPerStage);
+    this.uploadExecutor = newStageExecutor("upload", threadsPerStage);
+    this.fetchLabelsExecutor = newStageExecutor("fetch-labels", threadsPerStage);
+    this.applyLabelsExecutor = newStageExecutor("apply-labels", threadsPerStage);
+  }
+
+  /**
+   * Adds a batch to the pipeline, blocking while the pipeline is full.
+   *
+   * @param onSynced run once the batch and all of the batches submitted before it are sync'd
+   * @throws IOException if an earlier batch failed or the thread is interrupted while waiting
+   */
+  void submit(List<LocalMessage> batch, Runnable onSynced) throws IOException {
+    rethrowFailure();
+    acquire(1);
+    if (failure.get() != null) {
+      batchesInFlight.release();
+      rethrowFailure();
+    }
+
+    logger.fine(() -> "Submitting batch of " + batch.size() + " messages");
+    CompletableFuture<SyncBatch> synced =
+        CompletableFuture.completedFuture(batch)
+            .thenApplyAsync(unchecked(gmailSyncer::lookUp), lookUpExecutor)
+            .thenApplyAsync(unchecked(gmailSyncer::upload), uploadExecutor)
+            .thenApplyAsync(unchecked(gmailSyncer::fetchLabels), fetchLabelsExecutor)
+            .thenApplyAsync(unchecked(gmailSyncer::applyLabels), applyLabelsExecutor);
+    previousBatches = CompletableFuture.allOf(previousBatches, synced).thenRun(onSynced);
+    synced.whenComplete(
+        (result, throwable) -> {
+          if (throwable != null) {
+            failure.compareAndSet(null, unwrap(throwable));
+          }
+          batchesInFlight.release();
+        });
+  }
+
+  /**
+   * Waits for all of the submitted batches to make it through the pipeline.
+   *
+   * @throws IOException if any batch failed
+   */
+  void awaitCompletion() throws IOException {
+    acquire(depth);
+    batchesInFlight.release(depth);
+    rethrowFailure();
+    // All of the batches are done, but the last callback may still be running.
+    previousBatches.join();
+  }
+
+  @Override
+  public void close() {
+    lookUpExecutor.shutdownNow();
+    uploadExecutor.shutdownNow();
+    fetchLabelsExecutor.shutdownNow();
+    applyLabelsExecutor.shutdownNow();
+  }
+
+  private void acquire(int permits) throws InterruptedIOException {
+    try {
+      batchesInFlight.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+    }
+  }
+
+  private void rethrowFailure() throws IOException {
+    Throwable throwable = failure.get();
+    if (throwable != null) {
+      Throwables.throwIfInstanceOf(throwable, IOException.class);
+      Throwables.throwIfUnchecked(throwable);
+      throw new IOException(throwable);
+    }
+  }
+
+  private static <I, O> Function<I, O> unchecked(Stage<I, O> stage) {
+    return input -> {
+      try {
+        return stage.run(input);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  private static Throwable unwrap(Throwable throwable) {
+    if (throwable instanceof CompletionException && throwable.getCause() != null) {
+      throwable = throwable.getCause();
+    }
+    if (throwable instanceof UncheckedIOException) {
+      throwable = throwable.getCause();
+    }
+    return throwable;
+  }
+
+  private static ExecutorService newStageExecutor(String stageName, int threads) {
+    return Executors.newFixedThreadPool(
+        threads,
+        new ThreadFactoryBuilder().setNameFormat(stageName + "-%d").setDaemon(true).build());
+  }
+}
@@ -21,27 +21,48 @@ import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import javax.mail.MessagingException;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import to.lean.tools.gmail.importer.gmail.GmailServiceModule;
 import to.lean.tools.gmail.importer.gmail.GmailSyncer;
+import to.lean.tools.gmail.importer.local.Checkpoint;
+import to.lean.tools.gmail.importer.local.CheckpointIterator;
+import to.lean.tools.gmail.importer.local.FolderIndex;
 import to.lean.tools.gmail.importer.local.LocalMessage;
 import to.lean.tools.gmail.importer.local.LocalStorage;
 import to.lean.tools.gmail.importer.local.thunderbird.ThunderbirdModule;
 
 /**
  * Copies messages from {@link to.lean.tools.gmail.importer.local.LocalStorage} to a {@link
- * to.lean.tools.gmail.importer.gmail.GmailSyncer} in batches. This processes is single-threaded.
- * When errors occur, an {@link to.lean.tools.gmail.importer.errorstrategy.ErrorStrategy} is used to
- * handle the error.
+ * to.lean.tools.gmail.importer.gmail.GmailSyncer} in batches. By default, this process is
+ * single-threaded; with {@code --pipeline_depth} greater than 1, batches are handed to an {@link
+ * ImportPipeline} so that local and remote processing overlap. When errors occur, an {@link
+ * to.lean.tools.gmail.importer.errorstrategy.ErrorStrategy} is used to handle the error.
+ *
+ * <p>With {@code --read_parallelism} greater than 1, several local folders are read at once, and
+ * their messages are imported in no particular order.
+ *
+ * <p>With {@code --aggregate_folders}, the store is first scanned for the folders that each message
+ * is in, and each message is only sync'd once, with the labels for all of its folders.
+ *
+ * <p>With {@code --checkpoint_file}, the position of the last batch that was completely sync'd is
+ * saved after every batch, and {@code --resume} restarts the import from there.
  */
 public class Importer {
   private static final int BATCH_SIZE = 100;
 
+  /** Receives the batches read from local storage. */
+  private interface BatchConsumer {
+    void accept(List<LocalMessage> batch, Runnable onSynced) throws IOException;
+  }
+
   private final Logger logger;
   private final MailProvider<LocalStorage> storageProvider;
   private final GmailSyncer gmailSyncer;
@@ -69,7 +90,7 @@ public class Importer {
     Injector injector =
         Guice.createInjector(
             new FlagsModule(commandLineArguments),
-            new ThunderbirdModule(),
+            new ThunderbirdModule(commandLineArguments.scanMbox),
             new GmailServiceModule());
 
     Importer importer = injector.getInstance(Importer.class);
@@ -92,12 +113,108 @@ public class Importer {
     LocalStorage storage = storageProvider.get();
     gmailSyncer.init();
 
+    // The index is built before the import starts to read, since a parallel traversal starts as
+    // soon as its stream is created and the two would otherwise read the store at the same time.
+    FolderIndex folderIndex = commandLineArguments.aggregateFolders ? indexFolders(storage) : null;
+
+    // Only the messages of a stream are read in parallel; it is closed once the import is done.
+    Stream<LocalMessage> messages = Stream.empty();
+    Iterator<LocalMessage> iterator;
+    Supplier<Runnable> checkpointer;
+    if (commandLineArguments.checkpointFileName == null) {
+      if (commandLineArguments.readParallelism > 1) {
+        messages = storage.stream(commandLineArguments.readParallelism);
+        iterator = messages.iterator();
+      } else {
+        iterator = storage.iterator();
+      }
+      checkpointer = () -> () -> {};
+    } else {
+      CheckpointFile checkpointFile =
+          new CheckpointFile(
+              Paths.get(commandLineArguments.checkpointFileName),
+              commandLineArguments.scanMbox ? "scan_mbox" : "mstor");
+      Checkpoint start = Checkpoint.start();
+      if (commandLineArguments.resume) {
+        start = checkpointFile.read().orElse(start);
+        logger.info("Resuming from " + start);
+      }
+      CheckpointIterator checkpointIterator = storage.iterator(start);
+      iterator = checkpointIterator;
+      checkpointer =
+          () -> {
+            Checkpoint checkpoint = checkpointIterator.checkpoint();
+            return () -> saveCheckpoint(checkpointFile, checkpoint);
+          };
+    }
+
+    try {
+      if (folderIndex != null) {
+        iterator = folderIndex.aggregate(iterator);
+      }
+
+      if (commandLineArguments.pipelineDepth > 1) {
+        try (ImportPipeline pipeline =
+            new ImportPipeline(
+                logger,
+                gmailSyncer,
+                commandLineArguments.pipelineDepth,
+                commandLineArguments.pipelineThreads)) {
+          readBatches(iterator, checkpointer, pipeline::submit);
+          pipeline.awaitCompletion();
+        }
+      } else {
+        readBatches(
+            iterator,
+            checkpointer,
+            (batch, onSynced) -> {
+              gmailSyncer.sync(batch);
+              onSynced.run();
+            });
+      }
+    } finally {
+      messages.close();
+    }
+    logger.info(() -> "Sync statistics: " + gmailSyncer.getStatistics());
+  }
+
+  /**
+   * Scans the whole store for the folders that each message is in. Even when resuming, the messages
+   * before the checkpoint are scanned, since they may have copies after it.
+   */
+  private FolderIndex indexFolders(LocalStorage storage) {
+    logger.info("Indexing the folders of local messages");
+    FolderIndex folderIndex;
+    try (Stream<LocalMessage> messages =
+        storage.streamHeaders(commandLineArguments.readParallelism)) {
+      folderIndex = FolderIndex.build(messages.iterator());
+    }
+    logger.info(
+        () ->
+            "Found "
+                + folderIndex.getUniqueMessageCount()
+                + " unique messages in "
+                + folderIndex.getMessageCount()
+                + " folder entries");
+    return folderIndex;
+  }
+
+  /**
+   * Reads batches of messages from {@code iterator} and hands them to {@code consumer}. The limit
+   * is checked before {@link Iterator#hasNext()}, which may read ahead and move the checkpoint past
+   * a message that is never imported.
+   *
+   * @param checkpointer called after each batch is read to get the callback to run once the batch
+   *     is sync'd
+   */
+  private void readBatches(
+      Iterator<LocalMessage> iterator, Supplier<Runnable> checkpointer, BatchConsumer consumer)
+      throws IOException {
     int messagesImported = 0;
-    Iterator<LocalMessage> iterator = storage.iterator();
-    while (iterator.hasNext() && keepImporting(messagesImported)) {
+    while (keepImporting(messagesImported) && iterator.hasNext()) {
       List<LocalMessage> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
       for (int i = 0;
-          i < BATCH_SIZE && iterator.hasNext() && keepImporting(messagesImported);
+          i < BATCH_SIZE && keepImporting(messagesImported) && iterator.hasNext();
           i++) {
         LocalMessage message = iterator.next();
         logger.fine(() -> "Id: " + message.getMessageId());
@@ -105,7 +222,23 @@ public class Importer {
         batch.add(message);
         messagesImported++;
       }
-      gmailSyncer.sync(batch);
+      Runnable checkpoint = checkpointer.get();
+      consumer.accept(
+          batch,
+          () -> {
+            batch.forEach(LocalMessage::release);
+            checkpoint.run();
+          });
+    }
+  }
+
+  private void saveCheckpoint(CheckpointFile checkpointFile, Checkpoint checkpoint) {
+    try {
+      checkpointFile.write(checkpoint);
+      logger.fine(() -> "Saved checkpoint " + checkpoint);
+    } catch (IOException e) {
+      // The import can carry on; a resume will just start further back.
+      logger.warning(() -> "Could not save checkpoint: " + e);
     }
   }
 
@@ -23,16 +23,17 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.BackOff;
 import com.google.api.services.gmail.Gmail;
+import com.google.common.annotations.VisibleForTesting;
 import javax.inject.Inject;
 import javax.inject.Provider;
 
-/** Constructs a {@link Gmail} instance that is ready for use. */
+/**
+ * Provides a {@link Gmail} instance that is ready for use. The instance is built once and shared;
+ * it is thread-safe, and every request it makes gets its own retry {@link BackOff}.
+ */
 public class GmailService {
 
-  private final Credential credential;
-  private final Provider<BackOff> backOffProvider;
-  private final HttpTransport httpTransport;
-  private final JsonFactory jsonFactory;
+  private final Gmail gmail;
 
   @Inject
   GmailService(
@@ -41,20 +42,29 @@ public class GmailService {
       Provider<BackOff> backOffProvider,
       HttpTransport httpTransport,
       JsonFactory jsonFactory) {
-    this.credential = credential;
-    this.backOffProvider = backOffProvider;
-    this.httpTransport = httpTransport;
-    this.jsonFactory = jsonFactory;
+    this.gmail = buildService(credential, backOffProvider, httpTransport, jsonFactory);
   }
 
   Gmail getServiceWithRetries() {
+    return gmail;
+  }
+
+  /** Builds a new client, as the constructor does for the one it shares. */
+  @VisibleForTesting
+  static Gmail buildService(
+      Credential credential,
+      Provider<BackOff> backOffProvider,
+      HttpTransport httpTransport,
+      JsonFactory jsonFactory) {
     HttpRequestInitializer httpRequestInitializer =
         request -> {
           credential.initialize(request);
-          new UnsuccessfulResponseHandlerChainer()
-              .chain(
-                  request.getUnsuccessfulResponseHandler(),
-                  new HttpBackOffUnsuccessfulResponseHandler(backOffProvider.get()));
+          // BackOffs are stateful, so each request needs a new one.
+          request.setUnsuccessfulResponseHandler(
+              new UnsuccessfulResponseHandlerChainer()
+                  .chain(
+                      request.getUnsuccessfulResponseHandler(),
+                      new HttpBackOffUnsuccessfulResponseHandler(backOffProvider.get())));
         };
 
     return new Gmail.Builder(httpTransport, jsonFactory, httpRequestInitializer)
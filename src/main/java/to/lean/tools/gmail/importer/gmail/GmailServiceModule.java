@@ -25,6 +25,8 @@ import com.google.api.client.util.BackOff;
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import java.nio.file.Paths;
+import java.util.Optional;
 import javax.inject.Singleton;
 import to.lean.tools.gmail.importer.CommandLineArguments;
 
@@ -37,6 +39,9 @@ public class GmailServiceModule extends AbstractModule {
     requireBinding(CommandLineArguments.class);
 
     bind(GmailService.class).in(Singleton.class);
+    bind(GmailSyncer.class).in(Singleton.class);
+    bind(MessageIndex.class).in(Singleton.class);
+    bind(QuotaLimiter.class).in(Singleton.class);
     bind(Credential.class).toProvider(Authorizer.class).in(Singleton.class);
 
     bind(ExponentialBackOff.Builder.class)
@@ -55,6 +60,20 @@ public class GmailServiceModule extends AbstractModule {
     return User.create(commandLineArguments.user);
   }
 
+  @Provides
+  @Singleton
+  SyncOptions provideSyncOptions(CommandLineArguments commandLineArguments) {
+    return SyncOptions.builder()
+        .setUploadConcurrency(commandLineArguments.uploadConcurrency)
+        .setBatchConcurrency(commandLineArguments.batchConcurrency)
+        .setMessageIdsPerQuery(commandLineArguments.messageIdsPerQuery)
+        .setPreloadMessageIds(commandLineArguments.preloadMessageIds)
+        .setQuotaUnitsPerSecond(commandLineArguments.quotaUnitsPerSecond)
+        .setMessageIndexPath(
+            Optional.ofNullable(commandLineArguments.messageIndexFileName).map(Paths::get))
+        .build();
+  }
+
   @Provides
   @Singleton
   HttpTransport provideHttpTransport() {
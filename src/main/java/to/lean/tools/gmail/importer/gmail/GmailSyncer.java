@@ -16,26 +16,54 @@
 
 package to.lean.tools.gmail.importer.gmail;
 
+import static java.util.stream.Collectors.toList;
+
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.gmail.model.Message;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import to.lean.tools.gmail.importer.local.LocalMessage;
 
 /**
  * Main sync logic. After construction, instances must be initialized by calling the {@link #init()}
- * method. Messages are sync'd in batches by calling the {@link #sync(List)} method.
+ * method. Messages are sync'd in batches by calling the {@link #sync(List)} method, or by running
+ * the individual stages of the sync so that different batches can be in different stages at once.
  */
 public class GmailSyncer {
   private final Mailbox mailbox;
+  /** Runs uploads when more than one may be in flight, {@code null} otherwise. */
+  @Nullable private final ExecutorService uploadExecutor;
   private boolean initialized = false;
 
   @Inject
-  GmailSyncer(Mailbox mailbox) {
+  GmailSyncer(Mailbox mailbox, SyncOptions options) {
     this.mailbox = mailbox;
+    // The executor is shared by all batches, so it caps the uploads for the user even when
+    // several batches are being uploaded at once by a pipeline.
+    this.uploadExecutor =
+        options.getUploadConcurrency() > 1
+            ? Executors.newFixedThreadPool(
+                options.getUploadConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("gmail-upload-%d").setDaemon(true).build())
+            : null;
+  }
+
+  /** Returns the counts of what the sync has done so far, for all batches. */
+  public SyncStatistics getStatistics() {
+    return mailbox.getStatistics();
   }
 
   /**
@@ -57,25 +85,102 @@ public class GmailSyncer {
    * <p>Note that some errors can prevent some messages from being uploaded. In this case, the
    * failure policy dictates what happens.
    *
+   * <p>This is equivalent to running {@link #lookUp(List)}, {@link #upload(SyncBatch)}, {@link
+   * #fetchLabels(SyncBatch)} and {@link #applyLabels(SyncBatch)} in order.
+   *
    * @param messages the list of messages to synchronize. These messages may or may not already
    *     exist in Gmail.
    * @throws IOException if something goes wrong with the connection
    */
   public void sync(List<LocalMessage> messages) throws IOException {
+    applyLabels(fetchLabels(upload(lookUp(messages))));
+  }
+
+  /**
+   * First stage of a sync: finds the Gmail messages that already exist for each of the given
+   * messages.
+   *
+   * <p>The stages of a sync may be run for different batches on different threads at the same
+   * time, but each batch must go through the stages in order.
+   *
+   * @param messages the list of messages to synchronize
+   * @return the batch to hand to {@link #upload(SyncBatch)}
+   * @throws IOException if something goes wrong with the connection
+   */
+  public SyncBatch lookUp(List<LocalMessage> messages) throws IOException {
     Preconditions.checkState(initialized, "GmailSyncer.init() must be called first");
-    Multimap<LocalMessage, Message> map = mailbox.mapMessageIds(messages);
-    messages.stream()
-        .filter(message -> !map.containsKey(message))
-        .forEach(
-            message -> {
-              try {
-                Message gmailMessage = mailbox.uploadMessage(message);
-                map.put(message, gmailMessage);
-              } catch (GoogleJsonResponseException e) {
-                // Message couldn't be uploaded, but we know why
-              }
-            });
-    mailbox.fetchExistingLabels(map.values());
-    mailbox.syncLocalLabelsToGmail(map);
+    return new SyncBatch(messages, mailbox.mapMessageIds(messages));
+  }
+
+  /**
+   * Second stage of a sync: uploads the messages that {@link #lookUp(List)} didn't find. Up to
+   * {@link SyncOptions#getUploadConcurrency()} messages are uploaded at once.
+   *
+   * @throws IOException if something goes wrong with the connection
+   */
+  public SyncBatch upload(SyncBatch batch) throws IOException {
+    Multimap<LocalMessage, Message> map = batch.getGmailMessages();
+    List<LocalMessage> missingMessages =
+        batch.getLocalMessages().stream()
+            .filter(message -> !map.containsKey(message))
+            .collect(toList());
+
+    if (uploadExecutor == null) {
+      for (LocalMessage message : missingMessages) {
+        uploadMessage(message).ifPresent(gmailMessage -> map.put(message, gmailMessage));
+      }
+      return batch;
+    }
+
+    List<Future<Optional<Message>>> uploads = new ArrayList<>(missingMessages.size());
+    for (LocalMessage message : missingMessages) {
+      uploads.add(uploadExecutor.submit(() -> uploadMessage(message)));
+    }
+    // The results are merged here, on the calling thread, so the map is never shared.
+    for (int i = 0; i < uploads.size(); i++) {
+      LocalMessage message = missingMessages.get(i);
+      try {
+        Uninterruptibles.getUninterruptibly(uploads.get(i))
+            .ifPresent(gmailMessage -> map.put(message, gmailMessage));
+      } catch (ExecutionException e) {
+        uploads.forEach(upload -> upload.cancel(true));
+        Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new IOException(e.getCause());
+      }
+    }
+    return batch;
+  }
+
+  private Optional<Message> uploadMessage(LocalMessage message) {
+    try {
+      return Optional.ofNullable(mailbox.uploadMessage(message));
+    } catch (GoogleJsonResponseException e) {
+      // Message couldn't be uploaded, but we know why
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Third stage of a sync: fetches the labels that are currently on the Gmail messages.
+   *
+   * @throws IOException if something goes wrong with the connection
+   */
+  public SyncBatch fetchLabels(SyncBatch batch) throws IOException {
+    mailbox.fetchExistingLabels(batch.getGmailMessages().values());
+    return batch;
+  }
+
+  /**
+   * Last stage of a sync: makes the Gmail labels match the local folders, tags and state. The
+   * labels that the batch needs are resolved first, and the missing ones are created together,
+   * before any message is changed. Batches may be labelled on several threads at once; each missing
+   * label is only created by one of them.
+   *
+   * @throws IOException if something goes wrong with the connection
+   */
+  public SyncBatch applyLabels(SyncBatch batch) throws IOException {
+    mailbox.syncLocalLabelsToGmail(batch.getGmailMessages());
+    return batch;
   }
 }
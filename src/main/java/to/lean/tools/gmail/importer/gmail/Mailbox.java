@@ -17,38 +17,56 @@
 package to.lean.tools.gmail.importer.gmail;
 
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
-import static java.util.stream.Collectors.toSet;
 
-import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Sleeper;
 import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.BatchModifyMessagesRequest;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.ListLabelsResponse;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartHeader;
 import com.google.api.services.gmail.model.ModifyMessageRequest;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
-import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
-import java.io.ByteArrayInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Provider;
 import to.lean.tools.gmail.importer.local.LocalMessage;
 
 /**
@@ -59,24 +77,249 @@ import to.lean.tools.gmail.importer.local.LocalMessage;
 class Mailbox {
   static final int TOO_MANY_CONCURRENT_REQUESTS_FOR_USER = 429;
 
+  /** The status of a {@code labels.create} for a name that is taken, ignoring case. */
+  private static final int LABEL_CONFLICT = 409;
+
+  /** The most message ids that Gmail accepts in one {@code messages.batchModify} call. */
+  static final int MAX_BATCH_MODIFY_SIZE = 1000;
+
+  /**
+   * A {@code messages.batchModify} costs as much quota as ten {@code messages.modify} calls, so
+   * smaller groups of messages are modified one at a time.
+   */
+  static final int MIN_BATCH_MODIFY_SIZE = 10;
+
+  /**
+   * The longest search query to send when looking up several message ids at once. Gmail doesn't
+   * document a limit, so this stays well short of the lengths at which URLs are rejected.
+   */
+  static final int MAX_QUERY_LENGTH = 2000;
+
+  /** Local tags are applied as labels under this one, so they can't clash with folders. */
+  static final String TAG_LABEL_PREFIX = "Tags/";
+
+  /** The most messages that one {@code messages.list} call returns. */
+  private static final long MAX_LIST_RESULTS = 500;
+
+  private static final String MESSAGE_ID_QUERY = "rfc822msgid:";
+  private static final String OR = " OR ";
+
+  /** Message ids with these characters can't be combined into a query without quoting. */
+  private static final CharMatcher UNCOMBINABLE_CHARS =
+      CharMatcher.whitespace().or(CharMatcher.anyOf("\"(){}"));
+
+  /** The labels to add to and remove from a message. */
+  @AutoValue
+  abstract static class LabelDelta {
+    static LabelDelta create(
+        Collection<String> labelIdsToAdd, Collection<String> labelIdsToRemove) {
+      return new AutoValue_Mailbox_LabelDelta(
+          ImmutableSet.copyOf(labelIdsToAdd), ImmutableSet.copyOf(labelIdsToRemove));
+    }
+
+    abstract ImmutableSet<String> getLabelIdsToAdd();
+
+    abstract ImmutableSet<String> getLabelIdsToRemove();
+
+    /**
+     * Returns true if applying this delta to {@code message} would not change it. Messages whose
+     * labels haven't been fetched are assumed to need changing.
+     */
+    boolean isSatisfiedBy(Message message) {
+      List<String> labelIds = message.getLabelIds();
+      return labelIds != null
+          && labelIds.containsAll(getLabelIdsToAdd())
+          && getLabelIdsToRemove().stream().noneMatch(labelIds::contains);
+    }
+  }
+
+  /** Several message ids that are looked up in Gmail with one search query. */
+  private static class CombinedLookup {
+    final ListMultimap<String, LocalMessage> localMessagesById =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    final ListMultimap<String, Message> gmailMessagesById =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    final StringBuilder query = new StringBuilder();
+    int pendingGets;
+    boolean ambiguous;
+
+    void add(String messageId, List<LocalMessage> localMessages) {
+      query.append(query.length() == 0 ? "" : OR).append(MESSAGE_ID_QUERY).append(messageId);
+      localMessagesById.putAll(messageId, localMessages);
+    }
+
+    int getQueryLengthWith(String messageId) {
+      return query.length() + OR.length() + MESSAGE_ID_QUERY.length() + messageId.length();
+    }
+
+    int getMessageIdCount() {
+      return localMessagesById.keySet().size();
+    }
+  }
+
   private final GmailService gmailService;
   private final User user;
+  private final MessageIndex messageIndex;
+  private final QuotaLimiter quotaLimiter;
+  private final Provider<BackOff> backOffProvider;
+  private final int messageIdsPerQuery;
+  private final boolean preloadMessageIds;
+  private final SyncStatistics statistics = new SyncStatistics();
+  private final SeenMessages seenMessages = new SeenMessages();
+
+  /** Sends batches when more than one may be in flight, {@code null} otherwise. */
+  @Nullable private final ExecutorService batchExecutor;
+
+  /**
+   * The user's labels by id, and by name in lower case, since Gmail doesn't let two labels have
+   * names that only differ in case. Labels are added as they are created, by any thread.
+   */
+  private final Map<String, Label> labelsById = new ConcurrentHashMap<>();
+
+  private final Map<String, Label> labelsByName = new ConcurrentHashMap<>();
 
-  private Map<String, Label> labelsById;
-  private Map<String, Label> labelsByName;
+  /** The names, in lower case, of the labels that couldn't be created, so they aren't retried. */
+  private final Set<String> unavailableLabelNames = ConcurrentHashMap.newKeySet();
+
+  /** Held while labels are created, so that batches that need the same label don't both add it. */
+  private final Object labelCreationLock = new Object();
+
+  /**
+   * The ids of the Gmail messages with each message id, without angle brackets, if they were
+   * preloaded. Messages uploaded since are added.
+   */
+  @Nullable private volatile Map<String, List<String>> preloadedGmailIds;
+
+  /** Whether the message id of every message in Gmail made it into {@link #preloadedGmailIds}. */
+  private volatile boolean preloadComplete;
 
   @Inject
-  Mailbox(GmailService gmailService, User user) {
+  Mailbox(
+      GmailService gmailService,
+      User user,
+      MessageIndex messageIndex,
+      QuotaLimiter quotaLimiter,
+      Provider<BackOff> backOffProvider,
+      SyncOptions options) {
     this.gmailService = gmailService;
     this.user = user;
+    this.messageIndex = messageIndex;
+    this.quotaLimiter = quotaLimiter;
+    this.backOffProvider = backOffProvider;
+    this.messageIdsPerQuery = options.getMessageIdsPerQuery();
+    this.preloadMessageIds = options.getPreloadMessageIds();
+    // Like the upload executor, this is shared so that it caps the batches in flight for the user
+    // even when several stages of a pipeline are sending batches at once.
+    this.batchExecutor =
+        options.getBatchConcurrency() > 1
+            ? Executors.newFixedThreadPool(
+                options.getBatchConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("gmail-batch-%d").setDaemon(true).build())
+            : null;
+  }
+
+  /**
+   * Starts a batch of requests, which retries the ones that fail for transient reasons and splits
+   * them into batches that Gmail accepts.
+   */
+  private RetryingBatch newBatch(Gmail gmail) {
+    return new RetryingBatch(
+        gmail, quotaLimiter, backOffProvider, Sleeper.DEFAULT, NanoClock.SYSTEM, batchExecutor);
+  }
+
+  /** Returns the counts of what this mailbox has done to the messages in Gmail. */
+  SyncStatistics getStatistics() {
+    return statistics;
   }
 
   void connect() throws IOException {
+    messageIndex.open();
     loadLabels();
+    if (preloadMessageIds) {
+      preloadMessageIds();
+    }
+  }
+
+  /**
+   * Pages through every message in Gmail, including spam and trash, and fetches just its {@code
+   * Message-ID} header. This costs a {@code messages.get} per message in the mailbox once, instead
+   * of a search per message imported.
+   *
+   * <p>If some of the headers can't be fetched, the message ids that weren't preloaded are still
+   * looked up in Gmail, so that messages aren't uploaded twice.
+   */
+  private void preloadMessageIds() throws IOException {
+    Gmail gmail = gmailService.getServiceWithRetries();
+    Map<String, List<String>> gmailIdsByMessageId = new ConcurrentHashMap<>();
+    AtomicInteger failures = new AtomicInteger();
+    int messages = 0;
+    String pageToken = null;
+    do {
+      quotaLimiter.acquire(QuotaLimiter.Method.MESSAGES_LIST);
+      ListMessagesResponse page;
+      try {
+        page =
+            gmail
+                .users()
+                .messages()
+                .list(user.getEmailAddress())
+                .setIncludeSpamTrash(true)
+                .setMaxResults(MAX_LIST_RESULTS)
+                .setPageToken(pageToken)
+                .setFields("messages(id),nextPageToken")
+                .execute();
+        quotaLimiter.recordSuccess();
+      } catch (GoogleJsonResponseException e) {
+        if (e.getDetails() != null) {
+          quotaLimiter.recordFailure(e.getDetails());
+        }
+        throw e;
+      }
+      if (page.getMessages() != null) {
+        RetryingBatch batch = newBatch(gmail);
+        for (Message message : page.getMessages()) {
+          batch.queue(
+              newGetMessageIdHeader(gmail, message.getId()),
+              QuotaLimiter.Method.MESSAGES_GET,
+              new JsonBatchCallback<Message>() {
+                @Override
+                public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                  System.err.format(
+                      "Could not get the message id of %s, because: %s\n", message.getId(), e);
+                  failures.incrementAndGet();
+                }
+
+                @Override
+                public void onSuccess(Message response, HttpHeaders responseHeaders) {
+                  String messageId = normalizeMessageId(getMessageIdHeader(response));
+                  if (messageId != null) {
+                    addPreloadedGmailId(gmailIdsByMessageId, messageId, response.getId());
+                  }
+                }
+              });
+        }
+        messages += page.getMessages().size();
+        batch.execute();
+      }
+      pageToken = page.getNextPageToken();
+      System.err.format("Preloaded the message ids of %d Gmail messages\n", messages);
+    } while (pageToken != null);
+
+    preloadComplete = failures.get() == 0;
+    preloadedGmailIds = gmailIdsByMessageId;
+  }
+
+  private static void addPreloadedGmailId(
+      Map<String, List<String>> gmailIdsByMessageId, String messageId, String gmailId) {
+    gmailIdsByMessageId.merge(
+        messageId,
+        ImmutableList.of(gmailId),
+        (ids, newIds) -> ImmutableList.<String>builder().addAll(ids).addAll(newIds).build());
   }
 
   /** Loads the user's labels and remembers them. */
   void loadLabels() throws IOException {
+    quotaLimiter.acquire(QuotaLimiter.Method.LABELS_LIST);
     ListLabelsResponse labelResponse =
         gmailService
             .getServiceWithRetries()
@@ -87,48 +330,71 @@ class Mailbox {
 
     Verify.verify(!labelResponse.isEmpty(), "could not get labels %s");
 
-    List<Label> labels = labelResponse.getLabels();
-    labelsByName = labels.stream().collect(toMap(Label::getName, label -> label));
-    labelsById = labels.stream().collect(toMap(Label::getId, label -> label));
+    for (Label label : labelResponse.getLabels()) {
+      addLabel(label);
+    }
     System.err.format("Got labels: %s", labelsByName);
   }
 
+  private void addLabel(Label label) {
+    labelsByName.put(toLabelKey(label.getName()), label);
+    labelsById.put(label.getId(), label);
+  }
+
+  /** Returns the label named {@code labelName}, in any case, or {@code null} if there is none. */
+  @Nullable
+  private Label getLabel(String labelName) {
+    return labelsByName.get(toLabelKey(labelName));
+  }
+
+  private static String toLabelKey(String labelName) {
+    return labelName.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Finds the Gmail messages with the same message ids as the local messages. Messages that the
+   * message index knows about are not looked up in Gmail again.
+   *
+   * <p>With {@link SyncOptions#getMessageIdsPerQuery()} above 1, several message ids are looked up
+   * with each search, and the messages that are found are told apart by their {@code Message-ID}
+   * headers. Any search whose results can't be told apart is done again one message id at a time.
+   *
+   * <p>If the message ids in Gmail were preloaded, messages are looked up in memory instead. So are
+   * the other copies of messages that were already found or uploaded during this run.
+   */
   Multimap<LocalMessage, Message> mapMessageIds(Iterable<LocalMessage> localMessages) {
     Multimap<LocalMessage, Message> results = MultimapBuilder.hashKeys().linkedListValues().build();
 
     Gmail gmail = gmailService.getServiceWithRetries();
-    BatchRequest batch = gmail.batch();
+    RetryingBatch batch = newBatch(gmail);
 
     try {
+      List<LocalMessage> messagesToLookUp = new ArrayList<>();
       for (LocalMessage localMessage : localMessages) {
-        gmail
-            .users()
-            .messages()
-            .list(user.getEmailAddress())
-            .setQ("rfc822msgid:" + localMessage.getMessageId())
-            .setFields("messages(id)")
-            .queue(
-                batch,
-                new JsonBatchCallback<ListMessagesResponse>() {
-                  @Override
-                  public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
-                      throws IOException {
-                    System.err.println("Could not get message: " + localMessage.getMessageId());
-                    System.err.println("  because: " + e);
-                  }
+        Optional<String> seenGmailId = seenMessages.getGmailId(localMessage.getMessageId());
+        if (seenGmailId.isPresent()) {
+          statistics.recordSeenBefore();
+          results.put(localMessage, new Message().setId(seenGmailId.get()));
+          continue;
+        }
+        Optional<MessageIndex.Entry> indexEntry = messageIndex.get(localMessage.getMessageId());
+        if (indexEntry.isPresent() && !indexEntry.get().getGmailIds().isEmpty()) {
+          indexEntry.get().getGmailIds().stream()
+              .map(id -> new Message().setId(id))
+              .forEach(message -> results.put(localMessage, message));
+          continue;
+        }
+        if (!findPreloaded(localMessage, results)) {
+          messagesToLookUp.add(localMessage);
+        }
+      }
 
-                  @Override
-                  public void onSuccess(ListMessagesResponse response, HttpHeaders responseHeaders)
-                      throws IOException {
-                    if (!response.isEmpty()) {
-                      results.putAll(localMessage, response.getMessages());
-                      System.err.println("For " + localMessage.getMessageId() + " got:");
-                      response.getMessages().stream()
-                          .forEach(
-                              message -> System.err.println("  message id: " + message.getId()));
-                    }
-                  }
-                });
+      if (messageIdsPerQuery > 1) {
+        queueCombinedLookups(gmail, batch, messagesToLookUp, results);
+      } else {
+        for (LocalMessage localMessage : messagesToLookUp) {
+          queueLookup(gmail, batch, localMessage, results);
+        }
       }
       if (batch.size() > 0) {
         batch.execute();
@@ -140,47 +406,302 @@ class Mailbox {
     return results;
   }
 
+  /**
+   * Looks up a local message in the preloaded message ids, and returns whether that settled where
+   * it is in Gmail, if anywhere.
+   */
+  private boolean findPreloaded(
+      LocalMessage localMessage, Multimap<LocalMessage, Message> results) {
+    Map<String, List<String>> gmailIdsByMessageId = preloadedGmailIds;
+    String messageId = normalizeMessageId(localMessage.getMessageId());
+    if (gmailIdsByMessageId == null || messageId == null) {
+      return false;
+    }
+    List<String> gmailIds = gmailIdsByMessageId.get(messageId);
+    if (gmailIds == null) {
+      return preloadComplete;
+    }
+    addLookupResult(
+        localMessage,
+        gmailIds.stream().map(id -> new Message().setId(id)).collect(toList()),
+        results);
+    return true;
+  }
+
+  /** Looks up the Gmail messages with the message id of one local message. */
+  private void queueLookup(
+      Gmail gmail,
+      RetryingBatch batch,
+      LocalMessage localMessage,
+      Multimap<LocalMessage, Message> results)
+      throws IOException {
+    batch.queue(
+        gmail
+            .users()
+            .messages()
+            .list(user.getEmailAddress())
+            .setQ(MESSAGE_ID_QUERY + localMessage.getMessageId())
+            .setFields("messages(id)"),
+        QuotaLimiter.Method.MESSAGES_LIST,
+        new JsonBatchCallback<ListMessagesResponse>() {
+          @Override
+          public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+            System.err.println("Could not get message: " + localMessage.getMessageId());
+            System.err.println("  because: " + e);
+          }
+
+          @Override
+          public void onSuccess(ListMessagesResponse response, HttpHeaders responseHeaders)
+              throws IOException {
+            if (!response.isEmpty()) {
+              addLookupResult(localMessage, response.getMessages(), results);
+            }
+          }
+        });
+  }
+
+  private void addLookupResult(
+      LocalMessage localMessage,
+      List<Message> gmailMessages,
+      Multimap<LocalMessage, Message> results) {
+    results.putAll(localMessage, gmailMessages);
+    if (gmailMessages.size() == 1) {
+      seenMessages.putGmailId(localMessage.getMessageId(), gmailMessages.get(0).getId());
+    }
+    messageIndex.addGmailIds(
+        localMessage.getMessageId(), gmailMessages.stream().map(Message::getId).collect(toList()));
+    System.err.println("For " + localMessage.getMessageId() + " got:");
+    gmailMessages.forEach(message -> System.err.println("  message id: " + message.getId()));
+  }
+
+  /**
+   * Packs the message ids of the local messages into as few searches as {@link
+   * SyncOptions#getMessageIdsPerQuery()} and {@link #MAX_QUERY_LENGTH} allow.
+   */
+  private void queueCombinedLookups(
+      Gmail gmail,
+      RetryingBatch batch,
+      List<LocalMessage> localMessages,
+      Multimap<LocalMessage, Message> results)
+      throws IOException {
+    ListMultimap<String, LocalMessage> localMessagesById =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    for (LocalMessage localMessage : localMessages) {
+      String messageId = normalizeMessageId(localMessage.getMessageId());
+      if (messageId == null || messageId.isEmpty() || UNCOMBINABLE_CHARS.matchesAnyOf(messageId)) {
+        queueLookup(gmail, batch, localMessage, results);
+      } else {
+        localMessagesById.put(messageId, localMessage);
+      }
+    }
+
+    CombinedLookup lookup = new CombinedLookup();
+    for (String messageId : localMessagesById.keySet()) {
+      if (lookup.getMessageIdCount() == messageIdsPerQuery
+          || lookup.getQueryLengthWith(messageId) > MAX_QUERY_LENGTH) {
+        queueCombinedLookup(gmail, batch, lookup, results);
+        lookup = new CombinedLookup();
+      }
+      lookup.add(messageId, localMessagesById.get(messageId));
+    }
+    if (lookup.getMessageIdCount() > 0) {
+      queueCombinedLookup(gmail, batch, lookup, results);
+    }
+  }
+
+  private void queueCombinedLookup(
+      Gmail gmail,
+      RetryingBatch batch,
+      CombinedLookup lookup,
+      Multimap<LocalMessage, Message> results)
+      throws IOException {
+    // A search for one message id needs no telling apart, so it is cheaper on its own.
+    if (lookup.getMessageIdCount() == 1) {
+      lookUpSeparately(gmail, batch, lookup, results);
+      return;
+    }
+
+    batch.queue(
+        gmail
+            .users()
+            .messages()
+            .list(user.getEmailAddress())
+            .setQ(lookup.query.toString())
+            .setMaxResults(MAX_LIST_RESULTS)
+            .setFields("messages(id),nextPageToken"),
+        QuotaLimiter.Method.MESSAGES_LIST,
+        new JsonBatchCallback<ListMessagesResponse>() {
+          @Override
+          public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+            System.err.format(
+                "Could not look up %d messages at once, because: %s\n",
+                lookup.getMessageIdCount(), e);
+            lookUpSeparately(gmail, batch, lookup, results);
+          }
+
+          @Override
+          public void onSuccess(ListMessagesResponse response, HttpHeaders responseHeaders)
+              throws IOException {
+            if (response.getNextPageToken() != null) {
+              lookUpSeparately(gmail, batch, lookup, results);
+              return;
+            }
+            List<Message> messages =
+                response.getMessages() == null ? ImmutableList.of() : response.getMessages();
+            lookup.pendingGets = messages.size();
+            for (Message message : messages) {
+              queueGetMessageIdHeader(gmail, batch, lookup, message.getId(), results);
+            }
+          }
+        });
+  }
+
+  /** Fetches the {@code Message-ID} header of a message found by a combined lookup. */
+  private void queueGetMessageIdHeader(
+      Gmail gmail,
+      RetryingBatch batch,
+      CombinedLookup lookup,
+      String gmailId,
+      Multimap<LocalMessage, Message> results)
+      throws IOException {
+    batch.queue(
+        newGetMessageIdHeader(gmail, gmailId),
+        QuotaLimiter.Method.MESSAGES_GET,
+        new JsonBatchCallback<Message>() {
+          @Override
+          public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+            lookup.ambiguous = true;
+            finishCombinedLookup(gmail, batch, lookup, results);
+          }
+
+          @Override
+          public void onSuccess(Message message, HttpHeaders responseHeaders) throws IOException {
+            String messageId = normalizeMessageId(getMessageIdHeader(message));
+            if (messageId != null && lookup.localMessagesById.containsKey(messageId)) {
+              lookup.gmailMessagesById.put(messageId, new Message().setId(message.getId()));
+            } else {
+              lookup.ambiguous = true;
+            }
+            finishCombinedLookup(gmail, batch, lookup, results);
+          }
+        });
+  }
+
+  private void finishCombinedLookup(
+      Gmail gmail,
+      RetryingBatch batch,
+      CombinedLookup lookup,
+      Multimap<LocalMessage, Message> results)
+      throws IOException {
+    if (--lookup.pendingGets > 0) {
+      return;
+    }
+    if (lookup.ambiguous) {
+      lookUpSeparately(gmail, batch, lookup, results);
+      return;
+    }
+    for (String messageId : lookup.gmailMessagesById.keySet()) {
+      for (LocalMessage localMessage : lookup.localMessagesById.get(messageId)) {
+        addLookupResult(localMessage, lookup.gmailMessagesById.get(messageId), results);
+      }
+    }
+  }
+
+  private void lookUpSeparately(
+      Gmail gmail,
+      RetryingBatch batch,
+      CombinedLookup lookup,
+      Multimap<LocalMessage, Message> results)
+      throws IOException {
+    for (LocalMessage localMessage : lookup.localMessagesById.values()) {
+      queueLookup(gmail, batch, localMessage, results);
+    }
+  }
+
+  /** Returns a request for just the {@code Message-ID} header of a Gmail message. */
+  private Gmail.Users.Messages.Get newGetMessageIdHeader(Gmail gmail, String gmailId)
+      throws IOException {
+    return gmail
+        .users()
+        .messages()
+        .get(user.getEmailAddress(), gmailId)
+        .setFormat("metadata")
+        .setMetadataHeaders(ImmutableList.of("Message-ID"))
+        .setFields("id,payload/headers");
+  }
+
+  @Nullable
+  private static String getMessageIdHeader(Message message) {
+    if (message.getPayload() == null || message.getPayload().getHeaders() == null) {
+      return null;
+    }
+    return message.getPayload().getHeaders().stream()
+        .filter(header -> "Message-ID".equalsIgnoreCase(header.getName()))
+        .map(MessagePartHeader::getValue)
+        .findFirst()
+        .orElse(null);
+  }
+
+  /** Gmail matches message ids with or without their angle brackets, so they are dropped. */
+  @Nullable
+  private static String normalizeMessageId(@Nullable String messageId) {
+    if (messageId == null) {
+      return null;
+    }
+    String trimmed = messageId.trim();
+    if (trimmed.startsWith("<") && trimmed.endsWith(">")) {
+      return trimmed.substring(1, trimmed.length() - 1);
+    }
+    return trimmed;
+  }
+
+  /**
+   * Fetches the labels of the Gmail messages. Messages whose labels were already set by this run,
+   * for another copy of them, are skipped and just have their own labels applied.
+   */
   void fetchExistingLabels(Iterable<Message> messages) {
     Gmail gmail = gmailService.getServiceWithRetries();
-    BatchRequest batch = gmail.batch();
+    RetryingBatch batch = newBatch(gmail);
 
     try {
       for (Message message : messages) {
-        gmail
-            .users()
-            .messages()
-            .get(user.getEmailAddress(), message.getId())
-            .setFields("id,labelIds")
-            .queue(
-                batch,
-                new JsonBatchCallback<Message>() {
-                  @Override
-                  public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
-                      throws IOException {
-                    System.err.format(
-                        "For message: %s, got error: %s\n", message.getId(), e.toPrettyString());
-                  }
+        if (seenMessages.isLabelled(message.getId())) {
+          continue;
+        }
+        batch.queue(
+            gmail
+                .users()
+                .messages()
+                .get(user.getEmailAddress(), message.getId())
+                .setFields("id,labelIds"),
+            QuotaLimiter.Method.MESSAGES_GET,
+            new JsonBatchCallback<Message>() {
+              @Override
+              public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
+                  throws IOException {
+                System.err.format(
+                    "For message: %s, got error: %s\n", message.getId(), e.toPrettyString());
+              }
 
-                  @Override
-                  public void onSuccess(Message responseMessage, HttpHeaders responseHeaders)
-                      throws IOException {
-                    Preconditions.checkState(
-                        message.getId().equals(responseMessage.getId()),
-                        "Message ids must be equal");
-                    List<String> gmailMessageIds =
-                        responseMessage.getLabelIds() == null
-                            ? ImmutableList.of()
-                            : responseMessage.getLabelIds();
-                    System.out.format(
-                        "For message %s, got labels: %s\n",
-                        responseMessage.getId(),
-                        gmailMessageIds.stream()
-                            .map(id -> labelsById.getOrDefault(id, new Label().setName(id)))
-                            .map(Label::getName)
-                            .collect(Collectors.joining(", ")));
-                    message.setLabelIds(gmailMessageIds);
-                  }
-                });
+              @Override
+              public void onSuccess(Message responseMessage, HttpHeaders responseHeaders)
+                  throws IOException {
+                Preconditions.checkState(
+                    message.getId().equals(responseMessage.getId()), "Message ids must be equal");
+                List<String> gmailMessageIds =
+                    responseMessage.getLabelIds() == null
+                        ? ImmutableList.of()
+                        : responseMessage.getLabelIds();
+                System.out.format(
+                    "For message %s, got labels: %s\n",
+                    responseMessage.getId(),
+                    gmailMessageIds.stream()
+                        .map(id -> labelsById.getOrDefault(id, new Label().setName(id)))
+                        .map(Label::getName)
+                        .collect(Collectors.joining(", ")));
+                message.setLabelIds(gmailMessageIds);
+              }
+            });
       }
       if (batch.size() > 0) {
         batch.execute();
@@ -192,6 +713,7 @@ class Mailbox {
 
   Message uploadMessage(LocalMessage localMessage) throws GoogleJsonResponseException {
     Gmail gmail = gmailService.getServiceWithRetries();
+    long rawLength = localMessage.getRawLength();
     try {
       Gmail.Users.Messages.GmailImport r =
           gmail
@@ -201,16 +723,14 @@ class Mailbox {
                   user.getEmailAddress(),
                   new Message(),
                   new AbstractInputStreamContent("message/rfc822") {
-                    byte[] bytes = localMessage.getRawContent();
-
                     @Override
                     public InputStream getInputStream() throws IOException {
-                      return new ByteArrayInputStream(bytes);
+                      return localMessage.openRawStream();
                     }
 
                     @Override
                     public long getLength() throws IOException {
-                      return bytes.length;
+                      return rawLength;
                     }
 
                     @Override
@@ -221,24 +741,44 @@ class Mailbox {
       r.getMediaHttpUploader()
           .setProgressListener(
               uploader -> {
-                System.out.format(
-                    "[%s] Progress: %2.0f        \r",
-                    uploader.getUploadState().toString(), uploader.getProgress() * 100);
+                if (rawLength < 0) {
+                  System.out.format(
+                      "[%s] Uploaded: %d bytes        \r",
+                      uploader.getUploadState().toString(), uploader.getNumBytesUploaded());
+                } else {
+                  System.out.format(
+                      "[%s] Progress: %2.0f        \r",
+                      uploader.getUploadState().toString(), uploader.getProgress() * 100);
+                }
                 System.out.flush();
               });
       System.out.println();
+      quotaLimiter.acquire(QuotaLimiter.Method.MESSAGES_IMPORT);
       Message result = r.execute();
+      quotaLimiter.recordSuccess();
       System.out.println(result.toPrettyString());
+      messageIndex.addGmailIds(localMessage.getMessageId(), ImmutableList.of(result.getId()));
+      seenMessages.putGmailId(localMessage.getMessageId(), result.getId());
+      Map<String, List<String>> gmailIdsByMessageId = preloadedGmailIds;
+      String messageId = normalizeMessageId(localMessage.getMessageId());
+      if (gmailIdsByMessageId != null && messageId != null) {
+        addPreloadedGmailId(gmailIdsByMessageId, messageId, result.getId());
+      }
+      statistics.recordUpload();
       return result;
     } catch (GoogleJsonResponseException e) {
-      if (e.getDetails().getMessage().equalsIgnoreCase("Invalid From header")) {
+      if (e.getDetails() != null) {
+        quotaLimiter.recordFailure(e.getDetails());
+      }
+      if (e.getDetails() != null
+          && e.getDetails().getMessage().equalsIgnoreCase("Invalid From header")) {
         throw e;
       }
       throw new RuntimeException(e);
     } catch (IOException e) {
       System.err.format("Failed to upload message: \n");
-      try {
-        ByteStreams.copy(new ByteArrayInputStream(localMessage.getRawContent()), System.err);
+      try (InputStream rawStream = localMessage.openRawStream()) {
+        ByteStreams.copy(rawStream, System.err);
       } catch (IOException e1) {
         System.err.format("Holy shit Batman! Error within an error! (%s)", e.getMessage());
       }
@@ -246,92 +786,262 @@ class Mailbox {
     }
   }
 
+  /**
+   * Makes the labels of the Gmail messages match the folders, tags and state of the local messages
+   * they were mapped to. Messages that need the same labels added and removed are changed together
+   * with {@code messages.batchModify}, so a folder full of messages usually takes a handful of
+   * requests.
+   *
+   * <p>The labels that the messages need are resolved for the whole batch first: the ones that
+   * Gmail doesn't have yet are created with a single batch of {@code labels.create} calls, so that
+   * new folders and tags are assigned by the same modifies as the labels that already exist. Each
+   * label is only created once per run, however many batches need it, so creating labels costs a
+   * request per folder or tag rather than per message. A label that can't be created is left off
+   * the messages.
+   *
+   * <p>Messages are skipped if the same change was already made for another copy of them, or if the
+   * message index or the labels fetched by {@link #fetchExistingLabels} show that Gmail already has
+   * the right labels.
+   */
   void syncLocalLabelsToGmail(Multimap<LocalMessage, Message> map) {
-    class Batches {
-      BatchRequest thisBatch;
-      BatchRequest nextBatch;
-    }
     Gmail gmail = gmailService.getServiceWithRetries();
-    Batches batches = new Batches();
-    batches.thisBatch = gmail.batch();
-    batches.nextBatch = gmail.batch();
+    Map<LocalMessage, Set<String>> labelNamesByMessage = resolveLabels(gmail, map.keySet());
+
+    RetryingBatch batch = newBatch(gmail);
+    ListMultimap<LabelDelta, Map.Entry<LocalMessage, Message>> messagesByDelta =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    for (Map.Entry<LocalMessage, Message> entry : map.entries()) {
+      LocalMessage localMessage = entry.getKey();
+      LabelDelta delta = getLabelDelta(localMessage, labelNamesByMessage.get(localMessage));
+      if (seenMessages.hasAppliedLabels(
+          localMessage.getMessageId(), delta.getLabelIdsToAdd(), delta.getLabelIdsToRemove())) {
+        statistics.recordLabelsAlreadyApplied();
+      } else if (messageIndex.hasLabelIds(
+          localMessage.getMessageId(), delta.getLabelIdsToAdd(), delta.getLabelIdsToRemove())) {
+        statistics.recordLabelsKnownFromIndex();
+        markLabelsApplied(localMessage, entry.getValue(), delta);
+      } else if (delta.isSatisfiedBy(entry.getValue())) {
+        statistics.recordLabelsAlreadyInGmail();
+        messageIndex.updateLabelIds(
+            localMessage.getMessageId(), delta.getLabelIdsToAdd(), delta.getLabelIdsToRemove());
+        markLabelsApplied(localMessage, entry.getValue(), delta);
+      } else {
+        messagesByDelta.put(delta, entry);
+      }
+    }
 
     try {
-      for (Map.Entry<LocalMessage, Message> entry : map.entries()) {
-        LocalMessage localMessage = entry.getKey();
-        Message message = entry.getValue();
-
-        Set<String> labelNamesToAdd =
-            localMessage.getFolders().stream().map(this::normalizeLabelName).collect(toSet());
-        Set<String> labelNamesToRemove = Sets.newHashSet("SPAM", "TRASH");
-        labelNamesToRemove.removeAll(labelNamesToAdd);
-
-        if (localMessage.isStarred()) {
-          labelNamesToAdd.add("STARRED");
-          labelNamesToRemove.remove("STARRED");
+      for (LabelDelta delta : messagesByDelta.keySet()) {
+        // A Gmail message can be mapped from more than one local message, but only needs changing
+        // once, so the requests are chosen by the number of Gmail messages.
+        ListMultimap<String, Map.Entry<LocalMessage, Message>> entriesByGmailId =
+            MultimapBuilder.linkedHashKeys().arrayListValues().build();
+        for (Map.Entry<LocalMessage, Message> entry : messagesByDelta.get(delta)) {
+          entriesByGmailId.put(entry.getValue().getId(), entry);
         }
-        if (localMessage.isUnread()) {
-          labelNamesToAdd.add("UNREAD");
-          labelNamesToRemove.remove("UNREAD");
+        List<String> gmailIds = new ArrayList<>(entriesByGmailId.keySet());
+        if (gmailIds.size() < MIN_BATCH_MODIFY_SIZE) {
+          for (String gmailId : gmailIds) {
+            queueModify(gmail, batch, delta, gmailId, entriesByGmailId.get(gmailId));
+          }
         } else {
-          labelNamesToRemove.add("UNREAD");
-          labelNamesToAdd.remove("UNREAD");
+          for (List<String> ids : Lists.partition(gmailIds, MAX_BATCH_MODIFY_SIZE)) {
+            queueBatchModify(gmail, batch, delta, ids, entriesByGmailId);
+          }
         }
+      }
 
-        if (!labelNamesToAdd.contains("INBOX")) {
-          labelNamesToRemove.add("INBOX");
-          labelNamesToAdd.remove("INBOX");
-        }
+      if (batch.size() > 0) {
+        batch.execute();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-        List<String> labelIdsToAdd =
-            labelNamesToAdd.stream()
-                .map(labelName -> labelsByName.get(labelName).getId())
-                .collect(toList());
-        List<String> labelIdsToRemove =
-            labelNamesToRemove.stream()
-                .map(labelName -> labelsByName.get(labelName).getId())
-                .collect(toList());
+  private void markLabelsApplied(LocalMessage localMessage, Message message, LabelDelta delta) {
+    seenMessages.markLabelsApplied(
+        localMessage.getMessageId(),
+        message.getId(),
+        delta.getLabelIdsToAdd(),
+        delta.getLabelIdsToRemove());
+  }
 
-        Gmail.Users.Messages.Modify request =
-            gmail
-                .users()
-                .messages()
-                .modify(
-                    user.getEmailAddress(),
-                    message.getId(),
-                    new ModifyMessageRequest()
-                        .setAddLabelIds(labelIdsToAdd)
-                        .setRemoveLabelIds(labelIdsToRemove));
+  /**
+   * Works out the names of the labels that each of {@code localMessages} needs and makes sure that
+   * Gmail has all of them, creating the ones it doesn't have yet.
+   */
+  private Map<LocalMessage, Set<String>> resolveLabels(
+      Gmail gmail, Collection<LocalMessage> localMessages) {
+    Map<LocalMessage, Set<String>> labelNamesByMessage = new HashMap<>();
+    for (LocalMessage localMessage : localMessages) {
+      labelNamesByMessage.put(localMessage, getLabelNames(localMessage));
+    }
+    Set<String> missingLabels = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    labelNamesByMessage.values().forEach(missingLabels::addAll);
+    missingLabels.removeIf(this::isResolved);
+    if (!missingLabels.isEmpty()) {
+      try {
+        createMissingLabels(gmail, missingLabels);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return labelNamesByMessage;
+  }
 
-        JsonBatchCallback<Message> callback =
-            new JsonBatchCallback<Message>() {
-              @Override
-              public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
-                  throws IOException {
-                System.err.format(
-                    "For message: %s, got error: %s\n", message.getId(), e.toPrettyString());
-                if (e.getCode() == TOO_MANY_CONCURRENT_REQUESTS_FOR_USER) {
-                  request.queue(batches.nextBatch, this);
-                }
-              }
+  /** Returns true if Gmail has the label {@code labelName}, or if it couldn't be created. */
+  private boolean isResolved(String labelName) {
+    return getLabel(labelName) != null || unavailableLabelNames.contains(toLabelKey(labelName));
+  }
 
-              @Override
-              public void onSuccess(Message message, HttpHeaders responseHeaders)
-                  throws IOException {
-                System.err.println(message.toPrettyString());
-              }
-            };
-        request.queue(batches.thisBatch, callback);
-      }
+  /** Returns the names of the labels for the folders and tags of a local message. */
+  private Set<String> getLabelNames(LocalMessage localMessage) {
+    Set<String> labelNames = new HashSet<>();
+    for (String folder : localMessage.getFolders()) {
+      labelNames.add(normalizeLabelName(folder));
+    }
+    for (String tag : localMessage.getTags()) {
+      labelNames.add(TAG_LABEL_PREFIX + tag);
+    }
+    return labelNames;
+  }
+
+  /**
+   * Works out which labels have to be added and removed to match a local message.
+   *
+   * @param labelNames the names of the labels for the message's folders and tags, which have been
+   *     {@linkplain #resolveLabels resolved}
+   */
+  private LabelDelta getLabelDelta(LocalMessage localMessage, Set<String> labelNames) {
+    Set<String> labelNamesToAdd = new HashSet<>(labelNames);
+    Set<String> labelNamesToRemove = Sets.newHashSet("SPAM", "TRASH");
+    labelNamesToRemove.removeAll(labelNamesToAdd);
 
-      while (batches.thisBatch.size() > 0) {
-        batches.thisBatch.execute();
-        batches.thisBatch = batches.nextBatch;
-        batches.nextBatch = gmail.batch();
+    if (localMessage.isStarred()) {
+      labelNamesToAdd.add("STARRED");
+      labelNamesToRemove.remove("STARRED");
+    }
+    if (localMessage.isUnread()) {
+      labelNamesToAdd.add("UNREAD");
+      labelNamesToRemove.remove("UNREAD");
+    } else {
+      labelNamesToRemove.add("UNREAD");
+      labelNamesToAdd.remove("UNREAD");
+    }
+
+    if (!labelNamesToAdd.contains("INBOX")) {
+      labelNamesToRemove.add("INBOX");
+      labelNamesToAdd.remove("INBOX");
+    }
+
+    return LabelDelta.create(getLabelIds(labelNamesToAdd), getLabelIds(labelNamesToRemove));
+  }
+
+  /** Returns the ids of the labels, leaving out the ones that couldn't be created. */
+  private List<String> getLabelIds(Set<String> labelNames) {
+    List<String> labelIds = new ArrayList<>(labelNames.size());
+    for (String labelName : labelNames) {
+      Label label = getLabel(labelName);
+      if (label != null) {
+        labelIds.add(label.getId());
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
+    return labelIds;
+  }
+
+  /**
+   * Queues a {@code messages.modify} of the Gmail message {@code gmailId}, which {@code entries}
+   * are the local copies of.
+   */
+  private void queueModify(
+      Gmail gmail,
+      RetryingBatch batch,
+      LabelDelta delta,
+      String gmailId,
+      List<Map.Entry<LocalMessage, Message>> entries)
+      throws IOException {
+    Gmail.Users.Messages.Modify request =
+        gmail
+            .users()
+            .messages()
+            .modify(
+                user.getEmailAddress(),
+                gmailId,
+                new ModifyMessageRequest()
+                    .setAddLabelIds(delta.getLabelIdsToAdd().asList())
+                    .setRemoveLabelIds(delta.getLabelIdsToRemove().asList()));
+
+    JsonBatchCallback<Message> callback =
+        new JsonBatchCallback<Message>() {
+          @Override
+          public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+            System.err.format("For message: %s, got error: %s\n", gmailId, e.toPrettyString());
+          }
+
+          @Override
+          public void onSuccess(Message message, HttpHeaders responseHeaders) throws IOException {
+            System.err.println(message.toPrettyString());
+            statistics.recordRelabelled(1);
+            for (Map.Entry<LocalMessage, Message> entry : entries) {
+              messageIndex.updateLabelIds(
+                  entry.getKey().getMessageId(),
+                  delta.getLabelIdsToAdd(),
+                  delta.getLabelIdsToRemove());
+              markLabelsApplied(entry.getKey(), entry.getValue(), delta);
+            }
+          }
+        };
+    batch.queue(request, QuotaLimiter.Method.MESSAGES_MODIFY, callback);
+  }
+
+  /**
+   * Queues a {@code messages.batchModify} of the Gmail messages {@code ids}, whose local copies are
+   * in {@code entriesByGmailId}.
+   */
+  private void queueBatchModify(
+      Gmail gmail,
+      RetryingBatch batch,
+      LabelDelta delta,
+      List<String> ids,
+      ListMultimap<String, Map.Entry<LocalMessage, Message>> entriesByGmailId)
+      throws IOException {
+    Gmail.Users.Messages.BatchModify request =
+        gmail
+            .users()
+            .messages()
+            .batchModify(
+                user.getEmailAddress(),
+                new BatchModifyMessagesRequest()
+                    .setIds(ids)
+                    .setAddLabelIds(delta.getLabelIdsToAdd().asList())
+                    .setRemoveLabelIds(delta.getLabelIdsToRemove().asList()));
+
+    JsonBatchCallback<Void> callback =
+        new JsonBatchCallback<Void>() {
+          @Override
+          public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+            System.err.format(
+                "For %d messages starting with %s, got error: %s\n",
+                ids.size(), ids.get(0), e.toPrettyString());
+          }
+
+          @Override
+          public void onSuccess(Void response, HttpHeaders responseHeaders) {
+            System.err.format("Changed the labels of %d messages\n", ids.size());
+            statistics.recordRelabelled(ids.size());
+            for (String id : ids) {
+              for (Map.Entry<LocalMessage, Message> entry : entriesByGmailId.get(id)) {
+                messageIndex.updateLabelIds(
+                    entry.getKey().getMessageId(),
+                    delta.getLabelIdsToAdd(),
+                    delta.getLabelIdsToRemove());
+                markLabelsApplied(entry.getKey(), entry.getValue(), delta);
+              }
+            }
+          }
+        };
+    batch.queue(request, QuotaLimiter.Method.MESSAGES_BATCH_MODIFY, callback);
   }
 
   String normalizeLabelName(String localLabel) {
@@ -350,120 +1060,67 @@ class Mailbox {
     return localLabel;
   }
 
-  private void syncLabels(
-      Gmail gmailApi,
-      BiMap<String, String> labelIdToNameMap,
-      Multimap<LocalMessage, Message> localMessageToGmailMessages)
-      throws IOException {
-    BatchRequest relabelBatch = gmailApi.batch();
-    for (Map.Entry<LocalMessage, Message> entry : localMessageToGmailMessages.entries()) {
-      LocalMessage localMessage = entry.getKey();
-      Message gmailMessage = entry.getValue();
-
-      Set<String> gmailLabels =
-          gmailMessage.getLabelIds() == null
-              ? ImmutableSet.of()
-              : gmailMessage.getLabelIds().stream()
-                  .map(labelIdToNameMap::get)
-                  .collect(Collectors.toSet());
-
-      List<String> missingLabelIds =
-          localMessage.getFolders().stream()
-              .map(folder -> folder.equalsIgnoreCase("Inbox") ? "INBOX" : folder)
-              .filter(folder -> !gmailLabels.contains(folder))
-              .map(folder -> labelIdToNameMap.inverse().get(folder))
-              .collect(Collectors.toList());
-
-      if (localMessage.isUnread() && !gmailLabels.contains("UNREAD")) {
-        missingLabelIds.add("UNREAD");
-      }
-      if (localMessage.isStarred() && !gmailLabels.contains("STARRED")) {
-        missingLabelIds.add("STARRED");
+  /**
+   * Creates the labels in {@code labelNames} that Gmail doesn't have yet, all in one batch, and
+   * remembers them along with the labels that {@link #loadLabels()} loaded. Labels that conflict
+   * with ones created since the labels were loaded, by another batch or outside of the importer,
+   * are loaded again instead. Labels that can't be created at all are remembered as well, so that
+   * later batches don't try again.
+   */
+  private void createMissingLabels(Gmail gmailApi, Set<String> labelNames) throws IOException {
+    synchronized (labelCreationLock) {
+      // Another batch may have created some of the labels while this one waited.
+      Set<String> missingLabels = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+      labelNames.stream().filter(labelName -> !isResolved(labelName)).forEach(missingLabels::add);
+      if (missingLabels.isEmpty()) {
+        return;
       }
 
-      for (String folder : localMessage.getFolders()) {
-        if (!gmailLabels.contains(folder)) {
-          System.out.format(
-              "Trying to add labels %s to %s\n",
-              missingLabelIds.stream().map(labelIdToNameMap::get).collect(Collectors.joining(", ")),
-              gmailMessage.getId());
-          gmailApi
-              .users()
-              .messages()
-              .modify(
-                  user.getEmailAddress(),
-                  gmailMessage.getId(),
-                  new ModifyMessageRequest().setAddLabelIds(missingLabelIds))
-              .queue(
-                  relabelBatch,
-                  new JsonBatchCallback<Message>() {
-                    @Override
-                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
-                        throws IOException {
-                      System.err.format(
-                          "For label ids %s, got error: %s\n", missingLabelIds, e.toPrettyString());
-                    }
-
-                    @Override
-                    public void onSuccess(Message message, HttpHeaders responseHeaders)
-                        throws IOException {
-                      System.out.format(
-                          "Successfully added labels %s to %s\n",
-                          missingLabelIds.stream()
-                              .map(labelIdToNameMap::get)
-                              .collect(Collectors.joining(", ")),
-                          message.getId());
-                    }
-                  });
-        }
-      }
-      if (relabelBatch.size() > 0) {
-        relabelBatch.execute();
-      }
-    }
-  }
-
-  private void createMissingLabels(
-      Gmail gmailApi, final BiMap<String, String> labelIdToNameMap, Set<LocalMessage> localMessages)
-      throws IOException {
-
-    Set<String> missingLabels =
-        localMessages.stream()
-            .flatMap(localMessage -> localMessage.getFolders().stream())
-            .filter(folder -> !"INBOX".equalsIgnoreCase(folder))
-            .filter(folder -> !labelIdToNameMap.containsValue(folder))
-            .collect(Collectors.toSet());
-
-    if (!missingLabels.isEmpty()) {
-      BatchRequest batchRequest = gmailApi.batch();
+      Set<String> conflictingLabels = ConcurrentHashMap.newKeySet();
+      RetryingBatch batchRequest = newBatch(gmailApi);
       for (String label : missingLabels) {
         System.err.format("Adding label %s\n", label);
-        gmailApi
-            .users()
-            .labels()
-            .create(
-                user.getEmailAddress(),
-                new Label()
-                    .setName(label)
-                    .setLabelListVisibility("labelHide")
-                    .setMessageListVisibility("show"))
-            .queue(
-                batchRequest,
-                new JsonBatchCallback<Label>() {
-                  @Override
-                  public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
-                      throws IOException {
-                    System.err.format("For label %s, got error: %s\n", label, e.toPrettyString());
-                  }
+        batchRequest.queue(
+            gmailApi
+                .users()
+                .labels()
+                .create(
+                    user.getEmailAddress(),
+                    new Label()
+                        .setName(label)
+                        .setLabelListVisibility("labelHide")
+                        .setMessageListVisibility("show")),
+            QuotaLimiter.Method.LABELS_CREATE,
+            new JsonBatchCallback<Label>() {
+              @Override
+              public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
+                  throws IOException {
+                if (e.getCode() == LABEL_CONFLICT) {
+                  conflictingLabels.add(label);
+                } else {
+                  System.err.format("For label %s, got error: %s\n", label, e.toPrettyString());
+                  unavailableLabelNames.add(toLabelKey(label));
+                }
+              }
 
-                  @Override
-                  public void onSuccess(Label label, HttpHeaders responseHeaders)
-                      throws IOException {
-                    labelIdToNameMap.put(label.getId(), label.getName());
-                  }
-                });
+              @Override
+              public void onSuccess(Label label, HttpHeaders responseHeaders) throws IOException {
+                statistics.recordLabelCreated();
+                addLabel(label);
+              }
+            });
       }
       batchRequest.execute();
+
+      if (!conflictingLabels.isEmpty()) {
+        loadLabels();
+        for (String label : conflictingLabels) {
+          if (getLabel(label) == null) {
+            System.err.format("Label %s conflicts with an existing label\n", label);
+            unavailableLabelNames.add(toLabelKey(label));
+          }
+        }
+      }
     }
   }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+/**
+ * Remembers, across runs, which Gmail messages correspond to each RFC822 message id and which
+ * labels have been applied to them. This lets an interrupted import be restarted without asking
+ * Gmail about every message that was already imported.
+ *
+ * <p>The index is kept in memory and persisted to an append-only log. Every change appends a record
+ * with the complete, new state of the message id, so the last record for a message id wins. Each
+ * record carries a CRC so that a record torn by a crash is detected and dropped when the log is
+ * next opened. When the log holds many more records than message ids, it is compacted on open by
+ * writing a new log and atomically renaming it over the old one.
+ *
+ * <p>If no index file is configured, the index is always empty and remembers nothing.
+ */
+@ThreadSafe
+class MessageIndex {
+  private static final int MAGIC = 0x4d49_4958; // "MIIX"
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 8;
+  private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+  /** What the index knows about a message id. */
+  @AutoValue
+  abstract static class Entry {
+    private static final Entry EMPTY = create(ImmutableSet.of(), ImmutableSet.of());
+
+    static Entry create(Set<String> gmailIds, Set<String> labelIds) {
+      return new AutoValue_MessageIndex_Entry(
+          ImmutableSet.copyOf(gmailIds), ImmutableSet.copyOf(labelIds));
+    }
+
+    /** The ids of the Gmail messages with the message id. */
+    abstract ImmutableSet<String> getGmailIds();
+
+    /** The ids of the labels that were last known to be on the Gmail messages. */
+    abstract ImmutableSet<String> getLabelIds();
+  }
+
+  private final Logger logger;
+  @Nullable private final Path path;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  @Nullable private FileChannel log;
+
+  @Inject
+  MessageIndex(Logger logger, SyncOptions options) {
+    this.logger = logger;
+    this.path = options.getMessageIndexPath().orElse(null);
+  }
+
+  /**
+   * Loads the index from disk. Does nothing if there is no index file or it has already been
+   * opened.
+   *
+   * @throws IOException if the index file can't be read or written
+   */
+  synchronized void open() throws IOException {
+    if (path == null || log != null) {
+      return;
+    }
+
+    long records = 0;
+    long validLength = HEADER_LENGTH;
+    if (Files.exists(path) && Files.size(path) > 0) {
+      try (InputStream inputStream = Files.newInputStream(path)) {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        Preconditions.checkState(
+            input.readInt() == MAGIC && input.readInt() == VERSION,
+            "%s is not a message index",
+            path);
+        Optional<Long> recordLength;
+        while ((recordLength = readRecord(input)).isPresent()) {
+          validLength += recordLength.get();
+          records++;
+        }
+      }
+    }
+    logger.info(() -> String.format("Loaded %d message ids from %s", entries.size(), path));
+
+    if (records > 2 * entries.size() + 1000) {
+      compact();
+    } else {
+      log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (log.size() == 0) {
+        writeHeader(log);
+      }
+      // Drops whatever a crash may have left half-written after the last good record.
+      log.truncate(validLength);
+      log.position(validLength);
+    }
+  }
+
+  /** Returns what is known about {@code messageId}, if anything. */
+  Optional<Entry> get(String messageId) {
+    return Optional.ofNullable(entries.get(messageId));
+  }
+
+  /** Remembers that {@code gmailIds} are Gmail messages with the given {@code messageId}. */
+  void addGmailIds(String messageId, Collection<String> gmailIds) {
+    update(
+        messageId,
+        entry ->
+            entry.getGmailIds().containsAll(gmailIds)
+                ? entry
+                : Entry.create(
+                    Sets.union(entry.getGmailIds(), ImmutableSet.copyOf(gmailIds)),
+                    entry.getLabelIds()));
+  }
+
+  /** Remembers that the labels on the Gmail messages with {@code messageId} were modified. */
+  void updateLabelIds(
+      String messageId, Collection<String> addedLabelIds, Collection<String> removedLabelIds) {
+    update(
+        messageId,
+        entry -> {
+          Set<String> labelIds = Sets.newHashSet(entry.getLabelIds());
+          labelIds.removeAll(removedLabelIds);
+          labelIds.addAll(addedLabelIds);
+          return labelIds.equals(entry.getLabelIds())
+              ? entry
+              : Entry.create(entry.getGmailIds(), labelIds);
+        });
+  }
+
+  /**
+   * Returns whether the labels on the Gmail messages with {@code messageId} are known to already
+   * include all of {@code addedLabelIds} and none of {@code removedLabelIds}.
+   */
+  boolean hasLabelIds(
+      String messageId, Collection<String> addedLabelIds, Collection<String> removedLabelIds) {
+    Entry entry = entries.get(messageId);
+    return entry != null
+        && entry.getLabelIds().containsAll(addedLabelIds)
+        && removedLabelIds.stream().noneMatch(entry.getLabelIds()::contains);
+  }
+
+  private synchronized void update(String messageId, UnaryOperator<Entry> updater) {
+    if (path == null) {
+      return;
+    }
+    Preconditions.checkState(log != null, "MessageIndex.open() must be called first");
+    Entry entry = entries.getOrDefault(messageId, Entry.EMPTY);
+    Entry updated = updater.apply(entry);
+    if (updated == entry) {
+      return;
+    }
+    try {
+      ByteBuffer record = ByteBuffer.wrap(encodeRecord(messageId, updated));
+      while (record.hasRemaining()) {
+        log.write(record);
+      }
+      entries.put(messageId, updated);
+    } catch (IOException e) {
+      // Losing the index only costs time on the next run, so keep importing.
+      logger.warning(() -> "Could not update message index: " + e);
+    }
+  }
+
+  /** Rewrites the log so that it has exactly one record per message id. */
+  private void compact() throws IOException {
+    Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            compacted,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeHeader(channel);
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        ByteBuffer record = ByteBuffer.wrap(encodeRecord(entry.getKey(), entry.getValue()));
+        while (record.hasRemaining()) {
+          channel.write(record);
+        }
+      }
+      channel.force(true);
+    }
+    Files.move(
+        compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private static void writeHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+  }
+
+  /*
+   * A record is the length of the payload, the payload and the CRC32 of the payload. The payload is
+   * the message id, followed by the counts and values of the Gmail ids and the label ids.
+   */
+  private static byte[] encodeRecord(String messageId, Entry entry) {
+    ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+    payload.writeUTF(messageId);
+    payload.writeInt(entry.getGmailIds().size());
+    for (String gmailId : entry.getGmailIds()) {
+      payload.writeUTF(gmailId);
+    }
+    payload.writeInt(entry.getLabelIds().size());
+    for (String labelId : entry.getLabelIds()) {
+      payload.writeUTF(labelId);
+    }
+    byte[] bytes = payload.toByteArray();
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    ByteArrayDataOutput record = ByteStreams.newDataOutput(bytes.length + 8);
+    record.writeInt(bytes.length);
+    record.write(bytes);
+    record.writeInt((int) crc.getValue());
+    return record.toByteArray();
+  }
+
+  /**
+   * Reads the next record into {@link #entries}.
+   *
+   * @return the length of the record, or empty if there are no more complete, valid records
+   */
+  private Optional<Long> readRecord(DataInputStream input) throws IOException {
+    try {
+      int length = input.readInt();
+      if (length <= 0 || length > MAX_RECORD_LENGTH) {
+        return Optional.empty();
+      }
+      byte[] bytes = new byte[length];
+      input.readFully(bytes);
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      if (input.readInt() != (int) crc.getValue()) {
+        return Optional.empty();
+      }
+
+      DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+      String messageId = payload.readUTF();
+      ImmutableSet.Builder<String> gmailIds = ImmutableSet.builder();
+      for (int i = payload.readInt(); i > 0; i--) {
+        gmailIds.add(payload.readUTF());
+      }
+      ImmutableSet.Builder<String> labelIds = ImmutableSet.builder();
+      for (int i = payload.readInt(); i > 0; i--) {
+        labelIds.add(payload.readUTF());
+      }
+      entries.put(messageId, Entry.create(gmailIds.build(), labelIds.build()));
+      return Optional.of((long) length + 8);
+    } catch (EOFException e) {
+      return Optional.empty();
+    }
+  }
+}
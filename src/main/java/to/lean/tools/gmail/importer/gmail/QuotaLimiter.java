@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.Inject;
+
+/**
+ * Paces the requests made to Gmail so that they stay within the user's quota, instead of running
+ * into rate limit errors and backing off.
+ *
+ * <p>Gmail charges each API method a number of quota units, and limits how many units a user may
+ * spend per second. Callers {@link #acquire} the units for a request before sending it. The rate
+ * starts at {@link SyncOptions#getQuotaUnitsPerSecond()} and adapts to what Gmail actually allows:
+ * it is halved when Gmail says a request was rate limited, and creeps back up with each request
+ * that succeeds.
+ */
+@ThreadSafe
+class QuotaLimiter {
+
+  /** The Gmail API methods that the importer calls, with the quota units that each one costs. */
+  enum Method {
+    LABELS_CREATE(5),
+    LABELS_LIST(1),
+    MESSAGES_BATCH_MODIFY(50),
+    MESSAGES_GET(5),
+    MESSAGES_IMPORT(25),
+    MESSAGES_LIST(5),
+    MESSAGES_MODIFY(5);
+
+    private final int quotaUnits;
+
+    Method(int quotaUnits) {
+      this.quotaUnits = quotaUnits;
+    }
+
+    int getQuotaUnits() {
+      return quotaUnits;
+    }
+  }
+
+  /** The reasons that Gmail gives for a 403 when the request was rate limited. */
+  private static final ImmutableSet<String> RATE_LIMIT_REASONS =
+      ImmutableSet.of("rateLimitExceeded", "userRateLimitExceeded");
+
+  /** The rate never drops below this fraction of the maximum, so the import keeps moving. */
+  private static final double MIN_RATE_FRACTION = 0.05;
+
+  /** Each success raises the rate by this fraction of the maximum. */
+  private static final double INCREASE_FRACTION = 0.002;
+
+  /**
+   * Errors within this long of a decrease are caused by requests that were sent before it, so they
+   * don't decrease the rate again.
+   */
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final RateLimiter rateLimiter;
+  private final double maxRate;
+  private final Ticker ticker;
+
+  @GuardedBy("this")
+  private double rate;
+
+  @GuardedBy("this")
+  private long lastDecreaseNanos;
+
+  @GuardedBy("this")
+  private boolean decreased;
+
+  @Inject
+  QuotaLimiter(SyncOptions options) {
+    this(options.getQuotaUnitsPerSecond(), Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  QuotaLimiter(double maxRate, Ticker ticker) {
+    this.rateLimiter = RateLimiter.create(maxRate);
+    this.maxRate = maxRate;
+    this.rate = maxRate;
+    this.ticker = ticker;
+  }
+
+  /** Blocks until the quota for one call to {@code method} is available. */
+  void acquire(Method method) {
+    rateLimiter.acquire(method.getQuotaUnits());
+  }
+
+  /** Records that a request succeeded, which raises the rate a little if it was lowered. */
+  synchronized void recordSuccess() {
+    if (rate < maxRate) {
+      setRate(Math.min(maxRate, rate + maxRate * INCREASE_FRACTION));
+    }
+  }
+
+  /**
+   * Records that a request failed. If Gmail rate limited the request, the rate is halved.
+   *
+   * @return whether the request was rate limited
+   */
+  boolean recordFailure(GoogleJsonError error) {
+    if (!isRateLimited(error)) {
+      return false;
+    }
+    synchronized (this) {
+      long now = ticker.read();
+      if (!decreased || now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+        setRate(Math.max(maxRate * MIN_RATE_FRACTION, rate / 2));
+        lastDecreaseNanos = now;
+        decreased = true;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the number of quota units per second that requests are currently paced to. */
+  synchronized double getRate() {
+    return rate;
+  }
+
+  @GuardedBy("this")
+  private void setRate(double newRate) {
+    rate = newRate;
+    rateLimiter.setRate(newRate);
+  }
+
+  /** Returns true if {@code error} means that the user has sent too many requests. */
+  static boolean isRateLimited(GoogleJsonError error) {
+    if (error.getCode() == Mailbox.TOO_MANY_CONCURRENT_REQUESTS_FOR_USER) {
+      return true;
+    }
+    return error.getCode() == 403
+        && error.getErrors() != null
+        && error.getErrors().stream()
+            .anyMatch(errorInfo -> RATE_LIMIT_REASONS.contains(errorInfo.getReason()));
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.gmail.Gmail;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.primitives.Longs;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.inject.Provider;
+
+/**
+ * A batch of Gmail requests that retries the requests in it that fail for transient reasons.
+ *
+ * <p>Gmail answers each request in a batch separately, so some of them can be rate limited or hit a
+ * backend error while the rest succeed. Those requests are held back rather than retried straight
+ * away. Each one waits for its own {@link BackOff}, which grows exponentially and is jittered so
+ * that the retries don't arrive all at once. The retries that are due at the same time are sent
+ * together in a later batch. A request is only reported as failed to its callback once its back-off
+ * gives up, or straight away if the error isn't transient.
+ *
+ * <p>Every request also waits for its quota from the {@link QuotaLimiter} before it is sent, and
+ * reports back how it went.
+ *
+ * <p>Gmail rejects batches of more than {@value #MAX_REQUESTS_PER_BATCH} requests, so the requests
+ * that are due are split into as many batches as it takes, each also kept under {@value
+ * #MAX_BYTES_PER_BATCH} bytes. Given an executor, the batches are sent at the same time. Their
+ * callbacks are still run one at a time, so they don't need to be thread safe.
+ */
+@NotThreadSafe
+class RetryingBatch {
+
+  /** The most requests that Gmail accepts in one batch. */
+  @VisibleForTesting static final int MAX_REQUESTS_PER_BATCH = 100;
+
+  /**
+   * The most bytes, roughly, to put in one batch. A batch of large {@code messages.batchModify}
+   * requests can get big long before it has {@value #MAX_REQUESTS_PER_BATCH} of them.
+   */
+  @VisibleForTesting static final int MAX_BYTES_PER_BATCH = 1 << 20;
+
+  /** Roughly how many bytes each request adds to a batch besides its URL and content. */
+  private static final int BYTES_PER_REQUEST = 200;
+
+  /** A request that has yet to be sent, or sent again. */
+  private class Entry<T> {
+    final AbstractGoogleJsonClientRequest<T> request;
+    final QuotaLimiter.Method method;
+    final JsonBatchCallback<T> callback;
+    final long estimatedBytes;
+    BackOff backOff;
+    long dueNanos;
+
+    Entry(
+        AbstractGoogleJsonClientRequest<T> request,
+        QuotaLimiter.Method method,
+        JsonBatchCallback<T> callback) {
+      this.request = request;
+      this.method = method;
+      this.callback = callback;
+      this.estimatedBytes = estimateBytes(request);
+      this.dueNanos = clock.nanoTime();
+    }
+
+    void queue(BatchRequest batch) throws IOException {
+      request.queue(
+          batch,
+          new JsonBatchCallback<T>() {
+            @Override
+            public void onSuccess(T response, HttpHeaders responseHeaders) throws IOException {
+              quotaLimiter.recordSuccess();
+              synchronized (RetryingBatch.this) {
+                callback.onSuccess(response, responseHeaders);
+              }
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
+                throws IOException {
+              synchronized (RetryingBatch.this) {
+                if (shouldRetry(e) && scheduleRetry(responseHeaders)) {
+                  return;
+                }
+                callback.onFailure(e, responseHeaders);
+              }
+            }
+          });
+    }
+
+    /** Returns whether the request will be sent again. */
+    @GuardedBy("RetryingBatch.this")
+    private boolean scheduleRetry(HttpHeaders responseHeaders) throws IOException {
+      if (backOff == null) {
+        backOff = backOffProvider.get();
+      }
+      long backOffMillis = backOff.nextBackOffMillis();
+      if (backOffMillis == BackOff.STOP) {
+        return false;
+      }
+      long delayMillis = Math.max(backOffMillis, getRetryAfterMillis(responseHeaders));
+      dueNanos = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+      pending.add(this);
+      return true;
+    }
+  }
+
+  private final Gmail gmail;
+  private final QuotaLimiter quotaLimiter;
+  private final Provider<BackOff> backOffProvider;
+  private final Sleeper sleeper;
+  private final NanoClock clock;
+
+  /** Sends batches when more than one may be in flight, {@code null} otherwise. */
+  @Nullable private final Executor executor;
+
+  @GuardedBy("this")
+  private final List<Entry<?>> pending = new ArrayList<>();
+
+  RetryingBatch(
+      Gmail gmail,
+      QuotaLimiter quotaLimiter,
+      Provider<BackOff> backOffProvider,
+      Sleeper sleeper,
+      NanoClock clock,
+      @Nullable Executor executor) {
+    this.gmail = gmail;
+    this.quotaLimiter = quotaLimiter;
+    this.backOffProvider = backOffProvider;
+    this.sleeper = sleeper;
+    this.clock = clock;
+    this.executor = executor;
+  }
+
+  /** Adds a request to the batch. Nothing is sent until {@link #execute()} is called. */
+  <T> void queue(
+      AbstractGoogleJsonClientRequest<T> request,
+      QuotaLimiter.Method method,
+      JsonBatchCallback<T> callback) {
+    Entry<T> entry = new Entry<>(request, method, callback);
+    synchronized (this) {
+      pending.add(entry);
+    }
+  }
+
+  /** Returns the number of requests waiting to be sent. */
+  synchronized int size() {
+    return pending.size();
+  }
+
+  /**
+   * Sends all of the requests, and keeps sending the ones that are retried until none are left. The
+   * callbacks are run one at a time, on this thread or on the executor's.
+   *
+   * @throws IOException if a whole batch fails, or if the thread is interrupted while waiting for a
+   *     retry
+   */
+  void execute() throws IOException {
+    while (true) {
+      long now = clock.nanoTime();
+      long firstDueNanos;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        firstDueNanos = pending.stream().mapToLong(entry -> entry.dueNanos).min().getAsLong();
+      }
+      if (firstDueNanos > now) {
+        sleep(firstDueNanos - now);
+        now = clock.nanoTime();
+      }
+      executeAll(takeDueBatches(now));
+    }
+  }
+
+  /** Removes the requests that are due from the pending list, split into batches Gmail accepts. */
+  private synchronized List<BatchRequest> takeDueBatches(long now) throws IOException {
+    List<BatchRequest> batches = new ArrayList<>();
+    BatchRequest batch = null;
+    long batchBytes = 0;
+    for (Iterator<Entry<?>> iterator = pending.iterator(); iterator.hasNext(); ) {
+      Entry<?> entry = iterator.next();
+      if (entry.dueNanos > now) {
+        continue;
+      }
+      iterator.remove();
+      if (batch == null
+          || batch.size() == MAX_REQUESTS_PER_BATCH
+          || batchBytes + entry.estimatedBytes > MAX_BYTES_PER_BATCH) {
+        batch = gmail.batch();
+        batches.add(batch);
+        batchBytes = 0;
+      }
+      quotaLimiter.acquire(entry.method);
+      entry.queue(batch);
+      batchBytes += entry.estimatedBytes;
+    }
+    return batches;
+  }
+
+  private void executeAll(List<BatchRequest> batches) throws IOException {
+    if (executor == null || batches.size() == 1) {
+      for (BatchRequest batch : batches) {
+        batch.execute();
+      }
+      return;
+    }
+
+    List<CompletableFuture<Void>> futures = new ArrayList<>(batches.size());
+    for (BatchRequest batch : batches) {
+      futures.add(
+          CompletableFuture.runAsync(
+              () -> {
+                try {
+                  batch.execute();
+                } catch (IOException e) {
+                  throw new CompletionException(e);
+                }
+              },
+              executor));
+    }
+    // Every batch is waited for, even after one fails, so that no callbacks run after this returns.
+    Throwable failure = null;
+    for (CompletableFuture<Void> future : futures) {
+      try {
+        future.join();
+      } catch (CompletionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      }
+    }
+    if (failure != null) {
+      Throwables.throwIfInstanceOf(failure, IOException.class);
+      Throwables.throwIfUnchecked(failure);
+      throw new IOException(failure);
+    }
+  }
+
+  private void sleep(long nanos) throws InterruptedIOException {
+    try {
+      // Round up, so that the entry is due when the sleep is over.
+      sleeper.sleep(TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry Gmail requests");
+    }
+  }
+
+  /** Records the error with the quota limiter, and returns whether it might go away on a retry. */
+  private boolean shouldRetry(GoogleJsonError e) {
+    return quotaLimiter.recordFailure(e) || e.getCode() >= 500;
+  }
+
+  /** Estimates how many bytes {@code request} adds to a batch. */
+  private static long estimateBytes(AbstractGoogleJsonClientRequest<?> request) {
+    long bytes = BYTES_PER_REQUEST + request.buildHttpRequestUrl().build().length();
+    HttpContent content = request.getHttpContent();
+    if (content != null) {
+      try {
+        bytes += Math.max(0, content.getLength());
+      } catch (IOException e) {
+        // The content can't be measured here; the request will still be sent.
+      }
+    }
+    return bytes;
+  }
+
+  /** Returns how long the response asks for requests to wait, or 0 if it doesn't say. */
+  private static long getRetryAfterMillis(HttpHeaders responseHeaders) {
+    Object retryAfter = responseHeaders == null ? null : responseHeaders.get("retry-after");
+    if (retryAfter instanceof List && !((List<?>) retryAfter).isEmpty()) {
+      retryAfter = ((List<?>) retryAfter).get(0);
+    }
+    Long seconds = retryAfter == null ? null : Longs.tryParse(retryAfter.toString().trim());
+    return seconds == null ? 0 : TimeUnit.SECONDS.toMillis(seconds);
+  }
+}
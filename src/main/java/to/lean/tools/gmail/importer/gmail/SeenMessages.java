@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.util.Collection;
+import java.util.Optional;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Remembers, for the rest of a run, the messages that have already been handled, so that the other
+ * copies of a message in other folders don't have to be looked up in Gmail again.
+ *
+ * <p>An archive can hold millions of messages, so nothing is kept per message but a few longs in
+ * open addressing tables. Message ids are keyed by a 64-bit hash of their text. Two message ids
+ * with the same hash would be taken for the same message, but with ten million message ids the
+ * chance of that is around one in a few hundred thousand. Gmail ids are 16 hex digits, so they are
+ * kept as the long that they spell; any other Gmail id is simply not remembered.
+ *
+ * <p>Unlike the {@link MessageIndex}, nothing is written to disk.
+ */
+@ThreadSafe
+class SeenMessages {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  private static final int GMAIL_ID_LENGTH = 16;
+
+  /** The Gmail id of each message id. */
+  @GuardedBy("this")
+  private final LongTable gmailIds = new LongTable(true);
+
+  /** The Gmail ids whose labels have been set by this run. */
+  @GuardedBy("this")
+  private final LongTable labelledGmailIds = new LongTable(false);
+
+  /** The hashes of each message id together with the labels that were applied to it. */
+  @GuardedBy("this")
+  private final LongTable appliedLabels = new LongTable(false);
+
+  /** Returns the Gmail id of the message with {@code messageId}, if it has been seen before. */
+  synchronized Optional<String> getGmailId(String messageId) {
+    int slot = gmailIds.find(hash(messageId));
+    return slot < 0 ? Optional.empty() : Optional.of(formatGmailId(gmailIds.getValue(slot)));
+  }
+
+  /** Remembers that the message with {@code messageId} is the Gmail message {@code gmailId}. */
+  void putGmailId(String messageId, String gmailId) {
+    Optional<Long> parsed = parseGmailId(gmailId);
+    if (parsed.isPresent()) {
+      long key = hash(messageId);
+      synchronized (this) {
+        gmailIds.put(key, parsed.get());
+      }
+    }
+  }
+
+  /** Returns true if this run has already set the labels of the Gmail message {@code gmailId}. */
+  boolean isLabelled(String gmailId) {
+    Optional<Long> parsed = parseGmailId(gmailId);
+    if (!parsed.isPresent()) {
+      return false;
+    }
+    synchronized (this) {
+      return labelledGmailIds.find(parsed.get()) >= 0;
+    }
+  }
+
+  /**
+   * Returns true if the labels were already added to and removed from the message with {@code
+   * messageId} by this run.
+   */
+  boolean hasAppliedLabels(
+      String messageId, Collection<String> addedLabelIds, Collection<String> removedLabelIds) {
+    long key = hash(messageId, addedLabelIds, removedLabelIds);
+    synchronized (this) {
+      return appliedLabels.find(key) >= 0;
+    }
+  }
+
+  /** Remembers that the labels were added to and removed from the Gmail message. */
+  void markLabelsApplied(
+      String messageId,
+      String gmailId,
+      Collection<String> addedLabelIds,
+      Collection<String> removedLabelIds) {
+    long key = hash(messageId, addedLabelIds, removedLabelIds);
+    Optional<Long> parsed = parseGmailId(gmailId);
+    synchronized (this) {
+      appliedLabels.put(key, 0);
+      parsed.ifPresent(id -> labelledGmailIds.put(id, 0));
+    }
+  }
+
+  /** Returns the number of message ids whose Gmail id is remembered. */
+  synchronized int size() {
+    return gmailIds.size();
+  }
+
+  private static long hash(String messageId) {
+    return HASH_FUNCTION.hashString(messageId, UTF_8).asLong();
+  }
+
+  private static long hash(
+      String messageId, Collection<String> addedLabelIds, Collection<String> removedLabelIds) {
+    Hasher hasher = HASH_FUNCTION.newHasher().putString(messageId, UTF_8);
+    // Sorted, so that the order in which the labels are listed doesn't matter.
+    hasher.putChar('+');
+    addedLabelIds.stream().sorted().forEach(id -> hasher.putString(id, UTF_8).putChar('\0'));
+    hasher.putChar('-');
+    removedLabelIds.stream().sorted().forEach(id -> hasher.putString(id, UTF_8).putChar('\0'));
+    return hasher.hash().asLong();
+  }
+
+  @VisibleForTesting
+  static Optional<Long> parseGmailId(String gmailId) {
+    if (gmailId.length() != GMAIL_ID_LENGTH) {
+      return Optional.empty();
+    }
+    long id = 0;
+    for (int i = 0; i < gmailId.length(); i++) {
+      int digit = Character.digit(gmailId.charAt(i), 16);
+      if (digit < 0 || Character.isUpperCase(gmailId.charAt(i))) {
+        return Optional.empty();
+      }
+      id = id << 4 | digit;
+    }
+    return Optional.of(id);
+  }
+
+  private static String formatGmailId(long id) {
+    return String.format("%016x", id);
+  }
+
+  /**
+   * An open addressing hash table of longs, with linear probing. Keys are hashes already, so they
+   * are used as they are. The key 0 marks an empty slot, so it is stored as 1 instead.
+   */
+  @VisibleForTesting
+  static final class LongTable {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final double MAX_LOAD = 0.7;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] values;
+    private int size;
+
+    /** Creates a table that holds a value for each key, or just the keys. */
+    LongTable(boolean hasValues) {
+      this.values = hasValues ? new long[INITIAL_CAPACITY] : null;
+    }
+
+    /** Returns the slot that holds {@code key}, or -1 if the table doesn't have it. */
+    int find(long key) {
+      key = key == 0 ? 1 : key;
+      int mask = keys.length - 1;
+      for (int slot = (int) key & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    /** Adds {@code key}, or replaces its value if the table already has it. */
+    void put(long key, long value) {
+      if (size + 1 > keys.length * MAX_LOAD) {
+        resize(keys.length * 2);
+      }
+      key = key == 0 ? 1 : key;
+      int mask = keys.length - 1;
+      int slot = (int) key & mask;
+      while (keys[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (keys[slot] == 0) {
+        keys[slot] = key;
+        size++;
+      }
+      if (values != null) {
+        values[slot] = value;
+      }
+    }
+
+    /** Returns the value in a slot returned by {@link #find}. */
+    long getValue(int slot) {
+      return values[slot];
+    }
+
+    int size() {
+      return size;
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      long[] oldValues = values;
+      keys = new long[capacity];
+      values = oldValues == null ? null : new long[capacity];
+      int mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          int slot = (int) oldKeys[i] & mask;
+          while (keys[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          if (values != null) {
+            values[slot] = oldValues[i];
+          }
+        }
+      }
+    }
+  }
+}
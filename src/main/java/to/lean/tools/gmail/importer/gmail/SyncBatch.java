@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+import java.util.List;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * The state of a batch of messages as it moves through the stages of a sync. A batch is created by
+ * {@link GmailSyncer#lookUp(List)} and then handed to each of the following stages in turn. A batch
+ * is only ever worked on by one stage at a time, so it needs no synchronization of its own.
+ */
+public final class SyncBatch {
+  private final ImmutableList<LocalMessage> localMessages;
+  private final Multimap<LocalMessage, Message> gmailMessages;
+
+  SyncBatch(List<LocalMessage> localMessages, Multimap<LocalMessage, Message> gmailMessages) {
+    this.localMessages = ImmutableList.copyOf(localMessages);
+    this.gmailMessages = gmailMessages;
+  }
+
+  /** Returns the local messages in this batch, in the order they were read. */
+  public ImmutableList<LocalMessage> getLocalMessages() {
+    return localMessages;
+  }
+
+  /** Returns the Gmail messages that are known to correspond to each local message. */
+  Multimap<LocalMessage, Message> getGmailMessages() {
+    return gmailMessages;
+  }
+}
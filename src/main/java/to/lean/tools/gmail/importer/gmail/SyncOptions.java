@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/** The parts of the command line arguments that control how messages are sync'd with Gmail. */
+@AutoValue
+abstract class SyncOptions {
+  /** Gmail's limit on the quota units that one user may spend per second. */
+  static final int DEFAULT_QUOTA_UNITS_PER_SECOND = 250;
+
+  static Builder builder() {
+    return new AutoValue_SyncOptions.Builder()
+        .setUploadConcurrency(1)
+        .setBatchConcurrency(1)
+        .setMessageIdsPerQuery(1)
+        .setPreloadMessageIds(false)
+        .setQuotaUnitsPerSecond(DEFAULT_QUOTA_UNITS_PER_SECOND);
+  }
+
+  /** The maximum number of messages that may be uploaded for the user at once. */
+  abstract int getUploadConcurrency();
+
+  /** The maximum number of batches of Gmail requests that may be sent for the user at once. */
+  abstract int getBatchConcurrency();
+
+  /** The most message ids that {@link Mailbox#mapMessageIds} looks up with one Gmail search. */
+  abstract int getMessageIdsPerQuery();
+
+  /**
+   * Whether the message ids of every message in Gmail are loaded up front, so that {@link
+   * Mailbox#mapMessageIds} can answer from memory.
+   */
+  abstract boolean getPreloadMessageIds();
+
+  /** The most Gmail quota units that may be spent per second, as paced by {@link QuotaLimiter}. */
+  abstract int getQuotaUnitsPerSecond();
+
+  /** Where the {@link MessageIndex} is kept, if it should be kept at all. */
+  abstract Optional<Path> getMessageIndexPath();
+
+  @AutoValue.Builder
+  abstract static class Builder {
+    abstract Builder setUploadConcurrency(int uploadConcurrency);
+
+    abstract Builder setBatchConcurrency(int batchConcurrency);
+
+    abstract Builder setMessageIdsPerQuery(int messageIdsPerQuery);
+
+    abstract Builder setPreloadMessageIds(boolean preloadMessageIds);
+
+    abstract Builder setQuotaUnitsPerSecond(int quotaUnitsPerSecond);
+
+    abstract Builder setMessageIndexPath(Path messageIndexPath);
+
+    abstract Builder setMessageIndexPath(Optional<Path> messageIndexPath);
+
+    abstract SyncOptions autoBuild();
+
+    SyncOptions build() {
+      SyncOptions options = autoBuild();
+      Preconditions.checkArgument(
+          options.getUploadConcurrency() > 0,
+          "upload concurrency must be positive: %s",
+          options.getUploadConcurrency());
+      Preconditions.checkArgument(
+          options.getBatchConcurrency() > 0,
+          "batch concurrency must be positive: %s",
+          options.getBatchConcurrency());
+      Preconditions.checkArgument(
+          options.getMessageIdsPerQuery() > 0,
+          "message ids per query must be positive: %s",
+          options.getMessageIdsPerQuery());
+      Preconditions.checkArgument(
+          options.getQuotaUnitsPerSecond() > 0,
+          "quota units per second must be positive: %s",
+          options.getQuotaUnitsPerSecond());
+      return options;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.common.base.MoreObjects;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Counts what the sync did to the messages in Gmail, so that it can be reported at the end of a
+ * run. The counts may be updated by several stages of a pipeline at once.
+ */
+@ThreadSafe
+public class SyncStatistics {
+  private final LongAdder messagesUploaded = new LongAdder();
+  private final LongAdder messagesRelabelled = new LongAdder();
+  private final LongAdder labelsKnownFromIndex = new LongAdder();
+  private final LongAdder labelsAlreadyInGmail = new LongAdder();
+  private final LongAdder messagesSeenBefore = new LongAdder();
+  private final LongAdder labelsAlreadyApplied = new LongAdder();
+  private final LongAdder labelsCreated = new LongAdder();
+
+  void recordUpload() {
+    messagesUploaded.increment();
+  }
+
+  void recordRelabelled(int messages) {
+    messagesRelabelled.add(messages);
+  }
+
+  void recordLabelsKnownFromIndex() {
+    labelsKnownFromIndex.increment();
+  }
+
+  void recordLabelsAlreadyInGmail() {
+    labelsAlreadyInGmail.increment();
+  }
+
+  void recordSeenBefore() {
+    messagesSeenBefore.increment();
+  }
+
+  void recordLabelsAlreadyApplied() {
+    labelsAlreadyApplied.increment();
+  }
+
+  void recordLabelCreated() {
+    labelsCreated.increment();
+  }
+
+  /** Returns the number of messages that were uploaded to Gmail. */
+  public long getMessagesUploaded() {
+    return messagesUploaded.sum();
+  }
+
+  /** Returns the number of Gmail messages whose labels were changed. */
+  public long getMessagesRelabelled() {
+    return messagesRelabelled.sum();
+  }
+
+  /**
+   * Returns the number of messages whose labels were not changed because the message index says
+   * that Gmail already has them.
+   */
+  public long getLabelsKnownFromIndex() {
+    return labelsKnownFromIndex.sum();
+  }
+
+  /**
+   * Returns the number of Gmail messages whose labels were not changed because the labels fetched
+   * from Gmail already matched.
+   */
+  public long getLabelsAlreadyInGmail() {
+    return labelsAlreadyInGmail.sum();
+  }
+
+  /**
+   * Returns the number of messages that weren't looked up in Gmail because another copy of them had
+   * already been found or uploaded.
+   */
+  public long getMessagesSeenBefore() {
+    return messagesSeenBefore.sum();
+  }
+
+  /**
+   * Returns the number of messages whose labels were not changed because the same change had
+   * already been made for another copy of them.
+   */
+  public long getLabelsAlreadyApplied() {
+    return labelsAlreadyApplied.sum();
+  }
+
+  /** Returns the number of labels that were created in Gmail for local folders and tags. */
+  public long getLabelsCreated() {
+    return labelsCreated.sum();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("messagesUploaded", getMessagesUploaded())
+        .add("messagesRelabelled", getMessagesRelabelled())
+        .add("labelsKnownFromIndex", getLabelsKnownFromIndex())
+        .add("labelsAlreadyInGmail", getLabelsAlreadyInGmail())
+        .add("messagesSeenBefore", getMessagesSeenBefore())
+        .add("labelsAlreadyApplied", getLabelsAlreadyApplied())
+        .add("labelsCreated", getLabelsCreated())
+        .toString();
+  }
+}
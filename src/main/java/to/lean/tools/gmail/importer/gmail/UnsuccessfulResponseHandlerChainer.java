@@ -24,10 +24,11 @@ import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
  * <pre>{@code
  * HttpRequestInitializer httpRequestInitializer =
  *    request -> {
- *        new UnsuccessfulResponseHandlerChainer().chain(
- *            request.getUnsuccessfulResponseHandler(),
- *        new HttpBackOffUnsuccessfulResponseHandler(
- *            backoffBuilder.build()));
+ *        request.setUnsuccessfulResponseHandler(
+ *            new UnsuccessfulResponseHandlerChainer().chain(
+ *                request.getUnsuccessfulResponseHandler(),
+ *                new HttpBackOffUnsuccessfulResponseHandler(
+ *                    backoffBuilder.build())));
  *    };
  * request.setHttpRequestInitializer(httpRequestInitializer);
  * }</pre>
@@ -22,8 +22,14 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.services.gmail.Gmail;
 
-/** Created by flan on 9/5/15. */
+/** A {@link Gmail} client that, by default, talks to a {@link FakeGmailBackend}. */
 public class FakeGmail extends Gmail {
+
+  /** Creates a client for {@code backend} that uses the same {@link JsonFactory} as it does. */
+  public FakeGmail(FakeGmailBackend backend) {
+    this(backend, backend.getJsonFactory(), null);
+  }
+
   /**
    * Constructor.
    *
@@ -0,0 +1,981 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail.testing;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.BatchModifyMessagesRequest;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.ListLabelsResponse;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import com.google.api.services.gmail.model.ModifyMessageRequest;
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An in-process stand-in for the parts of the Gmail REST API that the importer uses. It is an
+ * {@link com.google.api.client.http.HttpTransport}, so a real {@link Gmail} client can be pointed
+ * at it, either through {@link FakeGmail} or by binding it as the transport that {@code
+ * GmailService} uses.
+ *
+ * <p>The backend holds a single mailbox and ignores the user id in request URLs. It implements:
+ *
+ * <ul>
+ *   <li>{@code messages.list}, without a query or with {@code rfc822msgid:} terms joined by {@code
+ *       OR}, and paging
+ *   <li>{@code messages.get}, in the default format or as {@code metadata}
+ *   <li>{@code messages.import}, as a resumable, multipart or media upload
+ *   <li>{@code messages.modify} and {@code messages.batchModify}
+ *   <li>{@code labels.list} and {@code labels.create}
+ *   <li>the batch endpoint, for up to 100 of any of the above except {@code messages.import}
+ * </ul>
+ *
+ * The {@code fields} parameter is honored for top-level fields only.
+ *
+ * <p>Every HTTP request can be delayed by a fixed latency, and so can every request inside a batch.
+ * Like Gmail, the backend rejects requests beyond a limit on concurrent requests with a 429.
+ * Failures can also be injected for each {@link ApiMethod}, either as a fixed number of failures or
+ * at a rate drawn from a seeded random number generator, so that tests stay deterministic.
+ */
+@ThreadSafe
+public class FakeGmailBackend extends MockHttpTransport {
+
+  /** The Gmail API methods that the backend implements. */
+  public enum ApiMethod {
+    LIST_MESSAGES,
+    GET_MESSAGE,
+    IMPORT_MESSAGE,
+    MODIFY_MESSAGE,
+    BATCH_MODIFY_MESSAGES,
+    LIST_LABELS,
+    CREATE_LABEL,
+    BATCH
+  }
+
+  private static final String API_PATH = "/gmail/v1/users/";
+  private static final String UPLOAD_PREFIX = "/upload";
+  private static final String BATCH_PATH = "/batch";
+  private static final String CRLF = "\r\n";
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 500;
+  private static final int MAX_BATCH_MODIFY_IDS = 1000;
+  private static final int MAX_BATCH_REQUESTS = 100;
+  private static final ImmutableList<String> SYSTEM_LABELS =
+      ImmutableList.of("INBOX", "SPAM", "TRASH", "UNREAD", "STARRED", "IMPORTANT", "SENT", "DRAFT");
+  private static final Pattern RFC822_MESSAGE_ID_QUERY = Pattern.compile("rfc822msgid:(\\S+)");
+  private static final Pattern CONTENT_RANGE =
+      Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+  private static final ImmutableMap<Integer, String> REASON_PHRASES =
+      ImmutableMap.<Integer, String>builder()
+          .put(200, "OK")
+          .put(204, "No Content")
+          .put(308, "Resume Incomplete")
+          .put(400, "Bad Request")
+          .put(403, "Forbidden")
+          .put(404, "Not Found")
+          .put(409, "Conflict")
+          .put(429, "Too Many Requests")
+          .put(500, "Internal Server Error")
+          .put(503, "Service Unavailable")
+          .build();
+
+  /** A message in the fake mailbox. */
+  private static class StoredMessage {
+    final String id;
+    @Nullable final String rfc822MessageId;
+    final byte[] rawContent;
+    final Set<String> labelIds = new LinkedHashSet<>();
+
+    StoredMessage(String id, @Nullable String rfc822MessageId, byte[] rawContent) {
+      this.id = id;
+      this.rfc822MessageId = rfc822MessageId;
+      this.rawContent = rawContent;
+    }
+
+    Message toMessage() {
+      return new Message()
+          .setId(id)
+          .setThreadId(id)
+          .setLabelIds(new ArrayList<>(labelIds))
+          .setSizeEstimate(rawContent.length);
+    }
+  }
+
+  /** An HTTP request, either on its own or from inside a batch. */
+  private static class Request {
+    final String method;
+    final GenericUrl url;
+    final Map<String, String> headers;
+    final byte[] content;
+
+    Request(String method, GenericUrl url, Map<String, String> headers, byte[] content) {
+      this.method = method;
+      this.url = url;
+      this.headers = headers;
+      this.content = content;
+    }
+
+    @Nullable
+    String getHeader(String name) {
+      return headers.get(Ascii.toLowerCase(name));
+    }
+  }
+
+  /** An HTTP response, either on its own or from inside a batch. */
+  private static class Response {
+    final int statusCode;
+    final String contentType;
+    final byte[] content;
+    final Map<String, String> headers = new LinkedHashMap<>();
+
+    Response(int statusCode, String contentType, byte[] content) {
+      this.statusCode = statusCode;
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    Response withHeader(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    String getStatusLine() {
+      return "HTTP/1.1 " + statusCode + " " + REASON_PHRASES.getOrDefault(statusCode, "Error");
+    }
+
+    LowLevelHttpResponse toLowLevelHttpResponse() {
+      MockLowLevelHttpResponse response =
+          new MockLowLevelHttpResponse()
+              .setStatusCode(statusCode)
+              .setReasonPhrase(REASON_PHRASES.getOrDefault(statusCode, "Error"))
+              .setContentType(contentType)
+              .setContent(content);
+      headers.forEach(response::addHeader);
+      return response;
+    }
+  }
+
+  /** A resumable upload that has been started but not finished. */
+  private static class PendingUpload {
+    final Message metadata;
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+    PendingUpload(Message metadata) {
+      this.metadata = metadata;
+    }
+  }
+
+  /** Fails a fraction of the requests to a method. */
+  private static class FailureRate {
+    final double rate;
+    final int statusCode;
+
+    FailureRate(double rate, int statusCode) {
+      this.rate = rate;
+      this.statusCode = statusCode;
+    }
+  }
+
+  private final JsonFactory jsonFactory;
+  private final Multiset<ApiMethod> requestCounts = ConcurrentHashMultiset.create();
+  private final AtomicInteger requestsInFlight = new AtomicInteger();
+  private final AtomicInteger peakRequestsInFlight = new AtomicInteger();
+  private volatile long latencyNanos;
+  private volatile long batchItemLatencyNanos;
+  private volatile int maxConcurrentRequests = Integer.MAX_VALUE;
+
+  @GuardedBy("this")
+  private final Map<String, StoredMessage> messagesById = new LinkedHashMap<>();
+
+  @GuardedBy("this")
+  private final Map<String, Label> labelsById = new LinkedHashMap<>();
+
+  @GuardedBy("this")
+  private final Map<String, PendingUpload> uploadsById = new HashMap<>();
+
+  @GuardedBy("this")
+  private final Map<ApiMethod, Deque<Integer>> scheduledFailures = new EnumMap<>(ApiMethod.class);
+
+  @GuardedBy("this")
+  private final Map<ApiMethod, FailureRate> failureRates = new EnumMap<>(ApiMethod.class);
+
+  @GuardedBy("this")
+  private final Random random = new Random(0);
+
+  @GuardedBy("this")
+  private long nextId = 1;
+
+  /**
+   * Creates a backend with an empty mailbox that has only Gmail's system labels. Requests and
+   * responses are parsed and written with {@code jsonFactory}.
+   */
+  public FakeGmailBackend(JsonFactory jsonFactory) {
+    this.jsonFactory = jsonFactory;
+    for (String labelName : SYSTEM_LABELS) {
+      labelsById.put(labelName, new Label().setId(labelName).setName(labelName).setType("system"));
+    }
+  }
+
+  /** Returns the factory that requests and responses are parsed and written with. */
+  public JsonFactory getJsonFactory() {
+    return jsonFactory;
+  }
+
+  /** Delays every HTTP request, including batches as a whole, by {@code latency}. */
+  public FakeGmailBackend setLatency(Duration latency) {
+    this.latencyNanos = latency.toNanos();
+    return this;
+  }
+
+  /** Delays every request inside a batch by {@code latency}, in addition to the batch latency. */
+  public FakeGmailBackend setBatchItemLatency(Duration latency) {
+    this.batchItemLatencyNanos = latency.toNanos();
+    return this;
+  }
+
+  /** Rejects HTTP requests with a 429 while more than {@code max} requests are in progress. */
+  public FakeGmailBackend setMaxConcurrentRequests(int max) {
+    Preconditions.checkArgument(max > 0, "max must be positive: %s", max);
+    this.maxConcurrentRequests = max;
+    return this;
+  }
+
+  /** Fails the next {@code count} requests to {@code method} with {@code statusCode}. */
+  public synchronized FakeGmailBackend failNext(ApiMethod method, int count, int statusCode) {
+    Deque<Integer> failures = scheduledFailures.computeIfAbsent(method, m -> new ArrayDeque<>());
+    for (int i = 0; i < count; i++) {
+      failures.add(statusCode);
+    }
+    return this;
+  }
+
+  /**
+   * Fails each request to {@code method} with probability {@code rate}, after any failures
+   * scheduled with {@link #failNext}.
+   */
+  public synchronized FakeGmailBackend setFailureRate(
+      ApiMethod method, double rate, int statusCode) {
+    Preconditions.checkArgument(rate >= 0 && rate <= 1, "rate must be in [0, 1]: %s", rate);
+    failureRates.put(method, new FailureRate(rate, statusCode));
+    return this;
+  }
+
+  /** Adds a user label and returns its id. */
+  public synchronized String addLabel(String name) {
+    String id = "Label_" + nextId++;
+    labelsById.put(id, new Label().setId(id).setName(name).setType("user"));
+    return id;
+  }
+
+  /** Adds a message, as if it had been imported earlier, and returns its Gmail id. */
+  public synchronized String addMessage(String rfc822MessageId, String... labelIds) {
+    byte[] rawContent = ("Message-ID: " + rfc822MessageId + CRLF + CRLF).getBytes(UTF_8);
+    StoredMessage message = store(rfc822MessageId, rawContent);
+    for (String labelId : labelIds) {
+      Preconditions.checkArgument(labelsById.containsKey(labelId), "No such label: %s", labelId);
+      message.labelIds.add(labelId);
+    }
+    return message.id;
+  }
+
+  /** Returns all of the messages in the mailbox, with their ids and labels. */
+  public synchronized ImmutableList<Message> getMessages() {
+    return messagesById.values().stream()
+        .map(StoredMessage::toMessage)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Returns the messages with the given RFC822 message id. */
+  public synchronized ImmutableList<Message> findMessages(String rfc822MessageId) {
+    return messagesById.values().stream()
+        .filter(hasMessageId(rfc822MessageId))
+        .map(StoredMessage::toMessage)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Returns the raw content that was imported for the message with {@code gmailId}. */
+  public synchronized Optional<byte[]> getRawContent(String gmailId) {
+    return Optional.ofNullable(messagesById.get(gmailId))
+        .map(message -> message.rawContent.clone());
+  }
+
+  /** Returns all of the labels, including the system labels. */
+  public synchronized ImmutableList<Label> getLabels() {
+    return labelsById.values().stream().map(Label::clone).collect(ImmutableList.toImmutableList());
+  }
+
+  /**
+   * Returns the number of requests made to {@code method}. Requests inside a batch count towards
+   * their own method as well as towards {@link ApiMethod#BATCH}, and every request of a resumable
+   * upload counts towards {@link ApiMethod#IMPORT_MESSAGE}.
+   */
+  public int getRequestCount(ApiMethod method) {
+    return requestCounts.count(method);
+  }
+
+  /** Returns the largest number of HTTP requests that were in progress at once. */
+  public int getPeakRequestsInFlight() {
+    return peakRequestsInFlight.get();
+  }
+
+  @Override
+  public LowLevelHttpRequest buildRequest(String method, String url) {
+    return new MockLowLevelHttpRequest(url) {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        getHeaders().forEach((name, values) -> headers.put(Ascii.toLowerCase(name), values.get(0)));
+        if (getContentType() != null) {
+          headers.put("content-type", getContentType());
+        }
+        return FakeGmailBackend.this
+            .execute(new Request(method, new GenericUrl(url), headers, readContent(this)))
+            .toLowLevelHttpResponse();
+      }
+    };
+  }
+
+  private Response execute(Request request) throws IOException {
+    int inFlight = requestsInFlight.incrementAndGet();
+    peakRequestsInFlight.accumulateAndGet(inFlight, Math::max);
+    try {
+      if (inFlight > maxConcurrentRequests) {
+        return error(429, "rateLimitExceeded", "Too many concurrent requests for user");
+      }
+      sleep(latencyNanos);
+      if (request.url.getRawPath().equals(BATCH_PATH)) {
+        return executeBatch(request);
+      }
+      return dispatch(request);
+    } finally {
+      requestsInFlight.decrementAndGet();
+    }
+  }
+
+  private Response dispatch(Request request) throws IOException {
+    String path = request.url.getRawPath();
+    boolean upload = path.startsWith(UPLOAD_PREFIX + API_PATH);
+    if (upload) {
+      path = path.substring(UPLOAD_PREFIX.length());
+    }
+    if (!path.startsWith(API_PATH)) {
+      return notFound();
+    }
+    // The parts are the user id, the collection and then the resource id and action, if any.
+    List<String> parts = Splitter.on('/').splitToList(path.substring(API_PATH.length()));
+    Optional<ApiMethod> method = route(request.method, upload, parts);
+    if (!method.isPresent()) {
+      return notFound();
+    }
+
+    requestCounts.add(method.get());
+    Optional<Integer> failure = nextInjectedFailure(method.get());
+    if (failure.isPresent()) {
+      return error(failure.get(), "backendError", "Injected failure");
+    }
+
+    switch (method.get()) {
+      case LIST_MESSAGES:
+        return listMessages(request);
+      case GET_MESSAGE:
+        return getMessage(request, parts.get(2));
+      case IMPORT_MESSAGE:
+        return importMessage(request);
+      case MODIFY_MESSAGE:
+        return modifyMessage(request, parts.get(2));
+      case BATCH_MODIFY_MESSAGES:
+        return batchModifyMessages(request);
+      case LIST_LABELS:
+        return listLabels(request);
+      case CREATE_LABEL:
+        return createLabel(request);
+      default:
+        return notFound();
+    }
+  }
+
+  private static Optional<ApiMethod> route(String method, boolean upload, List<String> parts) {
+    String collection = parts.size() > 1 ? parts.get(1) : "";
+    if (upload) {
+      return parts.size() == 3 && collection.equals("messages") && parts.get(2).equals("import")
+          ? Optional.of(ApiMethod.IMPORT_MESSAGE)
+          : Optional.empty();
+    }
+    if (collection.equals("messages")) {
+      if (parts.size() == 2 && method.equals("GET")) {
+        return Optional.of(ApiMethod.LIST_MESSAGES);
+      } else if (parts.size() == 3 && method.equals("GET")) {
+        return Optional.of(ApiMethod.GET_MESSAGE);
+      } else if (parts.size() == 3 && parts.get(2).equals("batchModify") && method.equals("POST")) {
+        return Optional.of(ApiMethod.BATCH_MODIFY_MESSAGES);
+      } else if (parts.size() == 4 && parts.get(3).equals("modify") && method.equals("POST")) {
+        return Optional.of(ApiMethod.MODIFY_MESSAGE);
+      }
+    } else if (collection.equals("labels") && parts.size() == 2) {
+      if (method.equals("GET")) {
+        return Optional.of(ApiMethod.LIST_LABELS);
+      } else if (method.equals("POST")) {
+        return Optional.of(ApiMethod.CREATE_LABEL);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private Response listMessages(Request request) throws IOException {
+    Optional<Predicate<StoredMessage>> matcher = parseQuery(getParameter(request, "q"));
+    if (!matcher.isPresent()) {
+      return error(400, "invalidArgument", "Invalid query: " + getParameter(request, "q"));
+    }
+    int offset;
+    int pageSize;
+    try {
+      String pageToken = getParameter(request, "pageToken");
+      String maxResults = getParameter(request, "maxResults");
+      offset = pageToken == null ? 0 : Integer.parseInt(pageToken);
+      pageSize =
+          maxResults == null
+              ? DEFAULT_PAGE_SIZE
+              : Math.min(Integer.parseInt(maxResults), MAX_PAGE_SIZE);
+    } catch (NumberFormatException e) {
+      return error(400, "invalidArgument", "Invalid paging parameters");
+    }
+
+    List<Message> matching;
+    synchronized (this) {
+      matching =
+          messagesById.values().stream()
+              .filter(matcher.get())
+              .map(message -> new Message().setId(message.id).setThreadId(message.id))
+              .collect(Collectors.toList());
+    }
+    ListMessagesResponse response =
+        new ListMessagesResponse().setResultSizeEstimate((long) matching.size());
+    if (offset < matching.size()) {
+      response.setMessages(matching.subList(offset, Math.min(offset + pageSize, matching.size())));
+    }
+    if (offset + pageSize < matching.size()) {
+      response.setNextPageToken(Integer.toString(offset + pageSize));
+    }
+    return ok(request, response);
+  }
+
+  private Optional<Predicate<StoredMessage>> parseQuery(@Nullable String query) {
+    if (query == null || query.trim().isEmpty()) {
+      return Optional.of(message -> true);
+    }
+    Predicate<StoredMessage> matchesAny = message -> false;
+    for (String term : Splitter.on(" OR ").trimResults().split(query)) {
+      Matcher matcher = RFC822_MESSAGE_ID_QUERY.matcher(term);
+      if (!matcher.matches()) {
+        return Optional.empty();
+      }
+      matchesAny = matchesAny.or(hasMessageId(matcher.group(1)));
+    }
+    return Optional.of(matchesAny);
+  }
+
+  private synchronized Response getMessage(Request request, String id) throws IOException {
+    StoredMessage message = messagesById.get(id);
+    if (message == null) {
+      return notFound();
+    }
+    Message response = message.toMessage();
+    if ("metadata".equals(getParameter(request, "format"))) {
+      Set<String> names =
+          request.url.getAll("metadataHeaders").stream()
+              .map(name -> Ascii.toLowerCase(name.toString()))
+              .collect(Collectors.toSet());
+      response.setPayload(
+          new MessagePart()
+              .setHeaders(
+                  readMessageHeaders(message.rawContent).stream()
+                      .filter(
+                          header ->
+                              names.isEmpty()
+                                  || names.contains(Ascii.toLowerCase(header.getName())))
+                      .collect(Collectors.toList())));
+    }
+    return ok(request, response);
+  }
+
+  private synchronized Response modifyMessage(Request request, String id) throws IOException {
+    StoredMessage message = messagesById.get(id);
+    if (message == null) {
+      return notFound();
+    }
+    ModifyMessageRequest modify = parse(request.content, ModifyMessageRequest.class);
+    List<String> addLabelIds = orEmpty(modify.getAddLabelIds());
+    List<String> removeLabelIds = orEmpty(modify.getRemoveLabelIds());
+    Optional<String> invalidLabelId = findInvalidLabelId(addLabelIds, removeLabelIds);
+    if (invalidLabelId.isPresent()) {
+      return error(400, "invalidArgument", "Invalid label: " + invalidLabelId.get());
+    }
+    message.labelIds.removeAll(removeLabelIds);
+    message.labelIds.addAll(addLabelIds);
+    return ok(request, message.toMessage());
+  }
+
+  /** Applies the changes to all of the messages, or to none of them if anything is invalid. */
+  private synchronized Response batchModifyMessages(Request request) throws IOException {
+    BatchModifyMessagesRequest modify = parse(request.content, BatchModifyMessagesRequest.class);
+    List<String> ids = orEmpty(modify.getIds());
+    if (ids.isEmpty() || ids.size() > MAX_BATCH_MODIFY_IDS) {
+      return error(400, "invalidArgument", "Too many or no ids: " + ids.size());
+    }
+    List<String> addLabelIds = orEmpty(modify.getAddLabelIds());
+    List<String> removeLabelIds = orEmpty(modify.getRemoveLabelIds());
+    Optional<String> invalidLabelId = findInvalidLabelId(addLabelIds, removeLabelIds);
+    if (invalidLabelId.isPresent()) {
+      return error(400, "invalidArgument", "Invalid label: " + invalidLabelId.get());
+    }
+    if (!messagesById.keySet().containsAll(ids)) {
+      return notFound();
+    }
+    for (String id : ids) {
+      StoredMessage message = messagesById.get(id);
+      message.labelIds.removeAll(removeLabelIds);
+      message.labelIds.addAll(addLabelIds);
+    }
+    return new Response(204, Json.MEDIA_TYPE, new byte[0]);
+  }
+
+  private synchronized Response listLabels(Request request) throws IOException {
+    return ok(request, new ListLabelsResponse().setLabels(new ArrayList<>(getLabels())));
+  }
+
+  private synchronized Response createLabel(Request request) throws IOException {
+    Label label = parse(request.content, Label.class);
+    if (label.getName() == null || label.getName().isEmpty()) {
+      return error(400, "invalidArgument", "Invalid label name");
+    }
+    boolean exists =
+        labelsById.values().stream().anyMatch(l -> l.getName().equalsIgnoreCase(label.getName()));
+    if (exists) {
+      return error(409, "conflict", "Label name exists or conflicts");
+    }
+    String id = addLabel(label.getName());
+    Label created =
+        labelsById
+            .get(id)
+            .setLabelListVisibility(label.getLabelListVisibility())
+            .setMessageListVisibility(label.getMessageListVisibility());
+    return ok(request, created);
+  }
+
+  private Response importMessage(Request request) throws IOException {
+    String uploadType = getParameter(request, "uploadType");
+    if ("resumable".equals(uploadType)) {
+      String uploadId = getParameter(request, "upload_id");
+      return uploadId == null ? startUpload(request) : continueUpload(request, uploadId);
+    } else if ("multipart".equals(uploadType)) {
+      HttpMediaType contentType = new HttpMediaType(request.getHeader("Content-Type"));
+      List<Request> parts = parseMultipart(contentType.getParameter("boundary"), request.content);
+      if (parts.size() != 2) {
+        return error(400, "invalidArgument", "Expected metadata and media parts");
+      }
+      return finishUpload(
+          request, parse(parts.get(0).content, Message.class), parts.get(1).content);
+    } else if ("media".equals(uploadType)) {
+      return finishUpload(request, new Message(), request.content);
+    }
+    return error(400, "invalidArgument", "Unsupported uploadType: " + uploadType);
+  }
+
+  private synchronized Response startUpload(Request request) throws IOException {
+    String uploadId = Long.toString(nextId++);
+    Message metadata =
+        request.content.length == 0 ? new Message() : parse(request.content, Message.class);
+    uploadsById.put(uploadId, new PendingUpload(metadata));
+    GenericUrl location = request.url.clone();
+    location.set("upload_id", uploadId);
+    return new Response(200, Json.MEDIA_TYPE, new byte[0]).withHeader("Location", location.build());
+  }
+
+  private Response continueUpload(Request request, String uploadId) throws IOException {
+    PendingUpload upload;
+    long received;
+    synchronized (this) {
+      upload = uploadsById.get(uploadId);
+      if (upload == null) {
+        return notFound();
+      }
+      upload.content.write(request.content);
+      received = upload.content.size();
+    }
+
+    String contentRange = request.getHeader("Content-Range");
+    Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+    if (matcher == null || !matcher.matches()) {
+      return error(400, "invalidArgument", "Invalid Content-Range: " + contentRange);
+    }
+    if (matcher.group(3).equals("*") || received < Long.parseLong(matcher.group(3))) {
+      Response incomplete = new Response(308, Json.MEDIA_TYPE, new byte[0]);
+      return received == 0
+          ? incomplete
+          : incomplete.withHeader("Range", "bytes=0-" + (received - 1));
+    }
+
+    synchronized (this) {
+      uploadsById.remove(uploadId);
+    }
+    return finishUpload(request, upload.metadata, upload.content.toByteArray());
+  }
+
+  private synchronized Response finishUpload(Request request, Message metadata, byte[] rawContent)
+      throws IOException {
+    List<String> labelIds = orEmpty(metadata.getLabelIds());
+    Optional<String> invalidLabelId = findInvalidLabelId(labelIds, ImmutableList.of());
+    if (invalidLabelId.isPresent()) {
+      return error(400, "invalidArgument", "Invalid label: " + invalidLabelId.get());
+    }
+    StoredMessage message = store(findMessageIdHeader(rawContent), rawContent);
+    message.labelIds.addAll(labelIds);
+    return ok(request, message.toMessage());
+  }
+
+  private Response executeBatch(Request request) throws IOException {
+    requestCounts.add(ApiMethod.BATCH);
+    Optional<Integer> failure = nextInjectedFailure(ApiMethod.BATCH);
+    if (failure.isPresent()) {
+      return error(failure.get(), "backendError", "Injected failure");
+    }
+
+    HttpMediaType contentType = new HttpMediaType(request.getHeader("Content-Type"));
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    String boundary = "batch_" + Long.toHexString(System.nanoTime());
+    List<Request> parts = parseMultipart(contentType.getParameter("boundary"), request.content);
+    if (parts.size() > MAX_BATCH_REQUESTS) {
+      return error(400, "invalidArgument", "Too many requests in batch: " + parts.size());
+    }
+    int contentId = 1;
+    for (Request part : parts) {
+      sleep(batchItemLatencyNanos);
+      Request itemRequest = parseBatchItem(part.content);
+      Response itemResponse =
+          itemRequest.url.getRawPath().startsWith(UPLOAD_PREFIX)
+              ? error(400, "invalidArgument", "Uploads are not supported in batches")
+              : dispatch(itemRequest);
+
+      StringBuilder header = new StringBuilder();
+      header.append("--").append(boundary).append(CRLF);
+      header.append("Content-Type: application/http").append(CRLF);
+      header.append("Content-ID: response-").append(contentId++).append(CRLF);
+      header.append(CRLF);
+      header.append(itemResponse.getStatusLine()).append(CRLF);
+      header.append("Content-Type: ").append(itemResponse.contentType).append(CRLF);
+      header.append("Content-Length: ").append(itemResponse.content.length).append(CRLF);
+      for (Map.Entry<String, String> entry : itemResponse.headers.entrySet()) {
+        header.append(entry.getKey()).append(": ").append(entry.getValue()).append(CRLF);
+      }
+      header.append(CRLF);
+      content.write(header.toString().getBytes(ISO_8859_1));
+      content.write(itemResponse.content);
+      content.write(CRLF.getBytes(ISO_8859_1));
+    }
+    content.write(("--" + boundary + "--" + CRLF).getBytes(ISO_8859_1));
+    return new Response(200, "multipart/mixed; boundary=" + boundary, content.toByteArray());
+  }
+
+  /** Splits a multipart body into its parts. Only the headers and content of each are set. */
+  private static List<Request> parseMultipart(String boundary, byte[] content) {
+    // ISO-8859-1 maps every byte to a char and back, so binary content survives the round trip.
+    String body = new String(content, ISO_8859_1);
+    List<Request> parts = new ArrayList<>();
+    for (String part : Splitter.on("--" + boundary).split(body)) {
+      if (!part.startsWith(CRLF)) {
+        continue; // the preamble or the closing delimiter
+      }
+      int headersEnd = part.indexOf(CRLF + CRLF, 0);
+      Map<String, String> headers = parseHeaders(part.substring(CRLF.length(), headersEnd + 2));
+      String partContent = part.substring(headersEnd + 4);
+      if (partContent.endsWith(CRLF)) {
+        partContent = partContent.substring(0, partContent.length() - CRLF.length());
+      }
+      parts.add(new Request("", new GenericUrl(), headers, partContent.getBytes(ISO_8859_1)));
+    }
+    return parts;
+  }
+
+  /** Parses the HTTP request embedded in a part of a batch. */
+  private static Request parseBatchItem(byte[] content) {
+    String item = new String(content, ISO_8859_1);
+    int requestLineEnd = item.indexOf(CRLF);
+    List<String> requestLine = Splitter.on(' ').splitToList(item.substring(0, requestLineEnd));
+    int headersEnd = item.indexOf(CRLF + CRLF, requestLineEnd);
+    if (headersEnd < 0) {
+      headersEnd = item.length();
+    }
+    Map<String, String> headers =
+        parseHeaders(item.substring(requestLineEnd + CRLF.length(), headersEnd + 2));
+    String body = headersEnd + 4 <= item.length() ? item.substring(headersEnd + 4) : "";
+    return new Request(
+        requestLine.get(0), new GenericUrl(requestLine.get(1)), headers, body.getBytes(ISO_8859_1));
+  }
+
+  private static Map<String, String> parseHeaders(String block) {
+    Map<String, String> headers = new HashMap<>();
+    for (String line : Splitter.on(CRLF).omitEmptyStrings().split(block)) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(
+            Ascii.toLowerCase(line.substring(0, colon).trim()), line.substring(colon + 1).trim());
+      }
+    }
+    return headers;
+  }
+
+  private static byte[] readContent(MockLowLevelHttpRequest request) throws IOException {
+    if (request.getStreamingContent() == null) {
+      return new byte[0];
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    request.getStreamingContent().writeTo(out);
+    if (request.getContentEncoding() != null && request.getContentEncoding().contains("gzip")) {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+        return ByteStreams.toByteArray(in);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /** Returns the value of the {@code Message-ID} header in {@code rawContent}, if any. */
+  @Nullable
+  private static String findMessageIdHeader(byte[] rawContent) {
+    return readMessageHeaders(rawContent).stream()
+        .filter(header -> header.getName().equalsIgnoreCase("Message-ID"))
+        .map(MessagePartHeader::getValue)
+        .findFirst()
+        .orElse(null);
+  }
+
+  /** Returns the headers of the RFC 822 message in {@code rawContent}, in order. */
+  private static List<MessagePartHeader> readMessageHeaders(byte[] rawContent) {
+    String content = new String(rawContent, ISO_8859_1);
+    int headersEnd = content.indexOf("\n\n");
+    int crlfHeadersEnd = content.indexOf(CRLF + CRLF);
+    if (crlfHeadersEnd >= 0 && (headersEnd < 0 || crlfHeadersEnd < headersEnd)) {
+      headersEnd = crlfHeadersEnd;
+    }
+    String headers = headersEnd < 0 ? content : content.substring(0, headersEnd);
+    List<MessagePartHeader> messageHeaders = new ArrayList<>();
+    // Unfold continuation lines before looking at the headers one by one.
+    for (String line : Splitter.onPattern("\r?\n").split(headers.replaceAll("\r?\n[ \t]+", " "))) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        messageHeaders.add(
+            new MessagePartHeader()
+                .setName(line.substring(0, colon).trim())
+                .setValue(line.substring(colon + 1).trim()));
+      }
+    }
+    return messageHeaders;
+  }
+
+  private static Predicate<StoredMessage> hasMessageId(String rfc822MessageId) {
+    String normalized = normalizeMessageId(rfc822MessageId);
+    return message ->
+        message.rfc822MessageId != null
+            && normalizeMessageId(message.rfc822MessageId).equals(normalized);
+  }
+
+  /** Gmail matches message ids with or without the angle brackets. */
+  private static String normalizeMessageId(String rfc822MessageId) {
+    String trimmed = rfc822MessageId.trim();
+    if (trimmed.startsWith("<") && trimmed.endsWith(">")) {
+      return trimmed.substring(1, trimmed.length() - 1);
+    }
+    return trimmed;
+  }
+
+  @GuardedBy("this")
+  private StoredMessage store(@Nullable String rfc822MessageId, byte[] rawContent) {
+    StoredMessage message =
+        new StoredMessage(String.format("%016x", nextId++), rfc822MessageId, rawContent);
+    messagesById.put(message.id, message);
+    return message;
+  }
+
+  @GuardedBy("this")
+  private Optional<String> findInvalidLabelId(
+      Collection<String> addLabelIds, Collection<String> removeLabelIds) {
+    return ImmutableList.<String>builder()
+        .addAll(addLabelIds)
+        .addAll(removeLabelIds)
+        .build()
+        .stream()
+        .filter(labelId -> !labelsById.containsKey(labelId))
+        .findFirst();
+  }
+
+  private synchronized Optional<Integer> nextInjectedFailure(ApiMethod method) {
+    Deque<Integer> scheduled = scheduledFailures.get(method);
+    if (scheduled != null && !scheduled.isEmpty()) {
+      return Optional.of(scheduled.poll());
+    }
+    FailureRate failureRate = failureRates.get(method);
+    if (failureRate != null && random.nextDouble() < failureRate.rate) {
+      return Optional.of(failureRate.statusCode);
+    }
+    return Optional.empty();
+  }
+
+  @Nullable
+  private static String getParameter(Request request, String name) {
+    Object value = request.url.getFirst(name);
+    return value == null ? null : value.toString();
+  }
+
+  private <T> T parse(byte[] content, Class<T> type) throws IOException {
+    return jsonFactory.fromString(new String(content, UTF_8), type);
+  }
+
+  /** Returns a successful response, keeping only the top-level fields that were asked for. */
+  private Response ok(Request request, GenericJson body) throws IOException {
+    String json = jsonFactory.toString(body);
+    String fields = getParameter(request, "fields");
+    if (fields != null) {
+      GenericJson all = jsonFactory.fromString(json, GenericJson.class);
+      GenericJson selected = new GenericJson();
+      for (String field : splitTopLevelFields(fields)) {
+        if (all.containsKey(field)) {
+          selected.set(field, all.get(field));
+        }
+      }
+      selected.setFactory(jsonFactory);
+      json = jsonFactory.toString(selected);
+    }
+    return new Response(200, Json.MEDIA_TYPE, json.getBytes(UTF_8));
+  }
+
+  /** Returns the top-level field names in a {@code fields} parameter like {@code a,b(c),d/e}. */
+  private static List<String> splitTopLevelFields(String fields) {
+    List<String> names = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    int depth = 0;
+    for (char c : fields.toCharArray()) {
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      }
+      if (c == ',' && depth == 0) {
+        names.add(topLevelName(field.toString()));
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    names.add(topLevelName(field.toString()));
+    return names;
+  }
+
+  private static String topLevelName(String field) {
+    int end = field.length();
+    for (char c : new char[] {'(', '/'}) {
+      if (field.indexOf(c) >= 0) {
+        end = Math.min(end, field.indexOf(c));
+      }
+    }
+    return field.substring(0, end).trim();
+  }
+
+  private Response notFound() throws IOException {
+    return error(404, "notFound", "Requested entity was not found.");
+  }
+
+  private Response error(int statusCode, String reason, String message) throws IOException {
+    GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+    errorInfo.setDomain("global");
+    errorInfo.setReason(reason);
+    errorInfo.setMessage(message);
+    GoogleJsonError error = new GoogleJsonError();
+    error.setCode(statusCode);
+    error.setMessage(message);
+    error.setErrors(ImmutableList.of(errorInfo));
+    GoogleJsonErrorContainer container = new GoogleJsonErrorContainer();
+    container.setError(error);
+    return new Response(statusCode, Json.MEDIA_TYPE, jsonFactory.toByteArray(container));
+  }
+
+  private static <T> List<T> orEmpty(@Nullable List<T> list) {
+    return list == null ? ImmutableList.of() : list;
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    if (nanos <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while simulating latency");
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+/**
+ * A position in the traversal of a {@link LocalStorage}: the folder of the last message that was
+ * handed out and that message's number within the folder. Resuming from a checkpoint continues
+ * with the message after it.
+ */
+@AutoValue
+public abstract class Checkpoint {
+  private static final Checkpoint START = create(ImmutableList.of(), 0);
+
+  /** Returns the checkpoint before the first message of the store. */
+  public static Checkpoint start() {
+    return START;
+  }
+
+  public static Checkpoint create(List<String> folderPath, int messageNumber) {
+    Preconditions.checkArgument(messageNumber >= 0, "Negative message number: %s", messageNumber);
+    return new AutoValue_Checkpoint(ImmutableList.copyOf(folderPath), messageNumber);
+  }
+
+  /**
+   * The full names of the folders from just below the root of the store down to the folder of the
+   * last message. This is empty if the message is in the root folder itself.
+   */
+  public abstract ImmutableList<String> getFolderPath();
+
+  /** The (1-based) number of the last message within its folder, or 0 if there is none. */
+  public abstract int getMessageNumber();
+}
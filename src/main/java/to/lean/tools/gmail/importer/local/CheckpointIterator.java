@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import java.util.Iterator;
+
+/** An iterator over the messages in a {@link LocalStorage} that knows how far it has got. */
+public interface CheckpointIterator extends Iterator<LocalMessage> {
+  /**
+   * Returns the position of the last message returned by {@link #next()}. Passing it to {@link
+   * LocalStorage#iterator(Checkpoint)} resumes with the message after it.
+   */
+  Checkpoint checkpoint();
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Knows every folder that each message of a local store is in, so that a message with copies in
+ * several folders can be sync'd to Gmail once, with all of its labels, instead of once per copy.
+ *
+ * <p>The index is built by a first pass over the store that only asks for the headers of the
+ * messages, usually from {@link LocalStorage#streamHeaders}. {@link #aggregate} then turns the real
+ * pass over the store into one where the first copy of each message stands for all of them, and the
+ * other copies are skipped.
+ */
+@NotThreadSafe
+public class FolderIndex {
+
+  /** What the copies of one message have in common. */
+  private static class Copies {
+    /** Stands in for the copies of a message that has been handed out already. */
+    static final Copies HANDED_OUT =
+        new Copies(ImmutableList.of(), ImmutableSet.of(), false, false);
+
+    final List<String> folders;
+    final Set<String> tags;
+    final boolean starred;
+    final boolean unread;
+
+    Copies(List<String> folders, Set<String> tags, boolean starred, boolean unread) {
+      this.folders = folders;
+      this.tags = tags;
+      this.starred = starred;
+      this.unread = unread;
+    }
+
+    /** Returns the folders, tags and flags of a single copy, {@code message}. */
+    static Copies of(LocalMessage message) {
+      return new Copies(
+          ImmutableList.copyOf(message.getFolders()),
+          ImmutableSet.copyOf(message.getTags()),
+          message.isStarred(),
+          message.isUnread());
+    }
+
+    /** Returns the copies with {@code message} added to them. */
+    Copies with(LocalMessage message) {
+      ImmutableList.Builder<String> allFolders = ImmutableList.<String>builder().addAll(folders);
+      for (String folder : message.getFolders()) {
+        if (!folders.contains(folder)) {
+          allFolders.add(folder);
+        }
+      }
+      Set<String> allTags =
+          tags.containsAll(message.getTags())
+              ? tags
+              : ImmutableSet.<String>builder().addAll(tags).addAll(message.getTags()).build();
+      // A message is starred if any copy is, but only unread if none of the copies has been read.
+      return new Copies(
+          allFolders.build(),
+          allTags,
+          starred || message.isStarred(),
+          unread && message.isUnread());
+    }
+  }
+
+  private final Map<String, Copies> copiesById = new HashMap<>();
+  private int messageCount;
+
+  private FolderIndex() {}
+
+  /**
+   * Reads the message id, folders, tags and flags of every message from {@code messages}. Nothing
+   * else is asked of the messages, and each message is released once it has been added. Whether
+   * that spares reading the messages whole is up to where they come from.
+   */
+  public static FolderIndex build(Iterator<LocalMessage> messages) {
+    FolderIndex index = new FolderIndex();
+    while (messages.hasNext()) {
+      LocalMessage message = messages.next();
+      index.add(message);
+      message.release();
+    }
+    return index;
+  }
+
+  private void add(LocalMessage message) {
+    messageCount++;
+    String messageId = message.getMessageId();
+    Copies copies = copiesById.get(messageId);
+    copiesById.put(messageId, copies == null ? Copies.of(message) : copies.with(message));
+  }
+
+  /** Returns the number of messages that were read, counting every copy. */
+  public int getMessageCount() {
+    return messageCount;
+  }
+
+  /** Returns the number of different message ids that were read. */
+  public int getUniqueMessageCount() {
+    return copiesById.size();
+  }
+
+  /**
+   * Returns a view of {@code messages} in which the first copy of each message in the index is in
+   * all of the folders of the message, and the later copies are left out. Messages that aren't in
+   * the index are returned as they are.
+   *
+   * <p>Each message is only handed out once by all of the views of an index together. The copies
+   * that are left out are released.
+   */
+  public Iterator<LocalMessage> aggregate(Iterator<LocalMessage> messages) {
+    return new AbstractIterator<LocalMessage>() {
+      @Override
+      protected LocalMessage computeNext() {
+        while (messages.hasNext()) {
+          LocalMessage message = messages.next();
+          String messageId = message.getMessageId();
+          Copies copies = copiesById.get(messageId);
+          if (copies == null) {
+            return message;
+          }
+          if (copies != Copies.HANDED_OUT) {
+            copiesById.put(messageId, Copies.HANDED_OUT);
+            return new AggregatedMessage(message, copies);
+          }
+          message.release();
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  /** One copy of a message that stands in for all of them. */
+  private static class AggregatedMessage implements LocalMessage {
+    private final LocalMessage message;
+    private final Copies copies;
+
+    AggregatedMessage(LocalMessage message, Copies copies) {
+      this.message = message;
+      this.copies = copies;
+    }
+
+    @Override
+    public String getMessageId() {
+      return message.getMessageId();
+    }
+
+    @Override
+    public String getFromHeader() {
+      return message.getFromHeader();
+    }
+
+    @Override
+    public List<String> getFolders() {
+      return copies.folders;
+    }
+
+    @Override
+    public Set<String> getTags() {
+      return copies.tags;
+    }
+
+    @Override
+    public byte[] getRawContent() {
+      return message.getRawContent();
+    }
+
+    @Override
+    public InputStream openRawStream() throws IOException {
+      return message.openRawStream();
+    }
+
+    @Override
+    public long getRawLength() {
+      return message.getRawLength();
+    }
+
+    @Override
+    public boolean isUnread() {
+      return copies.unread;
+    }
+
+    @Override
+    public boolean isStarred() {
+      return copies.starred;
+    }
+
+    @Override
+    public void release() {
+      message.release();
+    }
+
+    @Override
+    public String toString() {
+      return message.toString();
+    }
+  }
+}
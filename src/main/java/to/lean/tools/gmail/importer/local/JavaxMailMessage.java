@@ -28,6 +28,7 @@ import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.internet.MimeMessage;
 import javax.mail.search.SearchTerm;
 
 /** Modernized wrapper for Message that throws {@code RuntimeMessagingException}. */
@@ -495,4 +496,46 @@ public class JavaxMailMessage extends Message {
       throw new RuntimeMessagingException(e);
     }
   }
+
+  /** Returns true if the underlying message is a {@link MimeMessage}. */
+  public boolean isMimeMessage() {
+    return delegate instanceof MimeMessage;
+  }
+
+  /**
+   * Returns the header lines of the underlying {@link MimeMessage}, as they would be written by
+   * {@link #writeTo}.
+   *
+   * @throws IllegalStateException if the message is not a {@code MimeMessage}
+   */
+  public Enumeration<String> getAllHeaderLines() throws RuntimeMessagingException {
+    try {
+      @SuppressWarnings("unchecked") // MimeMessage documents the lines as Strings.
+      Enumeration<String> lines = asMimeMessage().getAllHeaderLines();
+      return lines;
+    } catch (MessagingException e) {
+      throw new RuntimeMessagingException(e);
+    }
+  }
+
+  /**
+   * Returns the content of the underlying {@link MimeMessage} without decoding it, as it would be
+   * written by {@link #writeTo} after the headers.
+   *
+   * @throws IllegalStateException if the message is not a {@code MimeMessage}
+   */
+  public InputStream getRawInputStream() throws RuntimeMessagingException {
+    try {
+      return asMimeMessage().getRawInputStream();
+    } catch (MessagingException e) {
+      throw new RuntimeMessagingException(e);
+    }
+  }
+
+  private MimeMessage asMimeMessage() {
+    if (!isMimeMessage()) {
+      throw new IllegalStateException("Not a MimeMessage: " + delegate.getClass().getName());
+    }
+    return (MimeMessage) delegate;
+  }
 }
@@ -17,28 +17,101 @@
 package to.lean.tools.gmail.importer.local;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.mail.Folder;
 
-/** Scans local mailboxes for messages to sync. */
+/**
+ * Scans local mailboxes for messages to sync.
+ *
+ * <p>Each folder is opened when the traversal gets to it, and closed by {@link OpenFolders} once
+ * all of its messages have been read and {@linkplain LocalMessage#release() released}.
+ */
 @NotThreadSafe
 public abstract class JavaxMailStorage implements LocalStorage {
   protected final Logger logger;
   protected final JavaxMailFolder root;
+  private final OpenFolders openFolders;
 
   public JavaxMailStorage(Logger logger, JavaxMailFolder root) {
+    this(logger, root, OpenFolders.DEFAULT_MAX_OPEN_FOLDERS);
+  }
+
+  /**
+   * @param maxOpenFolders the most folders to keep open for messages that haven't been released yet
+   */
+  public JavaxMailStorage(Logger logger, JavaxMailFolder root, int maxOpenFolders) {
     this.logger = logger;
     this.root = root;
+    this.openFolders = new OpenFolders(logger, maxOpenFolders);
+  }
+
+  @Override
+  public CheckpointIterator iterator() {
+    return iterator(Checkpoint.start());
+  }
+
+  @Override
+  public CheckpointIterator iterator(Checkpoint checkpoint) {
+    return new Traversal(checkpoint);
   }
 
+  /**
+   * Reads the folders in parallel when {@code parallelism} is greater than 1. Each folder is read
+   * by a single thread, but different folders are read at the same time.
+   */
   @Override
-  public Iterator<LocalMessage> iterator() {
-    return new FolderIterator(root);
+  public Stream<LocalMessage> stream(int parallelism) {
+    if (parallelism <= 1) {
+      return stream();
+    }
+    return ParallelFolderTraversal.stream(
+        ImmutableList.of(root),
+        new ParallelFolderTraversal.FolderReader<JavaxMailFolder>() {
+          @Override
+          public List<JavaxMailFolder> listSubfolders(JavaxMailFolder folder) {
+            if ((folder.getType() & Folder.HOLDS_FOLDERS) == 0) {
+              return ImmutableList.of();
+            }
+            return Lists.newArrayList(filterFolders(Arrays.asList(folder.list()).iterator()));
+          }
+
+          @Override
+          public Iterator<LocalMessage> readMessages(JavaxMailFolder folder) {
+            if ((folder.getType() & Folder.HOLDS_MESSAGES) == 0) {
+              return Collections.emptyIterator();
+            }
+            OpenFolders.Handle handle = openFolders.open(folder);
+            int messageCount = folder.getMessageCount();
+            return new AbstractIterator<LocalMessage>() {
+              private int nextMessage = 1;
+
+              @Override
+              protected LocalMessage computeNext() {
+                if (nextMessage > messageCount) {
+                  openFolders.doneReading(handle);
+                  return endOfData();
+                }
+                return readMessage(handle, nextMessage++);
+              }
+            };
+          }
+        },
+        parallelism);
   }
 
   /** Must return a filtered view of {@code iterator}. */
@@ -48,9 +121,56 @@ public abstract class JavaxMailStorage implements LocalStorage {
 
   public abstract LocalMessage createLocalMessage(JavaxMailMessage message);
 
+  /** Reads a message of an open folder, which stays open until the message is released. */
+  private LocalMessage readMessage(OpenFolders.Handle handle, int messageNumber) {
+    LocalMessage message = createLocalMessage(handle.folder.getMessage(messageNumber));
+    openFolders.acquire(handle);
+    return new ReleasingMessage(message, handle);
+  }
+
+  /** The position of the last message handed out by a traversal. */
+  private static class Position {
+    @Nullable FolderIterator folderIterator;
+    int messageNumber;
+  }
+
+  /** Traverses the whole store, starting after a checkpoint. */
+  private class Traversal implements CheckpointIterator {
+    private final Checkpoint start;
+    private final Position position = new Position();
+    private final FolderIterator rootIterator;
+
+    Traversal(Checkpoint start) {
+      this.start = start;
+      rootIterator = new FolderIterator(root, null, start, position);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return rootIterator.hasNext();
+    }
+
+    @Override
+    public LocalMessage next() {
+      return rootIterator.next();
+    }
+
+    @Override
+    public Checkpoint checkpoint() {
+      if (position.folderIterator == null) {
+        return start;
+      }
+      return Checkpoint.create(position.folderIterator.getFolderPath(), position.messageNumber);
+    }
+  }
+
   @VisibleForTesting
   class FolderIterator implements Iterator<LocalMessage> {
     private final JavaxMailFolder folder;
+    @Nullable private final FolderIterator parent;
+    private final int depth;
+    @Nullable private final Checkpoint resumeFrom;
+    private final Position position;
     private final Iterator<LocalMessage> messageIterator;
     private final Iterator<LocalMessage> subfolderIterator;
 
@@ -58,13 +178,22 @@ public abstract class JavaxMailStorage implements LocalStorage {
      * We do a prefix traversal of the folder. This means that we first get
      * messages from this folder until they are exhausted, then we call this
      * recursively for each subfolder.
+     *
+     * When resuming, everything that comes before the checkpoint in this
+     * order is skipped: all of the messages of the folders above the
+     * checkpoint's folder, the folders before it, and the messages up to the
+     * checkpoint in the folder itself.
      */
-    public FolderIterator(JavaxMailFolder folder) {
+    FolderIterator(
+        JavaxMailFolder folder,
+        @Nullable FolderIterator parent,
+        @Nullable Checkpoint resumeFrom,
+        Position position) {
       this.folder = folder;
-      logger.fine(() -> "Opening folder:" + folder.getName());
-      if (!folder.isOpen()) {
-        folder.open(Folder.READ_ONLY);
-      }
+      this.parent = parent;
+      this.depth = parent == null ? 0 : parent.depth + 1;
+      this.resumeFrom = resumeFrom;
+      this.position = position;
       this.messageIterator =
           (folder.getType() & Folder.HOLDS_MESSAGES) > 0
               ? new MessageIterator()
@@ -75,6 +204,20 @@ public abstract class JavaxMailStorage implements LocalStorage {
               : Collections.emptyIterator();
     }
 
+    /** Whether the checkpoint being resumed from is in a subfolder of this folder. */
+    private boolean resumesInSubfolder() {
+      return resumeFrom != null && resumeFrom.getFolderPath().size() > depth;
+    }
+
+    /** Returns the full names of the folders from just below the root down to this one. */
+    private ImmutableList<String> getFolderPath() {
+      ImmutableList.Builder<String> folderPath = ImmutableList.builder();
+      for (FolderIterator iterator = this; iterator.parent != null; iterator = iterator.parent) {
+        folderPath.add(iterator.folder.getFullName());
+      }
+      return folderPath.build().reverse();
+    }
+
     @Override
     public boolean hasNext() {
       return messageIterator.hasNext() || subfolderIterator.hasNext();
@@ -94,26 +237,45 @@ public abstract class JavaxMailStorage implements LocalStorage {
     }
 
     private class MessageIterator implements Iterator<LocalMessage> {
+      @Nullable private OpenFolders.Handle handle;
       private final int messageCount;
       private int nextMessage;
 
       private MessageIterator() {
-        messageCount = folder.getMessageCount();
-        nextMessage = 1;
+        if (resumesInSubfolder()) {
+          // Every message in this folder was handed out before the checkpoint.
+          messageCount = 0;
+        } else {
+          handle = openFolders.open(folder);
+          messageCount = folder.getMessageCount();
+        }
+        nextMessage = resumeFrom == null ? 1 : resumeFrom.getMessageNumber() + 1;
       }
 
       @Override
       public boolean hasNext() {
-        return nextMessage <= messageCount;
+        if (nextMessage <= messageCount) {
+          return true;
+        }
+        if (handle != null) {
+          openFolders.doneReading(handle);
+          handle = null;
+        }
+        return false;
       }
 
       @Override
       public LocalMessage next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more messages in folder.");
+        }
         int currentMessage = nextMessage;
         nextMessage++;
-        JavaxMailMessage message = folder.getMessage(currentMessage);
+        LocalMessage message = readMessage(handle, currentMessage);
+        position.folderIterator = FolderIterator.this;
+        position.messageNumber = currentMessage;
 
-        return createLocalMessage(message);
+        return message;
       }
     }
 
@@ -122,28 +284,127 @@ public abstract class JavaxMailStorage implements LocalStorage {
       private Iterator<LocalMessage> currentMessageIterator = Collections.emptyIterator();
 
       private SubfolderIterator() {
-        folderIterator = filterFolders(Arrays.asList(folder.list()).iterator());
+        List<JavaxMailFolder> subfolders =
+            Lists.newArrayList(filterFolders(Arrays.asList(folder.list()).iterator()));
+        if (resumesInSubfolder()) {
+          // Skip, without opening them, the subfolders before the one with the checkpoint.
+          String resumeFolderName = resumeFrom.getFolderPath().get(depth);
+          int resumeFolderIndex =
+              Iterables.indexOf(
+                  subfolders, subfolder -> subfolder.getFullName().equals(resumeFolderName));
+          if (resumeFolderIndex >= 0) {
+            subfolders = subfolders.subList(resumeFolderIndex, subfolders.size());
+          } else {
+            logger.warning(() -> "Could not find folder to resume from: " + resumeFolderName);
+          }
+        }
+        folderIterator = subfolders.iterator();
       }
 
       @Override
       public boolean hasNext() {
-        while (!currentMessageIterator.hasNext() && folderIterator.hasNext()) {
-          currentMessageIterator = new FolderIterator(folderIterator.next());
-        }
+        advance();
         return currentMessageIterator.hasNext();
       }
 
       @Override
       public LocalMessage next() {
-        while (!currentMessageIterator.hasNext() && folderIterator.hasNext()) {
-          currentMessageIterator = new FolderIterator(folderIterator.next());
-        }
+        advance();
         if (currentMessageIterator.hasNext()) {
           return currentMessageIterator.next();
         }
 
         throw new NoSuchElementException("Out of subfolder messages");
       }
+
+      private void advance() {
+        while (!currentMessageIterator.hasNext() && folderIterator.hasNext()) {
+          JavaxMailFolder subfolder = folderIterator.next();
+          currentMessageIterator =
+              new FolderIterator(
+                  subfolder, FolderIterator.this, resumeFromFor(subfolder), position);
+        }
+      }
+    }
+
+    /** Returns the checkpoint to resume {@code subfolder} from, if it contains it. */
+    @Nullable
+    private Checkpoint resumeFromFor(JavaxMailFolder subfolder) {
+      if (resumesInSubfolder()
+          && resumeFrom.getFolderPath().get(depth).equals(subfolder.getFullName())) {
+        return resumeFrom;
+      }
+      return null;
+    }
+  }
+
+  /** A message that lets {@link OpenFolders} know when it has been released. */
+  private class ReleasingMessage implements LocalMessage {
+    private final LocalMessage message;
+    private final OpenFolders.Handle handle;
+    private boolean released;
+
+    ReleasingMessage(LocalMessage message, OpenFolders.Handle handle) {
+      this.message = message;
+      this.handle = handle;
+    }
+
+    @Override
+    public String getMessageId() {
+      return message.getMessageId();
+    }
+
+    @Override
+    public String getFromHeader() {
+      return message.getFromHeader();
+    }
+
+    @Override
+    public List<String> getFolders() {
+      return message.getFolders();
+    }
+
+    @Override
+    public Set<String> getTags() {
+      return message.getTags();
+    }
+
+    @Override
+    public byte[] getRawContent() {
+      return message.getRawContent();
+    }
+
+    @Override
+    public InputStream openRawStream() throws IOException {
+      return message.openRawStream();
+    }
+
+    @Override
+    public long getRawLength() {
+      return message.getRawLength();
+    }
+
+    @Override
+    public boolean isUnread() {
+      return message.isUnread();
+    }
+
+    @Override
+    public boolean isStarred() {
+      return message.isStarred();
+    }
+
+    @Override
+    public void release() {
+      if (!released) {
+        released = true;
+        openFolders.release(handle);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return message.toString();
     }
   }
 }
@@ -16,7 +16,12 @@
 
 package to.lean.tools.gmail.importer.local;
 
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Provides a generic interface to messages on local storage that can be used get the contents and
@@ -40,10 +45,43 @@ public interface LocalMessage {
    */
   List<String> getFolders();
 
+  /**
+   * Returns the names of the tags, or keywords, that the message has in the local store, each of
+   * which is applied to the message in Gmail as a label of its own. Stores without tags return an
+   * empty set.
+   */
+  default Set<String> getTags() {
+    return ImmutableSet.of();
+  }
+
   /** Returns the raw, underlying bytes of the message. */
   byte[] getRawContent();
 
+  /**
+   * Opens a stream over the same bytes as {@link #getRawContent()}. Each call returns a new stream
+   * that starts at the beginning of the message, so an upload that fails part way through can be
+   * retried. Implementations should override this to avoid holding the whole message in memory.
+   */
+  default InputStream openRawStream() throws IOException {
+    return new ByteArrayInputStream(getRawContent());
+  }
+
+  /**
+   * Returns the number of bytes that {@link #openRawStream()} returns, or -1 if it is not known
+   * without reading the whole message.
+   */
+  default long getRawLength() {
+    return -1;
+  }
+
   boolean isUnread();
 
   boolean isStarred();
+
+  /**
+   * Called once the message has been sync'd, or skipped, and won't be read again, so that the
+   * storage can let go of what it keeps for the message, like the folder it is in. Later calls do
+   * nothing.
+   */
+  default void release() {}
 }
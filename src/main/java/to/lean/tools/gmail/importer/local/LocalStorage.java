@@ -16,8 +16,43 @@
 
 package to.lean.tools.gmail.importer.local;
 
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Defines the interface for local storage. The only thing the importer really cares about is
  * getting messages from local storage so that it can ensure that they exist in remote storage.
  */
-public interface LocalStorage extends Iterable<LocalMessage> {}
+public interface LocalStorage extends Iterable<LocalMessage> {
+
+  /**
+   * Returns an iterator over the messages after {@code checkpoint}. Folders and messages before the
+   * checkpoint should be skipped without being read.
+   */
+  CheckpointIterator iterator(Checkpoint checkpoint);
+
+  /** Returns a sequential stream over the messages, in the same order as {@link #iterator()}. */
+  default Stream<LocalMessage> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
+  /**
+   * Returns a stream over the messages that reads up to {@code parallelism} folders at once, in
+   * which the messages of different folders may be interleaved. The stream should be closed, so
+   * that any folders still being read are stopped. Storage that can't read folders in parallel
+   * returns {@link #stream()}.
+   */
+  default Stream<LocalMessage> stream(int parallelism) {
+    return stream();
+  }
+
+  /**
+   * Returns a stream over the same messages as {@link #stream(int)} for building a {@link
+   * FolderIndex}, which only asks for their message ids, folders, tags and flags. Storage that can
+   * find those without reading each message whole should override this; by default the messages are
+   * read the same way as for the import.
+   */
+  default Stream<LocalMessage> streamHeaders(int parallelism) {
+    return stream(parallelism);
+  }
+}
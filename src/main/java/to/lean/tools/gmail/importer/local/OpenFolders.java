@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.Folder;
+
+/**
+ * Keeps track of the folders that a {@link JavaxMailStorage} has open, so that each one is closed
+ * as soon as it isn't needed anymore. Otherwise Mstor keeps the messages and buffers of every
+ * folder that was ever opened until the end of the import.
+ *
+ * <p>A folder is needed while its messages are still being read and while any message that was read
+ * from it hasn't been {@linkplain LocalMessage#release() released}. Since a batch that fails to
+ * sync is never released, the number of folders that are open only for their messages is also
+ * capped: past {@code maxOpenFolders}, the ones that were used least recently are closed. Mstor
+ * parses each message when it is fetched, so the messages that were already read from a closed
+ * folder can still be uploaded. Folders whose messages are still being read are never closed.
+ */
+@ThreadSafe
+class OpenFolders {
+
+  /** The default for the most folders that are kept open. */
+  static final int DEFAULT_MAX_OPEN_FOLDERS = 32;
+
+  /** An open folder and how much of it is still in use. */
+  final class Handle {
+    final JavaxMailFolder folder;
+
+    @GuardedBy("OpenFolders.this")
+    private int messagesInUse;
+
+    @GuardedBy("OpenFolders.this")
+    private boolean reading = true;
+
+    private Handle(JavaxMailFolder folder) {
+      this.folder = folder;
+    }
+  }
+
+  private final Logger logger;
+  private final int maxOpenFolders;
+
+  /** The open folders, from the least to the most recently used. */
+  @GuardedBy("this")
+  private final Map<Handle, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+  OpenFolders(Logger logger, int maxOpenFolders) {
+    Preconditions.checkArgument(
+        maxOpenFolders > 0, "The maximum number of open folders must be positive");
+    this.logger = logger;
+    this.maxOpenFolders = maxOpenFolders;
+  }
+
+  /** Opens {@code folder} to read its messages, unless it is open already. */
+  Handle open(JavaxMailFolder folder) {
+    logger.fine(() -> "Opening folder:" + folder.getName());
+    if (!folder.isOpen()) {
+      folder.open(Folder.READ_ONLY);
+    }
+    Handle handle = new Handle(folder);
+    synchronized (this) {
+      handles.put(handle, handle);
+      closeLeastRecentlyUsed();
+    }
+    return handle;
+  }
+
+  /** Notes that a message of {@code handle}'s folder was read and is in use until it's released. */
+  synchronized void acquire(Handle handle) {
+    handle.messagesInUse++;
+    handles.get(handle);
+  }
+
+  /** Notes that a message that was {@link #acquire acquired} isn't in use anymore. */
+  synchronized void release(Handle handle) {
+    handle.messagesInUse--;
+    handles.get(handle);
+    closeIfUnused(handle);
+  }
+
+  /** Notes that all of the messages of {@code handle}'s folder have been read. */
+  synchronized void doneReading(Handle handle) {
+    handle.reading = false;
+    closeIfUnused(handle);
+    closeLeastRecentlyUsed();
+  }
+
+  @VisibleForTesting
+  synchronized int getOpenFolderCount() {
+    return handles.size();
+  }
+
+  @GuardedBy("this")
+  private void closeIfUnused(Handle handle) {
+    if (!handle.reading && handle.messagesInUse <= 0 && handles.containsKey(handle)) {
+      close(handle);
+    }
+  }
+
+  @GuardedBy("this")
+  private void closeLeastRecentlyUsed() {
+    Iterator<Handle> iterator = handles.keySet().iterator();
+    while (handles.size() > maxOpenFolders && iterator.hasNext()) {
+      Handle handle = iterator.next();
+      if (!handle.reading) {
+        iterator.remove();
+        logger.fine(
+            () ->
+                "Closing folder "
+                    + handle.folder.getName()
+                    + " with messages still in use: "
+                    + handle.messagesInUse);
+        closeFolder(handle.folder);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void close(Handle handle) {
+    handles.remove(handle);
+    logger.fine(() -> "Closing folder:" + handle.folder.getName());
+    closeFolder(handle.folder);
+  }
+
+  private void closeFolder(JavaxMailFolder folder) {
+    try {
+      if (folder.isOpen()) {
+        folder.close();
+      }
+    } catch (RuntimeMessagingException e) {
+      // The folder was only read, so nothing is lost.
+      logger.warning(() -> "Could not close folder " + folder.getName() + ": " + e);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Reads the messages of several folders of a {@link LocalStorage} at once, on a pool of threads,
+ * and hands them out one at a time.
+ *
+ * <p>Each folder is read by one thread, which first queues the folder's subfolders to be read by
+ * the pool and then puts the folder's messages into a bounded queue. The queue is what the iterator
+ * takes messages from, so the threads stop reading when the consumer falls behind. The messages of
+ * one folder stay in order, but the messages of different folders are interleaved.
+ *
+ * <p>The iterator itself must only be used by one thread. If a folder can't be read, the exception
+ * is rethrown by the iterator. {@link #close} stops the threads, which is only needed if the
+ * iterator isn't used to the end.
+ *
+ * @param <F> the type of the folders
+ */
+@NotThreadSafe
+public class ParallelFolderTraversal<F> implements Iterator<LocalMessage>, AutoCloseable {
+
+  /** Reads folders for a traversal. The methods are called on the traversal's threads. */
+  public interface FolderReader<F> {
+    /** Returns the subfolders of {@code folder} that should be read. */
+    List<F> listSubfolders(F folder);
+
+    /** Returns the messages in {@code folder}, in order. */
+    Iterator<LocalMessage> readMessages(F folder);
+  }
+
+  /** The number of messages that may be read ahead of the consumer. */
+  private static final int QUEUE_CAPACITY = 1000;
+
+  /** Marks the end of the messages in the queue. */
+  private static final Object END = new Object();
+
+  private final FolderReader<F> reader;
+  private final ExecutorService executor;
+  private final BlockingQueue<Object> queue;
+
+  /** The number of folders that have been found but not read completely yet. */
+  private final AtomicInteger foldersLeft;
+
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+  @Nullable private LocalMessage next;
+  private boolean done;
+
+  /**
+   * Starts reading {@code roots} and all of their subfolders.
+   *
+   * @param parallelism the number of folders to read at once
+   */
+  public ParallelFolderTraversal(List<F> roots, FolderReader<F> reader, int parallelism) {
+    this(roots, reader, parallelism, QUEUE_CAPACITY);
+  }
+
+  @VisibleForTesting
+  ParallelFolderTraversal(List<F> roots, FolderReader<F> reader, int parallelism, int capacity) {
+    Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive: %s", parallelism);
+    this.reader = reader;
+    this.executor =
+        Executors.newFixedThreadPool(
+            parallelism,
+            new ThreadFactoryBuilder().setNameFormat("folder-reader-%d").setDaemon(true).build());
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.foldersLeft = new AtomicInteger(roots.size());
+    if (roots.isEmpty()) {
+      queue.add(END);
+    }
+    roots.forEach(this::submit);
+  }
+
+  /**
+   * Returns a stream over the messages of {@code roots} and all of their subfolders, reading {@code
+   * parallelism} folders at once. Closing the stream stops the reading.
+   */
+  public static <F> Stream<LocalMessage> stream(
+      List<F> roots, FolderReader<F> reader, int parallelism) {
+    ParallelFolderTraversal<F> traversal =
+        new ParallelFolderTraversal<>(roots, reader, parallelism);
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(traversal, Spliterator.NONNULL), false)
+        .onClose(traversal::close);
+  }
+
+  private void submit(F folder) {
+    executor.execute(() -> read(folder));
+  }
+
+  private void read(F folder) {
+    try {
+      List<F> subfolders = reader.listSubfolders(folder);
+      foldersLeft.addAndGet(subfolders.size());
+      subfolders.forEach(this::submit);
+
+      for (Iterator<LocalMessage> messages = reader.readMessages(folder); messages.hasNext(); ) {
+        queue.put(messages.next());
+      }
+      if (foldersLeft.decrementAndGet() == 0) {
+        queue.put(END);
+      }
+    } catch (InterruptedException e) {
+      // The traversal was closed.
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      if (failure.compareAndSet(null, e)) {
+        // Wake up the consumer; it checks for the failure before it takes anything else.
+        queue.clear();
+        queue.offer(END);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !done) {
+      Object element = take();
+      if (element == END) {
+        done = true;
+        executor.shutdown();
+      } else {
+        next = (LocalMessage) element;
+      }
+    }
+    RuntimeException e = failure.get();
+    if (e != null) {
+      close();
+      throw e;
+    }
+    return next != null;
+  }
+
+  @Override
+  public LocalMessage next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more messages in the folders.");
+    }
+    LocalMessage message = next;
+    next = null;
+    return message;
+  }
+
+  private Object take() {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new IllegalStateException("Interrupted while waiting for local messages", e);
+    }
+  }
+
+  /** Stops reading folders. The iterator must not be used after it is closed. */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import javax.annotation.Nullable;
+
+/**
+ * Where one message is in an mbox file, along with the few headers that the importer needs to know
+ * about it before reading the rest of it.
+ */
+@AutoValue
+abstract class MboxEntry {
+
+  static MboxEntry create(
+      long offset, long length, @Nullable String messageId, @Nullable String from, int status) {
+    return create(offset, length, messageId, from, status, 0, ImmutableList.of());
+  }
+
+  static MboxEntry create(
+      long offset,
+      long length,
+      @Nullable String messageId,
+      @Nullable String from,
+      int status,
+      int status2,
+      ImmutableList<String> keys) {
+    return new AutoValue_MboxEntry(
+        offset, length, MessageHeaders.create(messageId, from, status, status2, keys, length));
+  }
+
+  /** The offset in the file of the first header, just after the {@code From } separator line. */
+  abstract long getOffset();
+
+  /** The number of bytes from the first header to the end of the message. */
+  abstract long getLength();
+
+  /** The headers of the message that the scan found. Their size is {@link #getLength()}. */
+  abstract MessageHeaders getHeaders();
+
+  /** The value of the {@code Message-ID} header, or {@code null} if there isn't one. */
+  @Nullable
+  final String getMessageId() {
+    return getHeaders().getMessageId();
+  }
+
+  /** The value of the {@code From} header, or {@code null} if there isn't one. */
+  @Nullable
+  final String getFrom() {
+    return getHeaders().getFrom();
+  }
+
+  /** The value of the {@code X-Mozilla-Status} header, or 0 if there isn't one. */
+  final int getStatus() {
+    return getHeaders().getStatus();
+  }
+}
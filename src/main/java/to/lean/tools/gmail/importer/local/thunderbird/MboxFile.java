@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import javax.annotation.concurrent.ThreadSafe;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * One folder of a Thunderbird mail directory, indexed by {@link MboxScanner} and mapped into memory
+ * so that any of its messages can be read without going through the file again.
+ *
+ * <p>The file is mapped in segments of up to {@value #MAX_SEGMENT_BYTES} bytes, each of which ends
+ * at a message boundary, so that every message is inside a single segment. The messages can be read
+ * from any number of threads at once, for example by reading ranges of {@link #getMessages()} in
+ * parallel.
+ */
+@ThreadSafe
+class MboxFile {
+
+  /** The most bytes to map at once; a single mapping can't be larger than 2 GiB anyway. */
+  @VisibleForTesting static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+  private final Path file;
+  private final String folder;
+  private final List<MboxEntry> entries;
+
+  /** The offset in the file of the start of each segment, in increasing order. */
+  private final long[] segmentOffsets;
+
+  /** The mapped segments. They are never read directly, only through duplicates. */
+  private final ByteBuffer[] segments;
+
+  private MboxFile(
+      Path file,
+      String folder,
+      List<MboxEntry> entries,
+      long[] segmentOffsets,
+      ByteBuffer[] segments) {
+    this.file = file;
+    this.folder = folder;
+    this.entries = entries;
+    this.segmentOffsets = segmentOffsets;
+    this.segments = segments;
+  }
+
+  /**
+   * Scans and maps {@code file}.
+   *
+   * @param folder the name of the folder, relative to the root of the mail directory
+   */
+  static MboxFile open(Path file, String folder) throws IOException {
+    return open(file, folder, MAX_SEGMENT_BYTES);
+  }
+
+  @VisibleForTesting
+  static MboxFile open(Path file, String folder, int maxSegmentBytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(file)) {
+      List<MboxEntry> entries = MboxScanner.scan(channel);
+
+      List<Long> segmentOffsets = new ArrayList<>();
+      List<ByteBuffer> segments = new ArrayList<>();
+      int first = 0;
+      while (first < entries.size()) {
+        long start = entries.get(first).getOffset();
+        int last = first;
+        while (last + 1 < entries.size() && end(entries.get(last + 1)) - start <= maxSegmentBytes) {
+          last++;
+        }
+        long length = end(entries.get(last)) - start;
+        Preconditions.checkState(
+            length <= Integer.MAX_VALUE,
+            "Message at offset %s of %s is too large to map: %s bytes",
+            start,
+            file,
+            length);
+        segmentOffsets.add(start);
+        segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+        first = last + 1;
+      }
+      return new MboxFile(
+          file,
+          folder,
+          entries,
+          segmentOffsets.stream().mapToLong(Long::longValue).toArray(),
+          segments.toArray(new ByteBuffer[0]));
+    }
+  }
+
+  private static long end(MboxEntry entry) {
+    return entry.getOffset() + entry.getLength();
+  }
+
+  /** Returns the name of the folder, relative to the root of the mail directory. */
+  String getFolder() {
+    return folder;
+  }
+
+  int getMessageCount() {
+    return entries.size();
+  }
+
+  /** Returns the message with the (0-based) index {@code index} in the file. */
+  LocalMessage getMessage(int index) {
+    return new MboxLocalMessage(this, entries.get(index));
+  }
+
+  /**
+   * Returns all of the messages in the file, in order. The list is random access, so a range of it
+   * is cheap to get and {@link List#parallelStream()} splits it into ranges.
+   */
+  List<LocalMessage> getMessages() {
+    return new MessageList();
+  }
+
+  /** Returns a new buffer over the bytes of {@code entry}, which must be from this file. */
+  ByteBuffer read(MboxEntry entry) {
+    int segment = Arrays.binarySearch(segmentOffsets, entry.getOffset());
+    if (segment < 0) {
+      segment = -segment - 2;
+    }
+    ByteBuffer buffer = segments[segment].duplicate();
+    int position = (int) (entry.getOffset() - segmentOffsets[segment]);
+    buffer.limit(position + (int) entry.getLength());
+    buffer.position(position);
+    return buffer.slice();
+  }
+
+  /** Returns a stream over the bytes of {@code entry}, which must be from this file. */
+  InputStream openStream(MboxEntry entry) {
+    return new ByteBufferInputStream(read(entry));
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+
+  private class MessageList extends AbstractList<LocalMessage> implements RandomAccess {
+    @Override
+    public LocalMessage get(int index) {
+      return getMessage(index);
+    }
+
+    @Override
+    public int size() {
+      return entries.size();
+    }
+  }
+
+  /** Reads a buffer, which is not copied. */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
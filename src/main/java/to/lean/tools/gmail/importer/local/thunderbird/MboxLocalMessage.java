@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.concurrent.ThreadSafe;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+/**
+ * A message in a Thunderbird mbox file that was found by {@link MboxScanner}. Its headers come from
+ * the scan, and its content is read from the memory that the {@link MboxFile} is mapped to.
+ *
+ * <p>The content is exactly what is in the file. Unlike Mstor, body lines that were escaped as
+ * {@code >From } are not unescaped.
+ */
+@ThreadSafe
+class MboxLocalMessage implements LocalMessage {
+
+  private final MboxFile mboxFile;
+  private final MboxEntry entry;
+  private final XMozillaStatus status;
+
+  MboxLocalMessage(MboxFile mboxFile, MboxEntry entry) {
+    this.mboxFile = mboxFile;
+    this.entry = entry;
+    this.status = entry.getHeaders().getFlags();
+  }
+
+  @Override
+  public String getMessageId() {
+    return Verify.verifyNotNull(
+        entry.getMessageId(),
+        "Expected a message id at offset %s of %s",
+        entry.getOffset(),
+        mboxFile);
+  }
+
+  @Override
+  public String getFromHeader() {
+    return Verify.verifyNotNull(
+        entry.getFrom(), "Expected a From header at offset %s of %s", entry.getOffset(), mboxFile);
+  }
+
+  @Override
+  public List<String> getFolders() {
+    return ImmutableList.of(mboxFile.getFolder());
+  }
+
+  @Override
+  public Set<String> getTags() {
+    return entry.getHeaders().getTags();
+  }
+
+  @Override
+  public byte[] getRawContent() {
+    ByteBuffer content = mboxFile.read(entry);
+    byte[] bytes = new byte[content.remaining()];
+    content.get(bytes);
+    return bytes;
+  }
+
+  @Override
+  public InputStream openRawStream() {
+    return mboxFile.openStream(entry);
+  }
+
+  @Override
+  public long getRawLength() {
+    return entry.getLength();
+  }
+
+  @Override
+  public boolean isUnread() {
+    return !status.isRead();
+  }
+
+  @Override
+  public boolean isStarred() {
+    return status.isMarked();
+  }
+
+  @Override
+  public String toString() {
+    return mboxFile.getFolder() + "@" + entry.getOffset() + ": " + entry.getMessageId();
+  }
+}
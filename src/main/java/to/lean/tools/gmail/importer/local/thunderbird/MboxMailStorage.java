@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import to.lean.tools.gmail.importer.local.Checkpoint;
+import to.lean.tools.gmail.importer.local.CheckpointIterator;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+import to.lean.tools.gmail.importer.local.LocalStorage;
+import to.lean.tools.gmail.importer.local.ParallelFolderTraversal;
+
+/**
+ * Reads a Thunderbird mail directory without going through Mstor. Each folder is an mbox file, and
+ * the subfolders of {@code Foo} are in the directory {@code Foo.sbd}. Each folder is opened as an
+ * {@link MboxFile} when the traversal gets to it: {@link MboxScanner} indexes it, parsing only the
+ * headers that the importer needs, and the file is mapped into memory to read the messages from.
+ * {@link #open} gives random access to the messages of any folder.
+ *
+ * <p>Like {@link ThunderbirdMailStorage}, folders with a {@code @} in their name are skipped.
+ */
+@NotThreadSafe
+class MboxMailStorage implements LocalStorage {
+
+  private static final byte[] SEPARATOR = "From ".getBytes(ISO_8859_1);
+
+  /** A folder of the mail directory. */
+  @VisibleForTesting
+  static class MboxFolder {
+    final Path file;
+
+    /** The name of the folder relative to the root, like {@code work/client}. */
+    final String name;
+
+    /** The names of the folders from just below the root down to this one. */
+    final ImmutableList<String> path;
+
+    MboxFolder(Path file, String name, ImmutableList<String> path) {
+      this.file = file;
+      this.name = name;
+      this.path = path;
+    }
+  }
+
+  private final Logger logger;
+  private final ImmutableList<MboxFolder> folders;
+
+  MboxMailStorage(Logger logger, Path root) throws IOException {
+    this.logger = logger;
+    List<MboxFolder> folders = new ArrayList<>();
+    addFolders(root, "", ImmutableList.of(), folders);
+    this.folders = ImmutableList.copyOf(folders);
+  }
+
+  /** Returns the folders in the order they are traversed: each folder before its subfolders. */
+  @VisibleForTesting
+  ImmutableList<MboxFolder> getFolders() {
+    return folders;
+  }
+
+  /** Indexes and maps {@code folder}, which must be one of {@link #getFolders()}. */
+  MboxFile open(MboxFolder folder) throws IOException {
+    return MboxFile.open(folder.file, folder.name);
+  }
+
+  @Override
+  public CheckpointIterator iterator() {
+    return iterator(Checkpoint.start());
+  }
+
+  @Override
+  public CheckpointIterator iterator(Checkpoint checkpoint) {
+    return new Traversal(checkpoint);
+  }
+
+  /** Opens and reads {@code parallelism} folders at once when it is greater than 1. */
+  @Override
+  public Stream<LocalMessage> stream(int parallelism) {
+    if (parallelism <= 1) {
+      return stream();
+    }
+    return ParallelFolderTraversal.stream(
+        folders,
+        new ParallelFolderTraversal.FolderReader<MboxFolder>() {
+          @Override
+          public List<MboxFolder> listSubfolders(MboxFolder folder) {
+            // The folders are already a flat list.
+            return ImmutableList.of();
+          }
+
+          @Override
+          public Iterator<LocalMessage> readMessages(MboxFolder folder) {
+            try {
+              return open(folder).getMessages().iterator();
+            } catch (IOException e) {
+              throw new UncheckedIOException("Could not scan " + folder.file, e);
+            }
+          }
+        },
+        parallelism);
+  }
+
+  private static void addFolders(
+      Path directory, String parentName, ImmutableList<String> parentPath, List<MboxFolder> folders)
+      throws IOException {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String fileName = file.getFileName().toString();
+      if (fileName.contains("@") || !isMboxFile(file)) {
+        continue;
+      }
+      String name = parentName.isEmpty() ? fileName : parentName + "/" + fileName;
+      ImmutableList<String> path =
+          ImmutableList.<String>builder().addAll(parentPath).add(name).build();
+      folders.add(new MboxFolder(file, name, path));
+
+      Path subfolders = directory.resolve(fileName + ".sbd");
+      if (Files.isDirectory(subfolders)) {
+        addFolders(subfolders, name, path, folders);
+      }
+    }
+  }
+
+  /** Returns whether {@code file} is empty or starts with an mbox separator. */
+  private static boolean isMboxFile(Path file) throws IOException {
+    if (!Files.isRegularFile(file) || file.getFileName().toString().endsWith(".msf")) {
+      return false;
+    }
+    try (FileChannel channel = FileChannel.open(file)) {
+      ByteBuffer start = ByteBuffer.allocate(SEPARATOR.length);
+      while (start.hasRemaining() && channel.read(start) >= 0) {}
+      start.flip();
+      return channel.size() == 0 || start.equals(ByteBuffer.wrap(SEPARATOR));
+    }
+  }
+
+  /** Traverses the folders, starting after a checkpoint. */
+  private class Traversal implements CheckpointIterator {
+    private final Checkpoint start;
+    private int nextFolder;
+    @Nullable private MboxFolder folder;
+    @Nullable private MboxFile mboxFile;
+
+    /** The number of messages of {@link #folder} that have been handed out, or skipped. */
+    private int messageNumber;
+
+    private boolean started;
+
+    Traversal(Checkpoint start) {
+      this.start = start;
+      if (start.getFolderPath().isEmpty()) {
+        return;
+      }
+      for (int i = 0; i < folders.size(); i++) {
+        if (folders.get(i).path.equals(start.getFolderPath())) {
+          nextFolder = i;
+          openNextFolder();
+          messageNumber = Math.min(start.getMessageNumber(), getMessageCount());
+          return;
+        }
+      }
+      logger.warning(() -> "Could not find folder to resume from: " + start.getFolderPath());
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (messageNumber >= getMessageCount() && nextFolder < folders.size()) {
+        openNextFolder();
+      }
+      return messageNumber < getMessageCount();
+    }
+
+    @Override
+    public LocalMessage next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more messages in " + folders.size() + " folders.");
+      }
+      LocalMessage message = mboxFile.getMessage(messageNumber);
+      messageNumber++;
+      started = true;
+      return message;
+    }
+
+    @Override
+    public Checkpoint checkpoint() {
+      if (!started) {
+        return start;
+      }
+      return Checkpoint.create(folder.path, messageNumber);
+    }
+
+    private void openNextFolder() {
+      folder = folders.get(nextFolder);
+      nextFolder++;
+      logger.fine(() -> "Opening folder: " + folder.name);
+      try {
+        mboxFile = open(folder);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not scan " + folder.file, e);
+      }
+      messageNumber = 0;
+    }
+
+    private int getMessageCount() {
+      return mboxFile == null ? 0 : mboxFile.getMessageCount();
+    }
+  }
+}
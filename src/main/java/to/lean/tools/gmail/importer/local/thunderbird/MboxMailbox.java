@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+import javax.mail.MessagingException;
+import to.lean.tools.gmail.importer.CommandLineArguments;
+import to.lean.tools.gmail.importer.MailProvider;
+import to.lean.tools.gmail.importer.local.LocalStorage;
+
+/** Reads a Thunderbird mailbox by scanning its mbox files, without Mstor. */
+class MboxMailbox implements MailProvider<LocalStorage> {
+
+  private final Logger logger;
+  private final CommandLineArguments commandLineArguments;
+
+  @Inject
+  MboxMailbox(Logger logger, CommandLineArguments commandLineArguments) {
+    this.logger = logger;
+    this.commandLineArguments = commandLineArguments;
+  }
+
+  @Override
+  public MboxMailStorage get() throws MessagingException {
+    Path mailbox = Paths.get(commandLineArguments.mailboxFileName);
+    if (!Files.isDirectory(mailbox)) {
+      throw new MessagingException("No such mailbox:" + mailbox);
+    }
+
+    try {
+      return new MboxMailStorage(logger, mailbox);
+    } catch (IOException e) {
+      throw new MessagingException("Could not list the folders of " + mailbox, e);
+    }
+  }
+}
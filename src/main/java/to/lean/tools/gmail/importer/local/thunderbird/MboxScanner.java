@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Finds the messages in an mbox file without parsing them as MIME messages.
+ *
+ * <p>Each message starts with a {@code From } separator line. Only the header block of a message is
+ * looked at, and only for the {@code Message-ID}, {@code From}, {@code X-Mozilla-Status}, {@code
+ * X-Mozilla-Status2} and {@code X-Mozilla-Keys} headers; the status flags are parsed straight from
+ * the bytes of the header line. The body is just searched for the next separator. Nothing is kept
+ * for a message but its {@link MboxEntry}, so a whole folder can be scanned in the time it takes to
+ * read it.
+ *
+ * <p>Like Thunderbird, the scanner expects {@code From } at the start of a line in a body to have
+ * been escaped as {@code >From }. The blank line that separates each message from the next is not
+ * part of the message.
+ */
+@NotThreadSafe
+class MboxScanner {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final byte[] SEPARATOR = "From ".getBytes(ISO_8859_1);
+  private static final byte[] MESSAGE_ID = "message-id:".getBytes(ISO_8859_1);
+  private static final byte[] FROM = "from:".getBytes(ISO_8859_1);
+  private static final byte[] STATUS = "x-mozilla-status:".getBytes(ISO_8859_1);
+  private static final byte[] STATUS2 = "x-mozilla-status2:".getBytes(ISO_8859_1);
+  private static final byte[] KEYS = "x-mozilla-keys:".getBytes(ISO_8859_1);
+
+  private final ReadableByteChannel channel;
+  private final byte[] bytes = new byte[BUFFER_SIZE];
+
+  /** Wraps {@link #bytes}, which the scan reads directly. */
+  private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+  /** The offset in the file of the start of {@link #buffer}. */
+  private long bufferOffset;
+
+  /** The header line that was read last, without its line break. */
+  private byte[] line = new byte[256];
+
+  private int lineLength;
+
+  /** Whether the line that was skipped last was blank. */
+  private boolean lastLineBlank;
+
+  /** The header that the current header line belongs to, if it is one of the interesting ones. */
+  @Nullable private byte[] header;
+
+  private final StringBuilder headerValue = new StringBuilder();
+  @Nullable private String messageId;
+  @Nullable private String from;
+  private boolean hasStatus;
+  private int status;
+  private int status2;
+  private ImmutableList<String> keys = ImmutableList.of();
+
+  private MboxScanner(ReadableByteChannel channel) {
+    this.channel = channel;
+    buffer.flip();
+  }
+
+  /** Returns the messages in the mbox file that {@code channel} reads, in the order they are in. */
+  static List<MboxEntry> scan(ReadableByteChannel channel) throws IOException {
+    return new MboxScanner(channel).scan();
+  }
+
+  private List<MboxEntry> scan() throws IOException {
+    List<MboxEntry> entries = new ArrayList<>();
+    // Anything before the first separator isn't part of a message.
+    while (!isAtSeparator()) {
+      if (skipLine() == 0) {
+        return entries;
+      }
+    }
+
+    while (isAtSeparator()) {
+      skipLine();
+      long offset = getPosition();
+      readHeaders();
+
+      long separatorLength = 0;
+      while (!isAtSeparator()) {
+        long skipped = skipLine();
+        if (skipped == 0) {
+          break;
+        }
+        separatorLength = lastLineBlank ? skipped : 0;
+      }
+      long end = getPosition() - separatorLength;
+      entries.add(
+          MboxEntry.create(
+              offset, Math.max(0, end - offset), messageId, from, status, status2, keys));
+    }
+    return entries;
+  }
+
+  /** Reads the header block, up to and including the blank line after it. */
+  private void readHeaders() throws IOException {
+    messageId = null;
+    from = null;
+    hasStatus = false;
+    status = 0;
+    status2 = 0;
+    keys = ImmutableList.of();
+    header = null;
+    while (!isAtSeparator() && readLine()) {
+      if (lineLength == 0) {
+        break;
+      }
+      if (line[0] == ' ' || line[0] == '\t') {
+        if (header != null) {
+          // A folded header: the line break is dropped, but the white space is kept.
+          headerValue.append(new String(line, 0, lineLength, ISO_8859_1));
+        }
+        continue;
+      }
+      finishHeader();
+      if (startsWithIgnoringCase(MESSAGE_ID) && messageId == null) {
+        startHeader(MESSAGE_ID);
+      } else if (startsWithIgnoringCase(FROM) && from == null) {
+        startHeader(FROM);
+      } else if (startsWithIgnoringCase(STATUS) && !hasStatus) {
+        hasStatus = true;
+        status = XMozillaStatusParser.parseValue(line, STATUS.length, lineLength);
+      } else if (startsWithIgnoringCase(STATUS2)) {
+        status2 = XMozillaStatusParser.parseValue(line, STATUS2.length, lineLength);
+      } else if (startsWithIgnoringCase(KEYS)) {
+        startHeader(KEYS);
+      }
+    }
+    finishHeader();
+  }
+
+  private void startHeader(byte[] name) {
+    header = name;
+    headerValue.setLength(0);
+    headerValue.append(new String(line, name.length, lineLength - name.length, ISO_8859_1));
+  }
+
+  private void finishHeader() {
+    if (header == null) {
+      return;
+    }
+    String value = headerValue.toString().trim();
+    if (header == MESSAGE_ID) {
+      messageId = value;
+    } else if (header == FROM) {
+      from = value;
+    } else {
+      keys = XMozillaStatusParser.parseKeys(value);
+    }
+    header = null;
+  }
+
+  private boolean startsWithIgnoringCase(byte[] name) {
+    if (lineLength < name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      byte b = line[i];
+      if (b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (b != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next line into {@link #line}, without its line break.
+   *
+   * @return false if there was nothing left to read
+   */
+  private boolean readLine() throws IOException {
+    lineLength = 0;
+    if (!ensureRemaining(1)) {
+      return false;
+    }
+    while (true) {
+      int start = buffer.position();
+      int limit = buffer.limit();
+      int end = start;
+      while (end < limit && bytes[end] != '\n') {
+        end++;
+      }
+      appendToLine(start, end);
+      if (end < limit) {
+        buffer.position(end + 1);
+        break;
+      }
+      buffer.position(limit);
+      if (!fill()) {
+        break;
+      }
+    }
+    if (lineLength > 0 && line[lineLength - 1] == '\r') {
+      lineLength--;
+    }
+    return true;
+  }
+
+  private void appendToLine(int start, int end) {
+    int length = end - start;
+    if (lineLength + length > line.length) {
+      line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+    }
+    System.arraycopy(bytes, start, line, lineLength, length);
+    lineLength += length;
+  }
+
+  /**
+   * Skips past the next line break, or to the end of the file.
+   *
+   * @return the number of bytes skipped, including the line break
+   */
+  private long skipLine() throws IOException {
+    if (!ensureRemaining(1)) {
+      return 0;
+    }
+    long start = getPosition();
+    boolean startsWithCarriageReturn = bytes[buffer.position()] == '\r';
+    while (true) {
+      int limit = buffer.limit();
+      for (int i = buffer.position(); i < limit; i++) {
+        if (bytes[i] == '\n') {
+          buffer.position(i + 1);
+          long length = getPosition() - start;
+          lastLineBlank = length == 1 || (length == 2 && startsWithCarriageReturn);
+          return length;
+        }
+      }
+      buffer.position(limit);
+      if (!fill()) {
+        lastLineBlank = false;
+        return getPosition() - start;
+      }
+    }
+  }
+
+  private boolean isAtSeparator() throws IOException {
+    if (!ensureRemaining(SEPARATOR.length)) {
+      return false;
+    }
+    int position = buffer.position();
+    for (int i = 0; i < SEPARATOR.length; i++) {
+      if (bytes[position + i] != SEPARATOR[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long getPosition() {
+    return bufferOffset + buffer.position();
+  }
+
+  /** Reads more of the file until {@code count} bytes are buffered, or the file ends. */
+  private boolean ensureRemaining(int count) throws IOException {
+    while (buffer.remaining() < count) {
+      if (!fill()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Reads more of the file into the buffer, keeping the bytes that haven't been consumed yet. */
+  private boolean fill() throws IOException {
+    bufferOffset += buffer.position();
+    buffer.compact();
+    int read;
+    try {
+      read = channel.read(buffer);
+    } finally {
+      buffer.flip();
+    }
+    return read > 0;
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Enumeration;
+import java.util.Locale;
+import javax.annotation.Nullable;
+import javax.mail.Header;
+import to.lean.tools.gmail.importer.local.JavaxMailMessage;
+
+/**
+ * The few headers of a message that the importer needs, read in one pass over the header block so
+ * that none of them has to be looked up in the message again. {@link MboxScanner} finds the same
+ * headers while it scans an mbox file, without parsing the message at all.
+ */
+@AutoValue
+abstract class MessageHeaders {
+
+  private static final String MESSAGE_ID = "Message-ID";
+  private static final String FROM = "From";
+  private static final String STATUS = "X-Mozilla-Status";
+  private static final String STATUS2 = "X-Mozilla-Status2";
+  private static final String KEYS = "X-Mozilla-Keys";
+
+  /** The names of Thunderbird's default tags, which old-style labels were migrated to. */
+  private static final ImmutableMap<String, String> DEFAULT_TAG_NAMES =
+      ImmutableMap.of(
+          "$label1", "Important",
+          "$label2", "Work",
+          "$label3", "Personal",
+          "$label4", "To Do",
+          "$label5", "Later");
+
+  /**
+   * Keywords that Thunderbird and IMAP servers keep in {@code X-Mozilla-Keys} that aren't tags, in
+   * lower case.
+   */
+  private static final ImmutableSet<String> NON_TAG_KEYWORDS =
+      ImmutableSet.of(
+          "$forwarded",
+          "$mdnsent",
+          "$submitpending",
+          "$junk",
+          "$notjunk",
+          "junk",
+          "nonjunk",
+          "notjunk");
+
+  static MessageHeaders create(
+      @Nullable String messageId,
+      @Nullable String from,
+      int status,
+      int status2,
+      ImmutableList<String> keys,
+      long size) {
+    return create(
+        messageId == null ? ImmutableList.of() : ImmutableList.of(messageId),
+        from == null ? ImmutableList.of() : ImmutableList.of(from),
+        status,
+        false,
+        status2,
+        keys,
+        size);
+  }
+
+  private static MessageHeaders create(
+      ImmutableList<String> messageIds,
+      ImmutableList<String> froms,
+      int status,
+      boolean repeatedStatus,
+      int status2,
+      ImmutableList<String> keys,
+      long size) {
+    return new AutoValue_MessageHeaders(
+        messageIds, froms, status, repeatedStatus, status2, keys, size);
+  }
+
+  /**
+   * Reads the headers of {@code message}. Every value of a repeated header is kept, and only the
+   * accessor that needs the header checks that there is just one. The size is not known: Mstor only
+   * gives an estimate of the size of the content.
+   */
+  static MessageHeaders read(JavaxMailMessage message) {
+    Reader reader = new Reader();
+    if (!message.isMimeMessage()) {
+      Enumeration<?> headers = message.getAllHeaders();
+      while (headers != null && headers.hasMoreElements()) {
+        Header header = (Header) headers.nextElement();
+        String name = header.getName();
+        String value = header.getValue();
+        reader.add(name, name.length(), value, 0, value.length());
+      }
+      return reader.build();
+    }
+
+    for (Enumeration<String> lines = message.getAllHeaderLines(); lines.hasMoreElements(); ) {
+      String line = lines.nextElement();
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        // Like Header.getValue(), the value starts after the white space that follows the colon.
+        int start = colon + 1;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+          start++;
+        }
+        reader.add(line, colon, line, start, line.length());
+      }
+    }
+    return reader.build();
+  }
+
+  /** The values of the {@code Message-ID} headers. */
+  abstract ImmutableList<String> getMessageIds();
+
+  /** The values of the {@code From} headers. */
+  abstract ImmutableList<String> getFroms();
+
+  /** The value of the first {@code X-Mozilla-Status} header, or 0 if there isn't one. */
+  abstract int getStatus();
+
+  /** Whether there is more than one {@code X-Mozilla-Status} header. */
+  abstract boolean hasRepeatedStatus();
+
+  /** The value of the {@code X-Mozilla-Status2} header, or 0 if there isn't one. */
+  abstract int getStatus2();
+
+  /** The tags in the {@code X-Mozilla-Keys} header. */
+  abstract ImmutableList<String> getKeys();
+
+  /** The number of bytes in the raw message, headers included, or -1 if it isn't known. */
+  abstract long getSize();
+
+  /**
+   * Returns the value of the {@code Message-ID} header, or {@code null} if there isn't one.
+   *
+   * @throws com.google.common.base.VerifyException if there is more than one
+   */
+  @Nullable
+  String getMessageId() {
+    Verify.verify(getMessageIds().size() <= 1, "Expected 1 message id, got: %s", getMessageIds());
+    return getMessageIds().isEmpty() ? null : getMessageIds().get(0);
+  }
+
+  /**
+   * Returns the value of the {@code From} header, or {@code null} if there isn't one.
+   *
+   * @throws com.google.common.base.VerifyException if there is more than one
+   */
+  @Nullable
+  String getFrom() {
+    Verify.verify(getFroms().size() <= 1, "Expected 1 From header, got: %s", getFroms());
+    return getFroms().isEmpty() ? null : getFroms().get(0);
+  }
+
+  /**
+   * Returns the flags of {@link #getStatus()} and {@link #getStatus2()}.
+   *
+   * @throws com.google.common.base.VerifyException if there is more than one {@code
+   *     X-Mozilla-Status} header
+   */
+  XMozillaStatus getFlags() {
+    Verify.verify(!hasRepeatedStatus(), "Status header length should be 1.");
+    return XMozillaStatus.of(getStatus(), getStatus2());
+  }
+
+  /**
+   * Returns the names of the tags of the message: the old-style label in {@link #getStatus()}, and
+   * the tags in {@link #getKeys()}. Thunderbird's default tags are named the way Thunderbird shows
+   * them, like {@code Important} for {@code $label1}; any other tag is named by its key, since the
+   * names that the user gave them are only kept in Thunderbird's preferences.
+   */
+  ImmutableSet<String> getTags() {
+    int label = XMozillaStatus.of(getStatus(), getStatus2()).getLabel();
+    if (label == 0 && getKeys().isEmpty()) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<String> tags = ImmutableSet.builder();
+    if (label != 0) {
+      tags.add(getTagName("$label" + label));
+    }
+    for (String key : getKeys()) {
+      if (!NON_TAG_KEYWORDS.contains(key.toLowerCase(Locale.ROOT))) {
+        tags.add(getTagName(key));
+      }
+    }
+    return tags.build();
+  }
+
+  private static String getTagName(String key) {
+    return DEFAULT_TAG_NAMES.getOrDefault(key.toLowerCase(Locale.ROOT), key);
+  }
+
+  /**
+   * Picks out the interesting headers. Only the values of the ones that are kept as strings are
+   * copied out of the header lines; the status flags are parsed in place.
+   */
+  private static class Reader {
+    private final ImmutableList.Builder<String> messageIds = ImmutableList.builder();
+    private final ImmutableList.Builder<String> froms = ImmutableList.builder();
+    private boolean hasStatus;
+    private boolean repeatedStatus;
+    private int status;
+    private int status2;
+    private ImmutableList<String> keys = ImmutableList.of();
+
+    /**
+     * Adds the header whose name is the first {@code nameLength} characters of {@code name} and
+     * whose value is in {@code value} from {@code start} to {@code end}.
+     */
+    void add(String name, int nameLength, String value, int start, int end) {
+      if (is(MESSAGE_ID, name, nameLength)) {
+        messageIds.add(value.substring(start, end));
+      } else if (is(FROM, name, nameLength)) {
+        froms.add(value.substring(start, end));
+      } else if (is(STATUS, name, nameLength)) {
+        if (hasStatus) {
+          repeatedStatus = true;
+        } else {
+          hasStatus = true;
+          status = XMozillaStatusParser.parseValue(value, start, end);
+        }
+      } else if (is(STATUS2, name, nameLength)) {
+        status2 = XMozillaStatusParser.parseValue(value, start, end);
+      } else if (is(KEYS, name, nameLength)) {
+        keys = XMozillaStatusParser.parseKeys(value.substring(start, end));
+      }
+    }
+
+    private static boolean is(String header, String name, int nameLength) {
+      return nameLength == header.length() && name.regionMatches(true, 0, header, 0, nameLength);
+    }
+
+    MessageHeaders build() {
+      return create(messageIds.build(), froms.build(), status, repeatedStatus, status2, keys, -1);
+    }
+  }
+}
@@ -16,13 +16,20 @@
 
 package to.lean.tools.gmail.importer.local.thunderbird;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Function;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.Inject;
 import to.lean.tools.gmail.importer.local.JavaxMailMessage;
@@ -30,39 +37,40 @@ import to.lean.tools.gmail.importer.local.LocalMessage;
 
 /**
  * Thunderbird-specific local message that correctly decodes the {@code X-Mozilla-Status} headers.
+ *
+ * <p>The importer asks for the message id many times, so the headers it needs are read into a
+ * {@link MessageHeaders} the first time any of them is asked for, and answered from there after
+ * that.
  */
 @NotThreadSafe
 class ThunderbirdLocalMessage implements LocalMessage {
 
   private final JavaxMailMessage message;
   private final Function<String, String> relativize;
-  private final XMozillaStatusParser statusParser;
-  private XMozillaStatus status;
+  @Nullable private MessageHeaders headers;
+  @Nullable private XMozillaStatus status;
 
   @Inject
-  ThunderbirdLocalMessage(
-      JavaxMailMessage message,
-      Function<String, String> relativize,
-      XMozillaStatusParser statusParser) {
+  ThunderbirdLocalMessage(JavaxMailMessage message, Function<String, String> relativize) {
     this.message = message;
     this.relativize = relativize;
-    this.statusParser = statusParser;
+  }
+
+  private MessageHeaders getHeaders() {
+    if (headers == null) {
+      headers = MessageHeaders.read(message);
+    }
+    return headers;
   }
 
   @Override
   public String getMessageId() {
-    String[] messageId = message.getHeader("Message-ID");
-    Verify.verify(
-        messageId.length == 1, "Expected 1 message id, got: %s", Arrays.toString(messageId));
-    return messageId[0];
+    return Verify.verifyNotNull(getHeaders().getMessageId(), "Expected 1 message id, got none");
   }
 
   @Override
   public String getFromHeader() {
-    String[] fromHeader = message.getHeader("From");
-    Verify.verify(
-        fromHeader.length == 1, "Expected 1 From header, got: %s", Arrays.toString(fromHeader));
-    return fromHeader[0];
+    return Verify.verifyNotNull(getHeaders().getFrom(), "Expected 1 From header, got none");
   }
 
   @Override
@@ -70,6 +78,11 @@ class ThunderbirdLocalMessage implements LocalMessage {
     return ImmutableList.of(relativize.apply(message.getFolder().getFullName()));
   }
 
+  @Override
+  public Set<String> getTags() {
+    return getHeaders().getTags();
+  }
+
   @Override
   public byte[] getRawContent() {
     ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
@@ -81,19 +94,51 @@ class ThunderbirdLocalMessage implements LocalMessage {
     }
   }
 
+  /**
+   * Streams the headers followed by the undecoded content of the message, which are the same bytes
+   * that {@link javax.mail.Message#writeTo} writes for an unmodified message. Only the headers are
+   * copied; the content is read from wherever Mstor keeps it.
+   */
   @Override
-  public boolean isUnread() {
-    if (status == null) {
-      status = statusParser.parse(message);
+  public InputStream openRawStream() throws IOException {
+    if (!message.isMimeMessage()) {
+      return LocalMessage.super.openRawStream();
+    }
+    return new SequenceInputStream(
+        new ByteArrayInputStream(getHeaderBytes()), message.getRawInputStream());
+  }
+
+  /**
+   * Returns -1, so the message is streamed: Mstor only estimates the size of the content, and the
+   * length of {@link #openRawStream()} has to be exact if it is given at all.
+   */
+  @Override
+  public long getRawLength() {
+    return -1;
+  }
+
+  private byte[] getHeaderBytes() {
+    StringBuilder headerBlock = new StringBuilder();
+    for (Enumeration<String> lines = message.getAllHeaderLines(); lines.hasMoreElements(); ) {
+      headerBlock.append(lines.nextElement()).append("\r\n");
     }
-    return !status.isRead();
+    return headerBlock.append("\r\n").toString().getBytes(ISO_8859_1);
+  }
+
+  @Override
+  public boolean isUnread() {
+    return !getStatus().isRead();
   }
 
   @Override
   public boolean isStarred() {
+    return getStatus().isMarked();
+  }
+
+  private XMozillaStatus getStatus() {
     if (status == null) {
-      status = statusParser.parse(message);
+      status = getHeaders().getFlags();
     }
-    return status.isMarked();
+    return status;
   }
 }
@@ -16,22 +16,38 @@
 
 package to.lean.tools.gmail.importer.local.thunderbird;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Iterators;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
 import to.lean.tools.gmail.importer.local.JavaxMailFolder;
 import to.lean.tools.gmail.importer.local.JavaxMailMessage;
 import to.lean.tools.gmail.importer.local.JavaxMailStorage;
+import to.lean.tools.gmail.importer.local.LocalMessage;
 
 /** Created by flan on 12/21/14. */
 class ThunderbirdMailStorage extends JavaxMailStorage {
 
-  private final XMozillaStatusParser statusParser;
+  /** The mail directory that Mstor reads, or {@code null} if it isn't known. */
+  @Nullable private final Path directory;
 
+  public ThunderbirdMailStorage(Logger logger, JavaxMailFolder store, int maxOpenFolders) {
+    this(logger, store, maxOpenFolders, null);
+  }
+
+  /**
+   * @param directory the mail directory that {@code store} is the root of, which is scanned
+   *     directly when only the headers of the messages are needed
+   */
   public ThunderbirdMailStorage(
-      Logger logger, JavaxMailFolder store, XMozillaStatusParser statusParser) {
-    super(logger, store);
-    this.statusParser = statusParser;
+      Logger logger, JavaxMailFolder store, int maxOpenFolders, @Nullable Path directory) {
+    super(logger, store, maxOpenFolders);
+    this.directory = directory;
   }
 
   @Override
@@ -39,9 +55,31 @@ class ThunderbirdMailStorage extends JavaxMailStorage {
     return Iterators.filter(iterator, folder -> !folder.getName().contains("@"));
   }
 
+  @VisibleForTesting
+  JavaxMailFolder getRoot() {
+    return root;
+  }
+
+  /**
+   * Scans the mbox files of the mail directory with an {@link MboxMailStorage}, which only parses
+   * the headers of each message, rather than having Mstor read every message whole. Its messages
+   * have the same message ids, folder names and flags as the ones that Mstor reads.
+   */
+  @Override
+  public Stream<LocalMessage> streamHeaders(int parallelism) {
+    if (directory == null) {
+      return super.streamHeaders(parallelism);
+    }
+    try {
+      return new MboxMailStorage(logger, directory).stream(parallelism);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not list the folders of " + directory, e);
+    }
+  }
+
   @Override
   public ThunderbirdLocalMessage createLocalMessage(JavaxMailMessage message) {
-    return new ThunderbirdLocalMessage(message, this::relativize, statusParser);
+    return new ThunderbirdLocalMessage(message, this::relativize);
   }
 
   private String relativize(String folder) {
@@ -35,14 +35,11 @@ class ThunderbirdMailbox implements MailProvider<LocalStorage> {
 
   private final Logger logger;
   private final CommandLineArguments commandLineArguments;
-  private final XMozillaStatusParser statusParser;
 
   @Inject
-  ThunderbirdMailbox(
-      Logger logger, CommandLineArguments commandLineArguments, XMozillaStatusParser statusParser) {
+  ThunderbirdMailbox(Logger logger, CommandLineArguments commandLineArguments) {
     this.logger = logger;
     this.commandLineArguments = commandLineArguments;
-    this.statusParser = statusParser;
   }
 
   public JavaxMailStorage get() throws MessagingException {
@@ -66,6 +63,9 @@ class ThunderbirdMailbox implements MailProvider<LocalStorage> {
     store.connect();
 
     return new ThunderbirdMailStorage(
-        logger, new JavaxMailFolder(store.getDefaultFolder()), statusParser);
+        logger,
+        new JavaxMailFolder(store.getDefaultFolder()),
+        commandLineArguments.maxOpenFolders,
+        mailbox.toPath());
   }
 }
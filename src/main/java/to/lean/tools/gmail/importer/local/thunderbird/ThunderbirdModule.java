@@ -21,15 +21,26 @@ import com.google.inject.throwingproviders.ThrowingProviderBinder;
 import to.lean.tools.gmail.importer.MailProvider;
 import to.lean.tools.gmail.importer.local.LocalStorage;
 
-/** Module that binds Thunderbird dependencies. */
+/**
+ * Module that binds Thunderbird dependencies. The mailbox is read through Mstor, or scanned
+ * directly when {@code scanMbox} is set.
+ */
 public class ThunderbirdModule extends AbstractModule {
 
+  private final boolean scanMbox;
+
+  public ThunderbirdModule() {
+    this(false);
+  }
+
+  public ThunderbirdModule(boolean scanMbox) {
+    this.scanMbox = scanMbox;
+  }
+
   @Override
   protected void configure() {
     ThrowingProviderBinder.create(binder())
         .bind(MailProvider.class, LocalStorage.class)
-        .to(ThunderbirdMailbox.class);
-
-    bind(XMozillaStatusParser.class);
+        .to(scanMbox ? MboxMailbox.class : ThunderbirdMailbox.class);
   }
 }
@@ -117,25 +117,96 @@ public class XMozillaStatus {
   /** If set, this message has files attached to it. */
   private static final int MSG_FLAG_ATTACHMENT = 0x10000000;
 
+  /** The flags that are kept, and that instances are interned by. */
+  private static final int KEPT_FLAGS =
+      MSG_FLAG_READ
+          | MSG_FLAG_REPLIED
+          | MSG_FLAG_MARKED
+          | MSG_FLAG_EXPUNGED
+          | MSG_FLAG_FORWARDED
+          | MSG_FLAG_NEW
+          | MSG_FLAG_TEMPLATE
+          | MSG_FLAG_LABELS
+          | MSG_FLAG_ATTACHMENT;
+
+  /** Every possible status, indexed by {@link #index}. */
+  private static final XMozillaStatus[] STATUSES = new XMozillaStatus[1 << 11];
+
+  static {
+    for (int index = 0; index < STATUSES.length; index++) {
+      int status =
+          (index & 0xF) | (index & 0x10) << 8 | (index & 0x20) << 11 | (index & 0x7C0) << 18;
+      STATUSES[index] = new XMozillaStatus(status);
+    }
+  }
+
   private final int status;
 
+  private XMozillaStatus(int status) {
+    this.status = status;
+  }
+
   /**
-   * Extracts the X-Mozilla-Status for the given {@code message}. If the message does not have the
-   * appropriate header field, then we treat the message as if it has none of the bits set. If there
-   * is more than one header, this method throws a {@link com.google.common.base.VerifyException}.
-   *
-   * @param status the message to query
-   * @throws com.google.common.base.VerifyException if there is more than one status header
+   * Returns the status for the values of the {@code X-Mozilla-Status} and {@code X-Mozilla-Status2}
+   * headers, each of which is 0 if the message doesn't have it. There are only a few thousand
+   * different statuses, so the same instance is returned for all of the messages with the same
+   * flags and nothing is allocated.
    */
-  XMozillaStatus(int status) {
-    this.status = status;
+  static XMozillaStatus of(int status, int status2) {
+    return STATUSES[index(((status & 0xFFFF) | (status2 & 0xFFFF0000)) & KEPT_FLAGS)];
+  }
+
+  /** Packs the kept flags of {@code status} into the low 11 bits. */
+  private static int index(int status) {
+    return (status & 0xF)
+        | (status & MSG_FLAG_FORWARDED) >>> 8
+        | (status & MSG_FLAG_NEW) >>> 11
+        | (status & 0x1F000000) >>> 18;
   }
 
   public boolean isRead() {
     return (status & MSG_FLAG_READ) != 0;
   }
 
+  public boolean isReplied() {
+    return (status & MSG_FLAG_REPLIED) != 0;
+  }
+
   public boolean isMarked() {
     return (status & MSG_FLAG_MARKED) != 0;
   }
+
+  /** Whether the message was deleted, but the folder hasn't been compacted yet. */
+  public boolean isExpunged() {
+    return (status & MSG_FLAG_EXPUNGED) != 0;
+  }
+
+  public boolean isForwarded() {
+    return (status & MSG_FLAG_FORWARDED) != 0;
+  }
+
+  public boolean isNew() {
+    return (status & MSG_FLAG_NEW) != 0;
+  }
+
+  public boolean isTemplate() {
+    return (status & MSG_FLAG_TEMPLATE) != 0;
+  }
+
+  public boolean hasAttachment() {
+    return (status & MSG_FLAG_ATTACHMENT) != 0;
+  }
+
+  /**
+   * Returns the number of the old-style label of the message, from 1 to 7, or 0 if it has none.
+   * Newer versions of Thunderbird keep tags in {@code X-Mozilla-Keys} instead.
+   */
+  public int getLabel() {
+    return (status & MSG_FLAG_LABELS) >>> 25;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("XMozillaStatus(%08x)", status);
+  }
 }
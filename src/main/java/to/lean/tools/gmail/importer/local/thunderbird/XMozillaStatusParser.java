@@ -16,7 +16,10 @@
 
 package to.lean.tools.gmail.importer.local.thunderbird;
 
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
 import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
 import java.util.Arrays;
 import to.lean.tools.gmail.importer.local.JavaxMailMessage;
 
@@ -27,26 +30,96 @@ import to.lean.tools.gmail.importer.local.JavaxMailMessage;
  */
 @SuppressWarnings("unused") // we don't use all of the X-Mozilla-Status flags
 public class XMozillaStatusParser {
+  private static final Splitter KEY_SPLITTER =
+      Splitter.on(CharMatcher.whitespace()).omitEmptyStrings();
+
   /**
    * Extracts the X-Mozilla-Status for the given {@code message}. If the message does not have the
    * appropriate header field, then we treat the message as if it has none of the bits set. If there
    * is more than one header, this method throws a {@link com.google.common.base.VerifyException}.
+   * The flags in {@code X-Mozilla-Status2} are read too.
    *
    * @param message the message to query
    * @throws com.google.common.base.VerifyException if there is more than one status header
    */
   public XMozillaStatus parse(JavaxMailMessage message) {
-    int status = 0;
+    return XMozillaStatus.of(
+        parseHeader(message, "X-Mozilla-Status"), parseHeader(message, "X-Mozilla-Status2"));
+  }
+
+  private static int parseHeader(JavaxMailMessage message, String name) {
+    String[] statusHeader = message.getHeader(name);
+    if (statusHeader == null || statusHeader.length == 0) {
+      return 0;
+    }
+    Verify.verify(
+        statusHeader.length == 1,
+        "Status header length should be 1. (%s)",
+        Arrays.toString(statusHeader));
+    return parseValue(statusHeader[0], 0, statusHeader[0].length());
+  }
+
+  /**
+   * Parses the hex value of a status header from {@code value}, between {@code start} and {@code
+   * end}, without copying it. White space around the value is ignored, and a value that isn't hex
+   * means no flags.
+   */
+  static int parseValue(CharSequence value, int start, int end) {
+    while (start < end && Character.isWhitespace(value.charAt(start))) {
+      start++;
+    }
+    while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+      end--;
+    }
+    if (end - start > 8) {
+      return 0;
+    }
+    int flags = 0;
+    for (int i = start; i < end; i++) {
+      int digit = Character.digit(value.charAt(i), 16);
+      if (digit < 0) {
+        return 0;
+      }
+      flags = flags << 4 | digit;
+    }
+    return flags;
+  }
 
-    String[] statusHeader = message.getHeader("X-Mozilla-Status");
-    if (statusHeader != null && statusHeader.length > 0) {
-      Verify.verify(
-          statusHeader.length == 1,
-          "Status header length should be 1. (%s)",
-          Arrays.toString(statusHeader));
-      status = Integer.parseInt(statusHeader[0], 16);
+  /** Like {@link #parseValue(CharSequence, int, int)}, for the bytes of a header line. */
+  static int parseValue(byte[] value, int start, int end) {
+    while (start < end && isWhitespace(value[start])) {
+      start++;
+    }
+    while (end > start && isWhitespace(value[end - 1])) {
+      end--;
     }
+    if (end - start > 8) {
+      return 0;
+    }
+    int flags = 0;
+    for (int i = start; i < end; i++) {
+      int digit = Character.digit(value[i], 16);
+      if (digit < 0) {
+        return 0;
+      }
+      flags = flags << 4 | digit;
+    }
+    return flags;
+  }
 
-    return new XMozillaStatus(status);
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  /**
+   * Parses the value of an {@code X-Mozilla-Keys} header, which lists the tags of a message
+   * separated by spaces. Thunderbird pads the header with spaces so that tags can be added in
+   * place, so it is usually blank.
+   */
+  static ImmutableList<String> parseKeys(String value) {
+    if (CharMatcher.whitespace().matchesAllOf(value)) {
+      return ImmutableList.of();
+    }
+    return ImmutableList.copyOf(KEY_SPLITTER.split(value));
   }
 }
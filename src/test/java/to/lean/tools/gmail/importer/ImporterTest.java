@@ -17,17 +17,33 @@
 package to.lean.tools.gmail.importer;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.api.client.util.Lists;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.ArgumentCaptor;
@@ -38,12 +54,17 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import to.lean.tools.gmail.importer.gmail.GmailService;
 import to.lean.tools.gmail.importer.gmail.GmailSyncer;
+import to.lean.tools.gmail.importer.gmail.SyncBatch;
+import to.lean.tools.gmail.importer.local.Checkpoint;
+import to.lean.tools.gmail.importer.local.CheckpointIterator;
 import to.lean.tools.gmail.importer.local.LocalMessage;
 import to.lean.tools.gmail.importer.local.LocalStorage;
 
 @RunWith(JUnit4.class)
 public class ImporterTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Mock private GmailSyncer gmailSyncer;
   @Mock private GmailService gmailService;
   @Mock private LocalStorage localStorage;
@@ -109,4 +130,247 @@ public class ImporterTest {
     assertThat(messageListCaptor.getAllValues().stream().map(List::size).reduce(0, (a, b) -> a + b))
         .isEqualTo(100);
   }
+
+  @Test
+  public void testImportMail_releasesMessagesOnceSynced() throws Exception {
+    List<LocalMessage> localMessages = newLocalMessages(3);
+    when(localStorage.iterator()).thenAnswer(invocation -> localMessages.iterator());
+    doAnswer(
+            invocation -> {
+              verify(localMessages.get(0), never()).release();
+              return null;
+            })
+        .when(gmailSyncer)
+        .sync(anyList());
+
+    importer.importMail();
+
+    for (LocalMessage message : localMessages) {
+      verify(message).release();
+    }
+  }
+
+  @Test
+  public void testImportMail_pipelined() throws Exception {
+    setUpPipelinedSyncer();
+    when(localStorage.iterator()).thenAnswer(invocation -> newLocalMessages(250).iterator());
+
+    commandLineArguments.pipelineDepth = 3;
+    commandLineArguments.pipelineThreads = 2;
+
+    importer.importMail();
+
+    verify(gmailSyncer).init();
+    verify(gmailSyncer, times(3)).lookUp(messageListCaptor.capture());
+    verify(gmailSyncer, times(3)).upload(any());
+    verify(gmailSyncer, times(3)).fetchLabels(any());
+    verify(gmailSyncer, times(3)).applyLabels(any());
+
+    assertThat(messageListCaptor.getAllValues().stream().map(List::size).reduce(0, (a, b) -> a + b))
+        .isEqualTo(250);
+  }
+
+  @Test
+  public void testImportMail_pipelinedFailureIsRethrown() throws Exception {
+    setUpPipelinedSyncer();
+    when(localStorage.iterator()).thenAnswer(invocation -> newLocalMessages(1000).iterator());
+    when(gmailSyncer.applyLabels(any())).thenThrow(new IOException("boom"));
+
+    commandLineArguments.pipelineDepth = 2;
+
+    try {
+      importer.importMail();
+      assertWithMessage("Should have thrown an exception").fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("boom");
+    }
+  }
+
+  @Test
+  public void testImportMail_savesCheckpointAfterEachBatch() throws Exception {
+    CheckpointIterator checkpointIterator = mock(CheckpointIterator.class);
+    when(checkpointIterator.hasNext()).thenReturn(true);
+    when(checkpointIterator.next()).thenReturn(mock(LocalMessage.class));
+    when(checkpointIterator.checkpoint())
+        .thenReturn(
+            Checkpoint.create(ImmutableList.of("a"), 100),
+            Checkpoint.create(ImmutableList.of("a", "a/b"), 50));
+    when(localStorage.iterator(Checkpoint.start())).thenReturn(checkpointIterator);
+
+    Path checkpointPath = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+    commandLineArguments.checkpointFileName = checkpointPath.toString();
+    commandLineArguments.maxMessages = 150;
+
+    importer.importMail();
+
+    verify(gmailSyncer, times(2)).sync(anyList());
+    assertThat(new CheckpointFile(checkpointPath, "mstor").read().get())
+        .isEqualTo(Checkpoint.create(ImmutableList.of("a", "a/b"), 50));
+  }
+
+  @Test
+  public void testImportMail_resumesFromCheckpoint() throws Exception {
+    Checkpoint checkpoint = Checkpoint.create(ImmutableList.of("a", "a/b"), 50);
+    Path checkpointPath = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+    new CheckpointFile(checkpointPath, "mstor").write(checkpoint);
+
+    CheckpointIterator checkpointIterator = mock(CheckpointIterator.class);
+    when(localStorage.iterator(checkpoint)).thenReturn(checkpointIterator);
+
+    commandLineArguments.checkpointFileName = checkpointPath.toString();
+    commandLineArguments.resume = true;
+
+    importer.importMail();
+
+    verify(localStorage).iterator(checkpoint);
+    verify(gmailSyncer, never()).sync(anyList());
+  }
+
+  @Test
+  public void testImportMail_rejectsCheckpointFromOtherReader() throws Exception {
+    Path checkpointPath = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+    new CheckpointFile(checkpointPath, "scan_mbox")
+        .write(Checkpoint.create(ImmutableList.of("a"), 50));
+
+    commandLineArguments.checkpointFileName = checkpointPath.toString();
+    commandLineArguments.resume = true;
+
+    assertThrows(IOException.class, () -> importer.importMail());
+
+    verify(gmailSyncer, never()).sync(anyList());
+  }
+
+  @Test
+  public void testImportMail_aggregateFolders() throws Exception {
+    LocalMessage inInbox = mock(LocalMessage.class);
+    when(inInbox.getMessageId()).thenReturn("<a>");
+    when(inInbox.getFolders()).thenReturn(ImmutableList.of("Inbox"));
+    LocalMessage inWork = mock(LocalMessage.class);
+    when(inWork.getMessageId()).thenReturn("<a>");
+    when(inWork.getFolders()).thenReturn(ImmutableList.of("Work"));
+    when(localStorage.iterator())
+        .thenAnswer(invocation -> ImmutableList.of(inInbox, inWork).iterator());
+    when(localStorage.streamHeaders(1)).thenAnswer(invocation -> Stream.of(inInbox, inWork));
+
+    commandLineArguments.aggregateFolders = true;
+
+    importer.importMail();
+
+    verify(gmailSyncer).sync(messageListCaptor.capture());
+    List<LocalMessage> batch = messageListCaptor.getValue();
+    assertThat(batch).hasSize(1);
+    assertThat(batch.get(0).getFolders()).containsExactly("Inbox", "Work");
+  }
+
+  @Test
+  public void testImportMail_aggregateFoldersResumesAfterMaxMessages() throws Exception {
+    List<LocalMessage> localMessages = newLocalMessages(3);
+    for (int i = 0; i < localMessages.size(); i++) {
+      when(localMessages.get(i).getMessageId()).thenReturn("<" + i + ">");
+    }
+    when(localStorage.streamHeaders(1)).thenAnswer(invocation -> localMessages.stream());
+    when(localStorage.iterator(any(Checkpoint.class)))
+        .thenAnswer(
+            invocation -> {
+              Checkpoint start = invocation.getArgument(0);
+              return new CheckpointIterator() {
+                int next = start.getMessageNumber();
+
+                @Override
+                public boolean hasNext() {
+                  return next < localMessages.size();
+                }
+
+                @Override
+                public LocalMessage next() {
+                  return localMessages.get(next++);
+                }
+
+                @Override
+                public Checkpoint checkpoint() {
+                  return Checkpoint.create(ImmutableList.of("Inbox"), next);
+                }
+              };
+            });
+
+    commandLineArguments.checkpointFileName =
+        temporaryFolder.getRoot().toPath().resolve("checkpoint").toString();
+    commandLineArguments.aggregateFolders = true;
+    commandLineArguments.maxMessages = 1;
+    importer.importMail();
+    commandLineArguments.resume = true;
+    importer.importMail();
+
+    verify(gmailSyncer, times(2)).sync(messageListCaptor.capture());
+    assertThat(
+            messageListCaptor.getAllValues().stream()
+                .flatMap(List::stream)
+                .map(LocalMessage::getMessageId)
+                .collect(Collectors.toList()))
+        .containsExactly("<0>", "<1>")
+        .inOrder();
+  }
+
+  @Test
+  public void testImportMail_readParallelism() throws Exception {
+    List<LocalMessage> localMessages = newLocalMessages(5);
+    AtomicBoolean closed = new AtomicBoolean();
+    when(localStorage.stream(4)).thenReturn(localMessages.stream().onClose(() -> closed.set(true)));
+
+    commandLineArguments.readParallelism = 4;
+
+    importer.importMail();
+
+    verify(localStorage, never()).iterator();
+    verify(gmailSyncer).sync(localMessages);
+    assertThat(closed.get()).isTrue();
+  }
+
+  @Test
+  public void testImportMail_aggregateFoldersWithReadParallelism() throws Exception {
+    LocalMessage inInbox = mock(LocalMessage.class);
+    when(inInbox.getMessageId()).thenReturn("<a>");
+    when(inInbox.getFolders()).thenReturn(ImmutableList.of("Inbox"));
+    LocalMessage inWork = mock(LocalMessage.class);
+    when(inWork.getMessageId()).thenReturn("<a>");
+    when(inWork.getFolders()).thenReturn(ImmutableList.of("Work"));
+    AtomicInteger openStreams = new AtomicInteger();
+    AtomicInteger mostOpenStreams = new AtomicInteger();
+    // A parallel traversal starts reading as soon as its stream is created.
+    Answer<Stream<LocalMessage>> openStream =
+        invocation -> {
+          mostOpenStreams.accumulateAndGet(openStreams.incrementAndGet(), Math::max);
+          return Stream.of(inInbox, inWork).onClose(openStreams::decrementAndGet);
+        };
+    when(localStorage.streamHeaders(4)).thenAnswer(openStream);
+    when(localStorage.stream(4)).thenAnswer(openStream);
+
+    commandLineArguments.aggregateFolders = true;
+    commandLineArguments.readParallelism = 4;
+
+    importer.importMail();
+
+    verify(localStorage).streamHeaders(4);
+    verify(localStorage).stream(4);
+    assertWithMessage("streams open at once").that(mostOpenStreams.get()).isEqualTo(1);
+    assertThat(openStreams.get()).isEqualTo(0);
+    verify(gmailSyncer).sync(messageListCaptor.capture());
+    assertThat(messageListCaptor.getValue().get(0).getFolders()).containsExactly("Inbox", "Work");
+  }
+
+  private void setUpPipelinedSyncer() throws IOException {
+    SyncBatch syncBatch = mock(SyncBatch.class);
+    when(gmailSyncer.lookUp(anyList())).thenReturn(syncBatch);
+    when(gmailSyncer.upload(any())).then(returnsFirstArg());
+    when(gmailSyncer.fetchLabels(any())).then(returnsFirstArg());
+    when(gmailSyncer.applyLabels(any())).then(returnsFirstArg());
+  }
+
+  private static List<LocalMessage> newLocalMessages(int count) {
+    List<LocalMessage> localMessageList = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      localMessageList.add(mock(LocalMessage.class));
+    }
+    return localMessageList;
+  }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.BackOff;
+import com.google.api.services.gmail.Gmail;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+import javax.inject.Provider;
+
+/**
+ * Compares building a new {@link Gmail} client for every request, which is what {@link
+ * GmailService} used to do, with reusing the one it caches. Each request is sent to a fake
+ * transport, so the numbers are the client-side overhead only.
+ *
+ * <p>Run it from the test classpath with {@code java
+ * to.lean.tools.gmail.importer.gmail.GmailServiceBenchmark [iterations]}.
+ */
+public class GmailServiceBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+    MockHttpTransport httpTransport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public LowLevelHttpResponse execute() {
+                return new MockLowLevelHttpResponse()
+                    .setContentType(Json.MEDIA_TYPE)
+                    .setContent("{\"id\":\"1\"}");
+              }
+            };
+          }
+        };
+    Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod());
+    Provider<BackOff> backOffProvider = () -> BackOff.STOP_BACKOFF;
+    JsonFactory jsonFactory = new JacksonFactory();
+    GmailService gmailService =
+        new GmailService(
+            User.create("someone@example.com"),
+            credential,
+            backOffProvider,
+            httpTransport,
+            jsonFactory);
+    Supplier<Gmail> newClient =
+        () -> GmailService.buildService(credential, backOffProvider, httpTransport, jsonFactory);
+
+    // Warm up both paths before measuring either.
+    measure("warm-up", iterations, newClient);
+    measure("warm-up", iterations, gmailService::getServiceWithRetries);
+
+    measure("new client per request", iterations, newClient);
+    measure("cached client", iterations, gmailService::getServiceWithRetries);
+  }
+
+  private static void measure(String name, int iterations, Supplier<Gmail> clients)
+      throws IOException {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      clients.get().users().messages().get("me", "1").execute();
+    }
+    long nanos = System.nanoTime() - startNanos;
+    long bytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+    System.out.printf(
+        "%-24s %8.2f us/request %10d bytes/request%n",
+        name, nanos / 1000.0 / iterations, bytes / iterations);
+  }
+}
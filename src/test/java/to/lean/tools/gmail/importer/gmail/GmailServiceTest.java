@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.BackOff;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GmailServiceTest {
+
+  private final AtomicInteger backOffsCreated = new AtomicInteger();
+  private final AtomicInteger requestsMade = new AtomicInteger();
+  private int failuresBeforeSuccess;
+  private GmailService gmailService;
+
+  @Before
+  public void setUp() throws Exception {
+    MockHttpTransport httpTransport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public LowLevelHttpResponse execute() {
+                MockLowLevelHttpResponse response =
+                    new MockLowLevelHttpResponse()
+                        .setContentType(Json.MEDIA_TYPE)
+                        .setContent("{}");
+                if (requestsMade.incrementAndGet() <= failuresBeforeSuccess) {
+                  response.setStatusCode(503);
+                }
+                return response;
+              }
+            };
+          }
+        };
+
+    gmailService =
+        new GmailService(
+            User.create("someone@example.com"),
+            new Credential(BearerToken.authorizationHeaderAccessMethod()),
+            () -> {
+              backOffsCreated.incrementAndGet();
+              return BackOff.ZERO_BACKOFF;
+            },
+            httpTransport,
+            new JacksonFactory());
+  }
+
+  @Test
+  public void testClientIsReused() throws Exception {
+    assertThat(gmailService.getServiceWithRetries())
+        .isSameInstanceAs(gmailService.getServiceWithRetries());
+  }
+
+  @Test
+  public void testEachRequestGetsItsOwnBackOff() throws Exception {
+    gmailService.getServiceWithRetries().users().labels().list("me").execute();
+    gmailService.getServiceWithRetries().users().labels().list("me").execute();
+
+    assertThat(backOffsCreated.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testServerErrorsAreRetried() throws Exception {
+    failuresBeforeSuccess = 2;
+
+    gmailService.getServiceWithRetries().users().labels().list("me").execute();
+
+    assertThat(requestsMade.get()).isEqualTo(3);
+  }
+}
@@ -20,13 +20,17 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.api.services.gmail.model.Message;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.MultimapBuilder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -42,7 +46,7 @@ public class GmailSyncerTest {
   public void setUp() {
     MockitoAnnotations.initMocks(this);
 
-    gmailSyncer = new GmailSyncer(mailbox);
+    gmailSyncer = new GmailSyncer(mailbox, SyncOptions.builder().build());
   }
 
   @Test
@@ -77,6 +81,36 @@ public class GmailSyncerTest {
     gmailSyncer.sync(localMessages);
   }
 
+  @Test
+  public void testSyncWithConcurrentUploads() throws Exception {
+    setUpEmptyMailbox();
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    when(mailbox.uploadMessage(any()))
+        .thenAnswer(
+            invocation -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              Thread.sleep(20);
+              inFlight.decrementAndGet();
+              return new Message().setId("id");
+            });
+
+    List<LocalMessage> localMessages = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      localMessages.add(new FakeLocalMessage("Subject " + i, "Body"));
+    }
+
+    gmailSyncer = new GmailSyncer(mailbox, SyncOptions.builder().setUploadConcurrency(3).build());
+    gmailSyncer.init();
+    SyncBatch batch = gmailSyncer.upload(gmailSyncer.lookUp(localMessages));
+
+    verify(mailbox, times(12)).uploadMessage(any());
+    assertWithMessage("uploaded messages")
+        .that(batch.getGmailMessages().keySet())
+        .containsExactlyElementsIn(localMessages);
+    assertWithMessage("max uploads in flight").that(maxInFlight.get()).isAtMost(3);
+  }
+
   private void setUpEmptyMailbox() {
     when(mailbox.mapMessageIds(anyList()))
         .thenAnswer(
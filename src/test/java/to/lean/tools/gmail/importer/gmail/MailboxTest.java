@@ -0,0 +1,539 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend.ApiMethod;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+@RunWith(JUnit4.class)
+public class MailboxTest {
+
+  private FakeGmailBackend backend;
+  private QuotaLimiter quotaLimiter;
+  private Mailbox mailbox;
+
+  @Before
+  public void setUp() throws Exception {
+    backend = new FakeGmailBackend(new JacksonFactory());
+    mailbox = newMailbox(SyncOptions.builder().build());
+  }
+
+  @Test
+  public void testMapMessageIds() throws Exception {
+    String gmailId = backend.addMessage("<1@b>");
+    mailbox.connect();
+    LocalMessage present = makeLocalMessage("<1@b>", "Inbox");
+    LocalMessage missing = makeLocalMessage("<2@b>", "Inbox");
+
+    Multimap<LocalMessage, Message> mapped =
+        mailbox.mapMessageIds(ImmutableList.of(present, missing));
+
+    assertThat(mapped.keySet()).containsExactly(present);
+    assertThat(mapped.get(present).iterator().next().getId()).isEqualTo(gmailId);
+  }
+
+  @Test
+  public void testMapMessageIds_combinesQueries() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setMessageIdsPerQuery(10).build());
+    String gmailId1 = backend.addMessage("<1@b>");
+    String gmailId3 = backend.addMessage("<3@b>");
+    mailbox.connect();
+    LocalMessage local1 = makeLocalMessage("<1@b>", "Inbox");
+    LocalMessage local2 = makeLocalMessage("<2@b>", "Inbox");
+    LocalMessage local3 = makeLocalMessage("<3@b>", "Inbox");
+
+    Multimap<LocalMessage, Message> mapped =
+        mailbox.mapMessageIds(ImmutableList.of(local1, local2, local3));
+
+    assertThat(getIds(mapped)).containsExactly(local1, gmailId1, local3, gmailId3);
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(1);
+    assertThat(backend.getRequestCount(ApiMethod.GET_MESSAGE)).isEqualTo(2);
+  }
+
+  @Test
+  public void testMapMessageIds_splitsCombinedQueries() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setMessageIdsPerQuery(2).build());
+    mailbox.connect();
+    List<LocalMessage> localMessages = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      localMessages.add(makeLocalMessage("<" + i + "@b>", "Inbox"));
+    }
+
+    assertThat(mailbox.mapMessageIds(localMessages)).isEmpty();
+    // Two pairs of message ids, and one on its own.
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(3);
+  }
+
+  @Test
+  public void testMapMessageIds_looksUpSeparatelyIfCombinedResultsAreUnclear() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setMessageIdsPerQuery(10).build());
+    String gmailId1 = backend.addMessage("<1@b>");
+    String gmailId2 = backend.addMessage("<2@b>");
+    backend.failNext(ApiMethod.GET_MESSAGE, 1, 404);
+    mailbox.connect();
+    LocalMessage local1 = makeLocalMessage("<1@b>", "Inbox");
+    LocalMessage local2 = makeLocalMessage("<2@b>", "Inbox");
+
+    Multimap<LocalMessage, Message> mapped =
+        mailbox.mapMessageIds(ImmutableList.of(local1, local2));
+
+    assertThat(getIds(mapped)).containsExactly(local1, gmailId1, local2, gmailId2);
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(3);
+  }
+
+  @Test
+  public void testMapMessageIds_answersFromPreloadedMessageIds() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setPreloadMessageIds(true).build());
+    String gmailId = backend.addMessage("<1@b>");
+    backend.addMessage("<2@b>", "TRASH");
+    mailbox.connect();
+    int listRequests = backend.getRequestCount(ApiMethod.LIST_MESSAGES);
+    LocalMessage present = makeLocalMessage("<1@b>", "Inbox");
+    LocalMessage missing = makeLocalMessage("<3@b>", "Inbox");
+
+    Multimap<LocalMessage, Message> mapped =
+        mailbox.mapMessageIds(ImmutableList.of(present, missing));
+
+    assertThat(getIds(mapped)).containsExactly(present, gmailId);
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(listRequests);
+    assertThat(backend.getRequestCount(ApiMethod.GET_MESSAGE)).isEqualTo(2);
+  }
+
+  @Test
+  public void testMapMessageIds_looksUpWhatCouldNotBePreloaded() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setPreloadMessageIds(true).build());
+    String gmailId1 = backend.addMessage("<1@b>");
+    String gmailId2 = backend.addMessage("<2@b>");
+    backend.failNext(ApiMethod.GET_MESSAGE, 1, 404);
+    mailbox.connect();
+    int listRequests = backend.getRequestCount(ApiMethod.LIST_MESSAGES);
+    LocalMessage local1 = makeLocalMessage("<1@b>", "Inbox");
+    LocalMessage local2 = makeLocalMessage("<2@b>", "Inbox");
+    LocalMessage missing = makeLocalMessage("<3@b>", "Inbox");
+
+    Multimap<LocalMessage, Message> mapped =
+        mailbox.mapMessageIds(ImmutableList.of(local1, local2, missing));
+
+    assertThat(getIds(mapped)).containsExactly(local1, gmailId1, local2, gmailId2);
+    // Only the messages that weren't preloaded are looked up.
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(listRequests + 2);
+  }
+
+  @Test
+  public void testConnect_preloadingReportsRateLimitsToQuotaLimiter() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setPreloadMessageIds(true).build());
+    backend.failNext(ApiMethod.LIST_MESSAGES, 1, Mailbox.TOO_MANY_CONCURRENT_REQUESTS_FOR_USER);
+
+    assertThrows(GoogleJsonResponseException.class, () -> mailbox.connect());
+
+    assertThat(quotaLimiter.getRate())
+        .isLessThan((double) SyncOptions.DEFAULT_QUOTA_UNITS_PER_SECOND);
+  }
+
+  @Test
+  public void testUploadMessage_addsToPreloadedMessageIds() throws Exception {
+    mailbox = newMailbox(SyncOptions.builder().setPreloadMessageIds(true).build());
+    mailbox.connect();
+    int listRequests = backend.getRequestCount(ApiMethod.LIST_MESSAGES);
+    LocalMessage localMessage = makeLocalMessage("<1@b>", "Inbox");
+
+    Message uploaded = mailbox.uploadMessage(localMessage);
+    Multimap<LocalMessage, Message> mapped = mailbox.mapMessageIds(ImmutableList.of(localMessage));
+
+    assertThat(getIds(mapped)).containsExactly(localMessage, uploaded.getId());
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(listRequests);
+  }
+
+  @Test
+  public void testFetchExistingLabels_retriesBackendErrors() throws Exception {
+    String gmailId = backend.addMessage("<1@b>", "INBOX");
+    backend.failNext(ApiMethod.GET_MESSAGE, 1, 503);
+    mailbox.connect();
+    Message message = new Message().setId(gmailId);
+
+    mailbox.fetchExistingLabels(ImmutableList.of(message));
+
+    assertThat(message.getLabelIds()).containsExactly("INBOX");
+  }
+
+  @Test
+  public void testUploadMessage() throws Exception {
+    mailbox.connect();
+    LocalMessage localMessage = makeLocalMessage("<1@b>", "Inbox");
+
+    Message uploaded = mailbox.uploadMessage(localMessage);
+
+    assertThat(backend.getRawContent(uploaded.getId()).get())
+        .isEqualTo(localMessage.getRawContent());
+    assertThat(backend.findMessages("<1@b>")).hasSize(1);
+  }
+
+  @Test
+  public void testUploadMessage_unknownLength() throws Exception {
+    mailbox.connect();
+    LocalMessage localMessage = makeLocalMessage("<1@b>", "Inbox");
+    when(localMessage.getRawLength()).thenReturn(-1L);
+
+    Message uploaded = mailbox.uploadMessage(localMessage);
+
+    assertThat(backend.getRawContent(uploaded.getId()).get())
+        .isEqualTo(localMessage.getRawContent());
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail() throws Exception {
+    String workLabelId = backend.addLabel("Work");
+    String gmailId = backend.addMessage("<1@b>", "INBOX", "SPAM");
+    mailbox.connect();
+    LocalMessage localMessage = makeLocalMessage("<1@b>", "Work");
+    when(localMessage.isUnread()).thenReturn(true);
+
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(localMessage, new Message().setId(gmailId)));
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds())
+        .containsExactly(workLabelId, "UNREAD");
+    assertThat(mailbox.getStatistics().getMessagesRelabelled()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_skipsMessagesThatAlreadyMatch() throws Exception {
+    String gmailId = backend.addMessage("<1@b>", "INBOX");
+    mailbox.connect();
+    Message message = new Message().setId(gmailId);
+    mailbox.fetchExistingLabels(ImmutableList.of(message));
+
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(makeLocalMessage("<1@b>", "Inbox"), message));
+
+    assertThat(backend.getRequestCount(ApiMethod.MODIFY_MESSAGE)).isEqualTo(0);
+    assertThat(mailbox.getStatistics().getLabelsAlreadyInGmail()).isEqualTo(1);
+    assertThat(mailbox.getStatistics().getMessagesRelabelled()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_retriesTooManyRequests() throws Exception {
+    String gmailId = backend.addMessage("<1@b>");
+    backend.failNext(ApiMethod.MODIFY_MESSAGE, 1, Mailbox.TOO_MANY_CONCURRENT_REQUESTS_FOR_USER);
+    mailbox.connect();
+    LocalMessage localMessage = makeLocalMessage("<1@b>", "Inbox");
+
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(localMessage, new Message().setId(gmailId)));
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly("INBOX");
+    assertThat(backend.getRequestCount(ApiMethod.MODIFY_MESSAGE)).isEqualTo(2);
+    assertThat(quotaLimiter.getRate())
+        .isLessThan((double) SyncOptions.DEFAULT_QUOTA_UNITS_PER_SECOND);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_groupsMessagesWithTheSameChanges() throws Exception {
+    String workLabelId = backend.addLabel("Work");
+    ImmutableMultimap.Builder<LocalMessage, Message> map = ImmutableMultimap.builder();
+    for (int i = 0; i < Mailbox.MIN_BATCH_MODIFY_SIZE; i++) {
+      String messageId = "<work" + i + "@b>";
+      map.put(
+          makeLocalMessage(messageId, "Work"),
+          new Message().setId(backend.addMessage(messageId, "INBOX")));
+    }
+    for (int i = 0; i < 2; i++) {
+      String messageId = "<inbox" + i + "@b>";
+      map.put(
+          makeLocalMessage(messageId, "Inbox"), new Message().setId(backend.addMessage(messageId)));
+    }
+    mailbox.connect();
+
+    mailbox.syncLocalLabelsToGmail(map.build());
+
+    assertThat(backend.findMessages("<work0@b>").get(0).getLabelIds()).containsExactly(workLabelId);
+    assertThat(backend.findMessages("<inbox0@b>").get(0).getLabelIds()).containsExactly("INBOX");
+    assertThat(backend.getRequestCount(ApiMethod.BATCH_MODIFY_MESSAGES)).isEqualTo(1);
+    assertThat(backend.getRequestCount(ApiMethod.MODIFY_MESSAGE)).isEqualTo(2);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_groupsByGmailMessage() throws Exception {
+    List<String> gmailIds =
+        ImmutableList.of(backend.addMessage("<0@b>", "SPAM"), backend.addMessage("<1@b>", "SPAM"));
+    ImmutableMultimap.Builder<LocalMessage, Message> map = ImmutableMultimap.builder();
+    for (int i = 0; i < Mailbox.MIN_BATCH_MODIFY_SIZE; i++) {
+      map.put(
+          makeLocalMessage("<" + i % 2 + "@b>", "Inbox"), new Message().setId(gmailIds.get(i % 2)));
+    }
+    mailbox.connect();
+
+    mailbox.syncLocalLabelsToGmail(map.build());
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly("INBOX");
+    assertThat(backend.getRequestCount(ApiMethod.BATCH_MODIFY_MESSAGES)).isEqualTo(0);
+    assertThat(backend.getRequestCount(ApiMethod.MODIFY_MESSAGE)).isEqualTo(2);
+    assertThat(mailbox.getStatistics().getMessagesRelabelled()).isEqualTo(2);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_splitsLargeGroups() throws Exception {
+    ImmutableMultimap.Builder<LocalMessage, Message> map = ImmutableMultimap.builder();
+    for (int i = 0; i <= Mailbox.MAX_BATCH_MODIFY_SIZE; i++) {
+      String messageId = "<" + i + "@b>";
+      map.put(
+          makeLocalMessage(messageId, "Inbox"),
+          new Message().setId(backend.addMessage(messageId, "SPAM")));
+    }
+    mailbox.connect();
+
+    mailbox.syncLocalLabelsToGmail(map.build());
+
+    assertThat(backend.findMessages("<1000@b>").get(0).getLabelIds()).containsExactly("INBOX");
+    assertThat(backend.getRequestCount(ApiMethod.BATCH_MODIFY_MESSAGES)).isEqualTo(2);
+    assertThat(mailbox.getStatistics().getMessagesRelabelled())
+        .isEqualTo(Mailbox.MAX_BATCH_MODIFY_SIZE + 1);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_retriesTooManyRequestsForGroups() throws Exception {
+    ImmutableMultimap.Builder<LocalMessage, Message> map = ImmutableMultimap.builder();
+    for (int i = 0; i < Mailbox.MIN_BATCH_MODIFY_SIZE; i++) {
+      String messageId = "<" + i + "@b>";
+      map.put(
+          makeLocalMessage(messageId, "Inbox"), new Message().setId(backend.addMessage(messageId)));
+    }
+    backend.failNext(
+        ApiMethod.BATCH_MODIFY_MESSAGES, 1, Mailbox.TOO_MANY_CONCURRENT_REQUESTS_FOR_USER);
+    mailbox.connect();
+
+    mailbox.syncLocalLabelsToGmail(map.build());
+
+    assertThat(backend.findMessages("<0@b>").get(0).getLabelIds()).containsExactly("INBOX");
+    assertThat(backend.getRequestCount(ApiMethod.BATCH_MODIFY_MESSAGES)).isEqualTo(2);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_createsMissingLabelsForFoldersAndTags() throws Exception {
+    ImmutableMultimap.Builder<LocalMessage, Message> map = ImmutableMultimap.builder();
+    for (int i = 0; i < Mailbox.MIN_BATCH_MODIFY_SIZE; i++) {
+      String messageId = "<" + i + "@b>";
+      LocalMessage localMessage = makeLocalMessage(messageId, "Clients");
+      when(localMessage.getTags()).thenReturn(ImmutableSet.of("Important", "Work"));
+      map.put(localMessage, new Message().setId(backend.addMessage(messageId, "INBOX")));
+    }
+    mailbox.connect();
+    int batches = backend.getRequestCount(ApiMethod.BATCH);
+
+    mailbox.syncLocalLabelsToGmail(map.build());
+
+    Map<String, String> labelIdsByName =
+        backend.getLabels().stream().collect(toMap(Label::getName, Label::getId));
+    assertThat(backend.findMessages("<0@b>").get(0).getLabelIds())
+        .containsExactly(
+            labelIdsByName.get("Clients"),
+            labelIdsByName.get(Mailbox.TAG_LABEL_PREFIX + "Important"),
+            labelIdsByName.get(Mailbox.TAG_LABEL_PREFIX + "Work"));
+    assertThat(backend.getRequestCount(ApiMethod.CREATE_LABEL)).isEqualTo(3);
+    // One batch for the labels and one for the modify.
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(batches + 2);
+    assertThat(backend.getRequestCount(ApiMethod.BATCH_MODIFY_MESSAGES)).isEqualTo(1);
+    assertThat(mailbox.getStatistics().getLabelsCreated()).isEqualTo(3);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_onlyCreatesLabelsOnce() throws Exception {
+    backend.addMessage("<1@b>", "INBOX");
+    backend.addMessage("<2@b>", "INBOX");
+    mailbox.connect();
+
+    sync(makeLocalMessage("<1@b>", "Clients"));
+    sync(makeLocalMessage("<2@b>", "Clients"));
+
+    assertThat(backend.getRequestCount(ApiMethod.CREATE_LABEL)).isEqualTo(1);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_matchesLabelNamesIgnoringCase() throws Exception {
+    String workLabelId = backend.addLabel("Work");
+    String gmailId = backend.addMessage("<1@b>", "INBOX");
+    mailbox.connect();
+
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(makeLocalMessage("<1@b>", "work"), new Message().setId(gmailId)));
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly(workLabelId);
+    assertThat(backend.getRequestCount(ApiMethod.CREATE_LABEL)).isEqualTo(0);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_skipsLabelsThatCannotBeCreated() throws Exception {
+    String gmailId1 = backend.addMessage("<1@b>", "INBOX");
+    String gmailId2 = backend.addMessage("<2@b>", "INBOX");
+    backend.failNext(ApiMethod.CREATE_LABEL, 1, 400);
+    mailbox.connect();
+    LocalMessage localMessage = makeLocalMessage("<1@b>", "Clients");
+    when(localMessage.isUnread()).thenReturn(true);
+
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(localMessage, new Message().setId(gmailId1)));
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(makeLocalMessage("<2@b>", "Clients"), new Message().setId(gmailId2)));
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly("UNREAD");
+    assertThat(backend.getRequestCount(ApiMethod.CREATE_LABEL)).isEqualTo(1);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_loadsLabelsCreatedSinceConnecting() throws Exception {
+    String gmailId = backend.addMessage("<1@b>", "INBOX");
+    mailbox.connect();
+    String workLabelId = backend.addLabel("Work");
+
+    mailbox.syncLocalLabelsToGmail(
+        ImmutableMultimap.of(makeLocalMessage("<1@b>", "Work"), new Message().setId(gmailId)));
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly(workLabelId);
+    assertThat(mailbox.getStatistics().getLabelsCreated()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSyncLocalLabelsToGmail_createsEachLabelOnceForConcurrentBatches()
+      throws Exception {
+    int batches = 8;
+    List<Multimap<LocalMessage, Message>> maps = new ArrayList<>();
+    for (int i = 0; i < batches; i++) {
+      String messageId = "<" + i + "@b>";
+      maps.add(
+          ImmutableMultimap.of(
+              makeLocalMessage(messageId, "Clients"),
+              new Message().setId(backend.addMessage(messageId, "INBOX"))));
+    }
+    mailbox.connect();
+    ExecutorService executor = Executors.newFixedThreadPool(batches);
+
+    try {
+      List<Future<?>> syncs = new ArrayList<>();
+      for (Multimap<LocalMessage, Message> map : maps) {
+        syncs.add(executor.submit(() -> mailbox.syncLocalLabelsToGmail(map)));
+      }
+      for (Future<?> sync : syncs) {
+        sync.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(backend.getRequestCount(ApiMethod.CREATE_LABEL)).isEqualTo(1);
+    assertThat(backend.findMessages("<7@b>").get(0).getLabelIds()).hasSize(1);
+  }
+
+  @Test
+  public void testCopiesOfMessagesAreOnlyRelabelled() throws Exception {
+    String workLabelId = backend.addLabel("Work");
+    String homeLabelId = backend.addLabel("Home");
+    backend.addMessage("<1@b>", "INBOX");
+    mailbox.connect();
+
+    sync(makeLocalMessage("<1@b>", "Work"));
+    int listRequests = backend.getRequestCount(ApiMethod.LIST_MESSAGES);
+    int getRequests = backend.getRequestCount(ApiMethod.GET_MESSAGE);
+    sync(makeLocalMessage("<1@b>", "Home"));
+    int modifyRequests = backend.getRequestCount(ApiMethod.MODIFY_MESSAGE);
+    sync(makeLocalMessage("<1@b>", "Home"));
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds())
+        .containsExactly(workLabelId, homeLabelId);
+    assertThat(backend.getRequestCount(ApiMethod.LIST_MESSAGES)).isEqualTo(listRequests);
+    assertThat(backend.getRequestCount(ApiMethod.GET_MESSAGE)).isEqualTo(getRequests);
+    assertThat(backend.getRequestCount(ApiMethod.MODIFY_MESSAGE)).isEqualTo(modifyRequests);
+    assertThat(mailbox.getStatistics().getMessagesSeenBefore()).isEqualTo(2);
+    assertThat(mailbox.getStatistics().getLabelsAlreadyApplied()).isEqualTo(1);
+  }
+
+  /** Runs a message through the same steps as {@link GmailSyncer#sync}. */
+  private void sync(LocalMessage localMessage) {
+    Multimap<LocalMessage, Message> mapped = mailbox.mapMessageIds(ImmutableList.of(localMessage));
+    mailbox.fetchExistingLabels(mapped.values());
+    mailbox.syncLocalLabelsToGmail(mapped);
+  }
+
+  private Mailbox newMailbox(SyncOptions options) {
+    User user = User.create("someone@example.com");
+    GmailService gmailService =
+        new GmailService(
+            user,
+            new Credential(BearerToken.authorizationHeaderAccessMethod()),
+            () -> BackOff.STOP_BACKOFF,
+            backend,
+            backend.getJsonFactory());
+    quotaLimiter = new QuotaLimiter(options);
+    return new Mailbox(
+        gmailService,
+        user,
+        new MessageIndex(Logger.getLogger("test"), options),
+        quotaLimiter,
+        () -> BackOff.ZERO_BACKOFF,
+        options);
+  }
+
+  private static ImmutableMultimap<LocalMessage, String> getIds(
+      Multimap<LocalMessage, Message> mapped) {
+    ImmutableMultimap.Builder<LocalMessage, String> ids = ImmutableMultimap.builder();
+    mapped.forEach((localMessage, message) -> ids.put(localMessage, message.getId()));
+    return ids.build();
+  }
+
+  private static LocalMessage makeLocalMessage(String messageId, String folder) throws IOException {
+    LocalMessage localMessage = mock(LocalMessage.class);
+    when(localMessage.getMessageId()).thenReturn(messageId);
+    when(localMessage.getFolders()).thenReturn(ImmutableList.of(folder));
+    byte[] rawContent = ("Message-ID: " + messageId + "\r\n\r\nHello\r\n").getBytes(UTF_8);
+    when(localMessage.getRawContent()).thenReturn(rawContent);
+    when(localMessage.openRawStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream(rawContent));
+    when(localMessage.getRawLength()).thenReturn((long) rawContent.length);
+    return localMessage;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.collect.ImmutableList;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MessageIndexTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path indexPath;
+
+  @Before
+  public void setUp() throws Exception {
+    indexPath = temporaryFolder.getRoot().toPath().resolve("index");
+  }
+
+  @Test
+  public void testNoIndexFile_remembersNothing() throws Exception {
+    MessageIndex index =
+        new MessageIndex(Logger.getLogger("test"), SyncOptions.builder().build());
+    index.open();
+
+    index.addGmailIds("<a@b>", ImmutableList.of("1"));
+
+    assertThat(index.get("<a@b>").isPresent()).isFalse();
+  }
+
+  @Test
+  public void testEntriesSurviveReopening() throws Exception {
+    MessageIndex index = openIndex();
+    index.addGmailIds("<a@b>", ImmutableList.of("1"));
+    index.addGmailIds("<a@b>", ImmutableList.of("2"));
+    index.addGmailIds("<c@d>", ImmutableList.of("3"));
+    index.updateLabelIds("<a@b>", ImmutableList.of("Label_1", "UNREAD"), ImmutableList.of());
+    index.updateLabelIds("<a@b>", ImmutableList.of(), ImmutableList.of("UNREAD"));
+
+    MessageIndex reopened = openIndex();
+
+    assertWithMessage("gmail ids")
+        .that(reopened.get("<a@b>").get().getGmailIds())
+        .containsExactly("1", "2");
+    assertWithMessage("label ids")
+        .that(reopened.get("<a@b>").get().getLabelIds())
+        .containsExactly("Label_1");
+    assertWithMessage("gmail ids")
+        .that(reopened.get("<c@d>").get().getGmailIds())
+        .containsExactly("3");
+    assertThat(reopened.get("<e@f>").isPresent()).isFalse();
+  }
+
+  @Test
+  public void testHasLabelIds() throws Exception {
+    MessageIndex index = openIndex();
+    index.addGmailIds("<a@b>", ImmutableList.of("1"));
+    index.updateLabelIds("<a@b>", ImmutableList.of("Label_1", "STARRED"), ImmutableList.of());
+
+    assertThat(index.hasLabelIds("<a@b>", ImmutableList.of("Label_1"), ImmutableList.of("SPAM")))
+        .isTrue();
+    assertThat(index.hasLabelIds("<a@b>", ImmutableList.of("Label_2"), ImmutableList.of()))
+        .isFalse();
+    assertThat(index.hasLabelIds("<a@b>", ImmutableList.of(), ImmutableList.of("STARRED")))
+        .isFalse();
+    assertThat(index.hasLabelIds("<x@y>", ImmutableList.of(), ImmutableList.of())).isFalse();
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws Exception {
+    MessageIndex index = openIndex();
+    index.addGmailIds("<a@b>", ImmutableList.of("1"));
+    index.addGmailIds("<c@d>", ImmutableList.of("2"));
+
+    // Simulate a crash in the middle of writing the last record.
+    try (RandomAccessFile file = new RandomAccessFile(indexPath.toFile(), "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    MessageIndex reopened = openIndex();
+    assertThat(reopened.get("<a@b>").isPresent()).isTrue();
+    assertThat(reopened.get("<c@d>").isPresent()).isFalse();
+
+    // New records are appended after the last good one.
+    reopened.addGmailIds("<e@f>", ImmutableList.of("3"));
+    MessageIndex reopenedAgain = openIndex();
+    assertThat(reopenedAgain.get("<a@b>").isPresent()).isTrue();
+    assertThat(reopenedAgain.get("<e@f>").isPresent()).isTrue();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    MessageIndex index = openIndex();
+    for (int i = 0; i < 2000; i++) {
+      index.updateLabelIds("<a@b>", ImmutableList.of("Label_" + i), ImmutableList.of());
+    }
+    long uncompactedSize = Files.size(indexPath);
+
+    MessageIndex reopened = openIndex();
+
+    assertThat(Files.size(indexPath)).isLessThan(uncompactedSize);
+    assertThat(reopened.get("<a@b>").get().getLabelIds()).hasSize(2000);
+    reopened.addGmailIds("<c@d>", ImmutableList.of("1"));
+    assertThat(openIndex().get("<c@d>").isPresent()).isTrue();
+  }
+
+  private MessageIndex openIndex() throws Exception {
+    MessageIndex index =
+        new MessageIndex(
+            Logger.getLogger("test"), SyncOptions.builder().setMessageIndexPath(indexPath).build());
+    index.open();
+    return index;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class QuotaLimiterTest {
+
+  private static final double MAX_RATE = 1000;
+
+  private long nowNanos;
+  private QuotaLimiter quotaLimiter;
+
+  @Before
+  public void setUp() {
+    quotaLimiter =
+        new QuotaLimiter(
+            MAX_RATE,
+            new Ticker() {
+              @Override
+              public long read() {
+                return nowNanos;
+              }
+            });
+  }
+
+  @Test
+  public void testRecordFailure_halvesRateWhenRateLimited() {
+    assertThat(quotaLimiter.recordFailure(error(429, "rateLimitExceeded"))).isTrue();
+
+    assertThat(quotaLimiter.getRate()).isEqualTo(MAX_RATE / 2);
+  }
+
+  @Test
+  public void testRecordFailure_forbiddenRateLimit() {
+    assertThat(quotaLimiter.recordFailure(error(403, "userRateLimitExceeded"))).isTrue();
+
+    assertThat(quotaLimiter.getRate()).isEqualTo(MAX_RATE / 2);
+  }
+
+  @Test
+  public void testRecordFailure_ignoresOtherErrors() {
+    assertThat(quotaLimiter.recordFailure(error(403, "insufficientPermissions"))).isFalse();
+    assertThat(quotaLimiter.recordFailure(error(500, "backendError"))).isFalse();
+
+    assertThat(quotaLimiter.getRate()).isEqualTo(MAX_RATE);
+  }
+
+  @Test
+  public void testRecordFailure_decreasesOncePerInterval() {
+    quotaLimiter.recordFailure(error(429, "rateLimitExceeded"));
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(500);
+    quotaLimiter.recordFailure(error(429, "rateLimitExceeded"));
+
+    assertThat(quotaLimiter.getRate()).isEqualTo(MAX_RATE / 2);
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(500);
+    quotaLimiter.recordFailure(error(429, "rateLimitExceeded"));
+
+    assertThat(quotaLimiter.getRate()).isEqualTo(MAX_RATE / 4);
+  }
+
+  @Test
+  public void testRecordFailure_keepsAMinimumRate() {
+    for (int i = 0; i < 100; i++) {
+      quotaLimiter.recordFailure(error(429, "rateLimitExceeded"));
+      nowNanos += TimeUnit.SECONDS.toNanos(1);
+    }
+
+    assertThat(quotaLimiter.getRate()).isGreaterThan(0.0);
+  }
+
+  @Test
+  public void testRecordSuccess_recoversToTheMaximum() {
+    quotaLimiter.recordFailure(error(429, "rateLimitExceeded"));
+    quotaLimiter.recordSuccess();
+
+    assertThat(quotaLimiter.getRate()).isGreaterThan(MAX_RATE / 2);
+
+    for (int i = 0; i < 1000; i++) {
+      quotaLimiter.recordSuccess();
+    }
+
+    assertThat(quotaLimiter.getRate()).isEqualTo(MAX_RATE);
+  }
+
+  private static GoogleJsonError error(int code, String reason) {
+    GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+    errorInfo.setReason(reason);
+    GoogleJsonError error = new GoogleJsonError();
+    error.setCode(code);
+    error.setErrors(ImmutableList.of(errorInfo));
+    return error;
+  }
+}
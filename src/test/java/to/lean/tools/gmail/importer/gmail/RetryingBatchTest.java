@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.util.BackOff;
+import com.google.api.services.gmail.model.BatchModifyMessagesRequest;
+import com.google.api.services.gmail.model.Message;
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.inject.Provider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmail;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend.ApiMethod;
+
+@RunWith(JUnit4.class)
+public class RetryingBatchTest {
+
+  private static final String USER = "someone@example.com";
+  private static final long BACK_OFF_MILLIS = 1000;
+
+  private final List<Long> sleeps = new ArrayList<>();
+  private final List<String> results = Collections.synchronizedList(new ArrayList<>());
+  private FakeGmailBackend backend;
+  private FakeGmail gmail;
+  private ExecutorService executor;
+  private long nowNanos;
+
+  @Before
+  public void setUp() {
+    backend = new FakeGmailBackend(new JacksonFactory());
+    gmail = new FakeGmail(backend);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRetriesRateLimitedRequestsAfterBackingOff() throws Exception {
+    String id = backend.addMessage("<1@b>");
+    backend.failNext(ApiMethod.GET_MESSAGE, 1, 429);
+    RetryingBatch batch = newBatch(() -> constantBackOff());
+
+    queueGet(batch, id);
+    batch.execute();
+
+    assertThat(results).containsExactly(id);
+    assertThat(sleeps).containsExactly(BACK_OFF_MILLIS);
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(2);
+  }
+
+  @Test
+  public void testCoalescesRetries() throws Exception {
+    String id1 = backend.addMessage("<1@b>");
+    String id2 = backend.addMessage("<2@b>");
+    String id3 = backend.addMessage("<3@b>");
+    backend.failNext(ApiMethod.GET_MESSAGE, 2, 503);
+    RetryingBatch batch = newBatch(() -> constantBackOff());
+
+    queueGet(batch, id1);
+    queueGet(batch, id2);
+    queueGet(batch, id3);
+    batch.execute();
+
+    assertThat(results).containsExactly(id3, id1, id2).inOrder();
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(2);
+    assertThat(backend.getRequestCount(ApiMethod.GET_MESSAGE)).isEqualTo(5);
+  }
+
+  @Test
+  public void testReportsFailureWhenBackOffStops() throws Exception {
+    String id = backend.addMessage("<1@b>");
+    backend.failNext(ApiMethod.GET_MESSAGE, 1, 429);
+    RetryingBatch batch = newBatch(() -> BackOff.STOP_BACKOFF);
+
+    queueGet(batch, id);
+    batch.execute();
+
+    assertThat(results).containsExactly("429");
+    assertThat(sleeps).isEmpty();
+  }
+
+  @Test
+  public void testDoesNotRetryClientErrors() throws Exception {
+    RetryingBatch batch = newBatch(() -> constantBackOff());
+
+    queueGet(batch, "missing");
+    batch.execute();
+
+    assertThat(results).containsExactly("404");
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(1);
+  }
+
+  @Test
+  public void testSplitsBatchesOverTheRequestLimit() throws Exception {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      ids.add(backend.addMessage("<" + i + "@b>"));
+    }
+    RetryingBatch batch = newBatch(() -> constantBackOff());
+
+    ids.forEach(id -> queueGet(batch, id));
+    batch.execute();
+
+    assertThat(results).containsExactlyElementsIn(ids).inOrder();
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(3);
+  }
+
+  @Test
+  public void testSplitsBatchesOverTheByteLimit() throws Exception {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < Mailbox.MAX_BATCH_MODIFY_SIZE; i++) {
+      ids.add(Strings.padStart(Integer.toString(i), 16, '0'));
+    }
+    RetryingBatch batch = newBatch(() -> constantBackOff());
+
+    // Each request is over 16KB, so fewer than 100 of them make more than one batch.
+    int requests = RetryingBatch.MAX_BYTES_PER_BATCH / (16 * 1024) + 1;
+    for (int i = 0; i < requests; i++) {
+      batch.queue(
+          gmail.users().messages().batchModify(USER, new BatchModifyMessagesRequest().setIds(ids)),
+          QuotaLimiter.Method.MESSAGES_BATCH_MODIFY,
+          recordResults());
+    }
+    batch.execute();
+
+    assertThat(requests).isLessThan(RetryingBatch.MAX_REQUESTS_PER_BATCH);
+    assertThat(results).hasSize(requests);
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(2);
+  }
+
+  @Test
+  public void testSendsBatchesConcurrently() throws Exception {
+    backend.setLatency(Duration.ofMillis(200));
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 2 * RetryingBatch.MAX_REQUESTS_PER_BATCH; i++) {
+      ids.add(backend.addMessage("<" + i + "@b>"));
+    }
+    RetryingBatch batch = newBatch(() -> constantBackOff(), executor);
+
+    ids.forEach(id -> queueGet(batch, id));
+    batch.execute();
+
+    assertThat(results).containsExactlyElementsIn(ids);
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(2);
+    assertThat(backend.getPeakRequestsInFlight()).isEqualTo(2);
+  }
+
+  private RetryingBatch newBatch(Provider<BackOff> backOffProvider) {
+    return newBatch(backOffProvider, null);
+  }
+
+  private RetryingBatch newBatch(Provider<BackOff> backOffProvider, @Nullable Executor executor) {
+    // The quota is high enough that the tests aren't slowed down by pacing.
+    return new RetryingBatch(
+        gmail,
+        new QuotaLimiter(SyncOptions.builder().setQuotaUnitsPerSecond(1_000_000).build()),
+        backOffProvider,
+        millis -> {
+          sleeps.add(millis);
+          nowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        },
+        () -> nowNanos,
+        executor);
+  }
+
+  private void queueGet(RetryingBatch batch, String id) {
+    try {
+      batch.queue(
+          gmail.users().messages().get(USER, id),
+          QuotaLimiter.Method.MESSAGES_GET,
+          new JsonBatchCallback<Message>() {
+            @Override
+            public void onSuccess(Message message, HttpHeaders responseHeaders) {
+              results.add(message.getId());
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+              results.add(Integer.toString(e.getCode()));
+            }
+          });
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private <T> JsonBatchCallback<T> recordResults() {
+    return new JsonBatchCallback<T>() {
+      @Override
+      public void onSuccess(T response, HttpHeaders responseHeaders) {
+        results.add("ok");
+      }
+
+      @Override
+      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+        results.add(Integer.toString(e.getCode()));
+      }
+    };
+  }
+
+  private static BackOff constantBackOff() {
+    return new BackOff() {
+      @Override
+      public void reset() {}
+
+      @Override
+      public long nextBackOffMillis() {
+        return BACK_OFF_MILLIS;
+      }
+    };
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Optional;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SeenMessagesTest {
+
+  private final SeenMessages seenMessages = new SeenMessages();
+
+  @Test
+  public void testRemembersGmailIds() {
+    seenMessages.putGmailId("<1@b>", "18c2e0f3a1b2c3d4");
+    seenMessages.putGmailId("<2@b>", "000000000000000d");
+
+    assertThat(seenMessages.getGmailId("<1@b>")).isEqualTo(Optional.of("18c2e0f3a1b2c3d4"));
+    assertThat(seenMessages.getGmailId("<2@b>")).isEqualTo(Optional.of("000000000000000d"));
+    assertThat(seenMessages.getGmailId("<3@b>")).isEqualTo(Optional.empty());
+  }
+
+  @Test
+  public void testIgnoresGmailIdsThatAreNotSixteenHexDigits() {
+    seenMessages.putGmailId("<1@b>", "d");
+    seenMessages.putGmailId("<2@b>", "18C2E0F3A1B2C3D4");
+    seenMessages.putGmailId("<3@b>", "18c2e0f3a1b2c3dg");
+
+    assertThat(seenMessages.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testGrows() {
+    for (int i = 0; i < 100_000; i++) {
+      seenMessages.putGmailId("<" + i + "@b>", String.format("%016x", i));
+    }
+
+    assertThat(seenMessages.size()).isEqualTo(100_000);
+    for (int i = 0; i < 100_000; i++) {
+      assertThat(seenMessages.getGmailId("<" + i + "@b>"))
+          .isEqualTo(Optional.of(String.format("%016x", i)));
+    }
+  }
+
+  @Test
+  public void testRemembersAppliedLabels() {
+    seenMessages.markLabelsApplied(
+        "<1@b>", "000000000000000d", ImmutableList.of("Work", "UNREAD"), ImmutableList.of("INBOX"));
+
+    assertThat(
+            seenMessages.hasAppliedLabels(
+                "<1@b>", ImmutableList.of("UNREAD", "Work"), ImmutableList.of("INBOX")))
+        .isTrue();
+    assertThat(
+            seenMessages.hasAppliedLabels(
+                "<1@b>", ImmutableList.of("Home", "UNREAD"), ImmutableList.of("INBOX")))
+        .isFalse();
+    assertThat(
+            seenMessages.hasAppliedLabels(
+                "<2@b>", ImmutableList.of("Work", "UNREAD"), ImmutableList.of("INBOX")))
+        .isFalse();
+    assertThat(seenMessages.isLabelled("000000000000000d")).isTrue();
+    assertThat(seenMessages.isLabelled("000000000000000e")).isFalse();
+  }
+
+  @Test
+  public void testLongTableKeepsTheZeroKey() {
+    SeenMessages.LongTable table = new SeenMessages.LongTable(true);
+
+    table.put(0, 42);
+
+    assertThat(table.find(0)).isAtLeast(0);
+    assertThat(table.getValue(table.find(0))).isEqualTo(42);
+    assertThat(table.size()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.gmail.testing;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.gmail.model.BatchModifyMessagesRequest;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.ModifyMessageRequest;
+import com.google.common.collect.ImmutableList;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import to.lean.tools.gmail.importer.gmail.testing.FakeGmailBackend.ApiMethod;
+
+@RunWith(JUnit4.class)
+public class FakeGmailBackendTest {
+
+  private static final String USER = "someone@example.com";
+
+  private FakeGmailBackend backend;
+  private FakeGmail gmail;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    backend = new FakeGmailBackend(new JacksonFactory());
+    gmail = new FakeGmail(backend);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testImportedMessagesCanBeFoundByMessageId() throws Exception {
+    byte[] rawContent = "Message-ID: <a@b>\r\nSubject: hi\r\n\r\nHello\r\n".getBytes(UTF_8);
+
+    Message imported =
+        gmail
+            .users()
+            .messages()
+            .gmailImport(
+                USER,
+                new Message().setLabelIds(ImmutableList.of("INBOX")),
+                new ByteArrayContent("message/rfc822", rawContent))
+            .execute();
+
+    assertThat(imported.getLabelIds()).containsExactly("INBOX");
+    assertThat(backend.getRawContent(imported.getId()).get()).isEqualTo(rawContent);
+    assertThat(listIds("rfc822msgid:<a@b>")).containsExactly(imported.getId());
+    assertThat(listIds("rfc822msgid:a@b")).containsExactly(imported.getId());
+    assertThat(listIds("rfc822msgid:<c@d>")).isEmpty();
+  }
+
+  @Test
+  public void testMessageIdQueriesCanBeCombined() throws Exception {
+    String id1 = backend.addMessage("<1@b>");
+    backend.addMessage("<2@b>");
+    String id3 = backend.addMessage("<3@b>");
+
+    assertThat(listIds("rfc822msgid:1@b OR rfc822msgid:<3@b> OR rfc822msgid:4@b"))
+        .containsExactly(id1, id3);
+  }
+
+  @Test
+  public void testGetMetadata() throws Exception {
+    byte[] rawContent = "Subject: hi\r\nMessage-ID:\r\n <a@b>\r\n\r\nHello\r\n".getBytes(UTF_8);
+    Message imported =
+        gmail
+            .users()
+            .messages()
+            .gmailImport(USER, new Message(), new ByteArrayContent("message/rfc822", rawContent))
+            .execute();
+
+    Message metadata =
+        gmail
+            .users()
+            .messages()
+            .get(USER, imported.getId())
+            .setFormat("metadata")
+            .setMetadataHeaders(ImmutableList.of("message-id"))
+            .setFields("id,payload/headers")
+            .execute();
+
+    assertThat(metadata.getId()).isEqualTo(imported.getId());
+    assertThat(metadata.getLabelIds()).isNull();
+    assertThat(metadata.getPayload().getHeaders()).hasSize(1);
+    assertThat(metadata.getPayload().getHeaders().get(0).getValue()).isEqualTo("<a@b>");
+  }
+
+  @Test
+  public void testFieldsAreHonored() throws Exception {
+    ListMessagesResponse response =
+        gmail
+            .users()
+            .messages()
+            .list(USER)
+            .setQ("rfc822msgid:<a@b>")
+            .setFields("messages(id)")
+            .execute();
+
+    assertThat(response.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testPaging() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      backend.addMessage("<" + i + "@b>");
+    }
+
+    ListMessagesResponse firstPage =
+        gmail.users().messages().list(USER).setMaxResults(3L).execute();
+    ListMessagesResponse secondPage =
+        gmail
+            .users()
+            .messages()
+            .list(USER)
+            .setMaxResults(3L)
+            .setPageToken(firstPage.getNextPageToken())
+            .execute();
+
+    assertThat(firstPage.getMessages()).hasSize(3);
+    assertThat(secondPage.getMessages()).hasSize(2);
+    assertThat(secondPage.getNextPageToken()).isNull();
+  }
+
+  @Test
+  public void testBatchedModifies() throws Exception {
+    String labelId = backend.addLabel("Work");
+    String id1 = backend.addMessage("<1@b>", "INBOX");
+    String id2 = backend.addMessage("<2@b>", "INBOX");
+    List<Integer> errorCodes = new ArrayList<>();
+
+    BatchRequest batch = gmail.batch();
+    for (String id : ImmutableList.of(id1, id2, "missing")) {
+      gmail
+          .users()
+          .messages()
+          .modify(
+              USER,
+              id,
+              new ModifyMessageRequest()
+                  .setAddLabelIds(ImmutableList.of(labelId))
+                  .setRemoveLabelIds(ImmutableList.of("INBOX")))
+          .queue(batch, recordErrors(errorCodes));
+    }
+    batch.execute();
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly(labelId);
+    assertThat(backend.findMessages("<2@b>").get(0).getLabelIds()).containsExactly(labelId);
+    assertThat(errorCodes).containsExactly(404);
+    assertThat(backend.getRequestCount(ApiMethod.BATCH)).isEqualTo(1);
+    assertThat(backend.getRequestCount(ApiMethod.MODIFY_MESSAGE)).isEqualTo(3);
+  }
+
+  @Test
+  public void testBatchModify() throws Exception {
+    String labelId = backend.addLabel("Work");
+    String id1 = backend.addMessage("<1@b>", "INBOX");
+    String id2 = backend.addMessage("<2@b>", "INBOX");
+
+    gmail
+        .users()
+        .messages()
+        .batchModify(
+            USER,
+            new BatchModifyMessagesRequest()
+                .setIds(ImmutableList.of(id1, id2))
+                .setAddLabelIds(ImmutableList.of(labelId))
+                .setRemoveLabelIds(ImmutableList.of("INBOX")))
+        .execute();
+
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly(labelId);
+    assertThat(backend.findMessages("<2@b>").get(0).getLabelIds()).containsExactly(labelId);
+  }
+
+  @Test
+  public void testBatchModify_changesNothingIfAMessageIsMissing() throws Exception {
+    String id = backend.addMessage("<1@b>", "INBOX");
+
+    GoogleJsonResponseException e =
+        assertThrows(
+            GoogleJsonResponseException.class,
+            () ->
+                gmail
+                    .users()
+                    .messages()
+                    .batchModify(
+                        USER,
+                        new BatchModifyMessagesRequest()
+                            .setIds(ImmutableList.of(id, "missing"))
+                            .setRemoveLabelIds(ImmutableList.of("INBOX")))
+                    .execute());
+
+    assertThat(e.getStatusCode()).isEqualTo(404);
+    assertThat(backend.findMessages("<1@b>").get(0).getLabelIds()).containsExactly("INBOX");
+  }
+
+  @Test
+  public void testCreateLabel() throws Exception {
+    Label created = gmail.users().labels().create(USER, newLabel("Work")).execute();
+
+    assertThat(gmail.users().labels().list(USER).execute().getLabels()).contains(created);
+    GoogleJsonResponseException e =
+        assertThrows(
+            GoogleJsonResponseException.class,
+            () -> gmail.users().labels().create(USER, newLabel("work")).execute());
+    assertThat(e.getStatusCode()).isEqualTo(409);
+  }
+
+  @Test
+  public void testInjectedFailures() throws Exception {
+    backend.failNext(ApiMethod.LIST_LABELS, 1, 503);
+
+    GoogleJsonResponseException e =
+        assertThrows(
+            GoogleJsonResponseException.class, () -> gmail.users().labels().list(USER).execute());
+    assertThat(e.getStatusCode()).isEqualTo(503);
+    assertThat(gmail.users().labels().list(USER).execute().getLabels()).isNotEmpty();
+  }
+
+  @Test
+  public void testInjectedFailuresInBatch() throws Exception {
+    backend.failNext(ApiMethod.GET_MESSAGE, 1, 429);
+    String id1 = backend.addMessage("<1@b>");
+    String id2 = backend.addMessage("<2@b>");
+    List<Integer> errorCodes = new ArrayList<>();
+
+    BatchRequest batch = gmail.batch();
+    gmail.users().messages().get(USER, id1).queue(batch, recordErrors(errorCodes));
+    gmail.users().messages().get(USER, id2).queue(batch, recordErrors(errorCodes));
+    batch.execute();
+
+    assertThat(errorCodes).containsExactly(429);
+  }
+
+  @Test
+  public void testFailureRateIsDeterministic() throws Exception {
+    List<Boolean> firstRun = runWithFailureRate();
+    List<Boolean> secondRun = runWithFailureRate();
+
+    assertThat(firstRun).contains(true);
+    assertThat(firstRun).contains(false);
+    assertThat(secondRun).isEqualTo(firstRun);
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    backend.setLatency(Duration.ofMillis(200)).setMaxConcurrentRequests(1);
+    CountDownLatch start = new CountDownLatch(1);
+    Callable<Integer> listLabels =
+        () -> {
+          start.await();
+          try {
+            gmail.users().labels().list(USER).execute();
+            return 200;
+          } catch (GoogleJsonResponseException e) {
+            return e.getStatusCode();
+          }
+        };
+
+    Future<Integer> first = executor.submit(listLabels);
+    Future<Integer> second = executor.submit(listLabels);
+    start.countDown();
+
+    assertThat(ImmutableList.of(first.get(), second.get())).containsExactly(200, 429);
+    assertThat(backend.getPeakRequestsInFlight()).isEqualTo(2);
+  }
+
+  private List<String> listIds(String query) throws Exception {
+    ListMessagesResponse response = gmail.users().messages().list(USER).setQ(query).execute();
+    List<String> ids = new ArrayList<>();
+    if (response.getMessages() != null) {
+      response.getMessages().forEach(message -> ids.add(message.getId()));
+    }
+    return ids;
+  }
+
+  private static Label newLabel(String name) {
+    return new Label()
+        .setName(name)
+        .setLabelListVisibility("labelShow")
+        .setMessageListVisibility("show");
+  }
+
+  private static List<Boolean> runWithFailureRate() throws Exception {
+    FakeGmailBackend backend = new FakeGmailBackend(new JacksonFactory());
+    backend.setFailureRate(ApiMethod.LIST_LABELS, 0.5, 500);
+    FakeGmail gmail = new FakeGmail(backend);
+    List<Boolean> failures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      try {
+        gmail.users().labels().list(USER).execute();
+        failures.add(false);
+      } catch (GoogleJsonResponseException e) {
+        failures.add(true);
+      }
+    }
+    return failures;
+  }
+
+  private static <T> JsonBatchCallback<T> recordErrors(List<Integer> errorCodes) {
+    return new JsonBatchCallback<T>() {
+      @Override
+      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+        errorCodes.add(e.getCode());
+      }
+
+      @Override
+      public void onSuccess(T response, HttpHeaders responseHeaders) {}
+    };
+  }
+}
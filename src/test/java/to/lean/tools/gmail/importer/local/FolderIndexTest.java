@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FolderIndexTest {
+
+  @Test
+  public void testAggregate_mergesFoldersOfCopies() {
+    List<LocalMessage> messages =
+        ImmutableList.of(
+            newMessage("<a>", "Work", false, true),
+            newMessage("<b>", "Work", false, false),
+            newMessage("<a>", "Inbox", false, true),
+            newMessage("<a>", "Work", true, false));
+
+    FolderIndex folderIndex = FolderIndex.build(messages.iterator());
+    List<LocalMessage> aggregated = Lists.newArrayList(folderIndex.aggregate(messages.iterator()));
+
+    assertThat(folderIndex.getMessageCount()).isEqualTo(4);
+    assertThat(folderIndex.getUniqueMessageCount()).isEqualTo(2);
+    assertThat(aggregated).hasSize(2);
+    LocalMessage a = aggregated.get(0);
+    assertThat(a.getMessageId()).isEqualTo("<a>");
+    assertThat(a.getFolders()).containsExactly("Work", "Inbox").inOrder();
+    assertThat(a.isStarred()).isTrue();
+    assertThat(a.isUnread()).isFalse();
+    assertThat(aggregated.get(1).getFolders()).containsExactly("Work");
+  }
+
+  @Test
+  public void testAggregate_mergesTagsOfCopies() {
+    LocalMessage first = newMessage("<a>", "Inbox", false, false);
+    LocalMessage second = newMessage("<a>", "Work", false, false);
+    when(first.getTags()).thenReturn(ImmutableSet.of("Important"));
+    when(second.getTags()).thenReturn(ImmutableSet.of("Important", "Later"));
+    List<LocalMessage> messages = ImmutableList.of(first, second);
+
+    FolderIndex folderIndex = FolderIndex.build(messages.iterator());
+    List<LocalMessage> aggregated = Lists.newArrayList(folderIndex.aggregate(messages.iterator()));
+
+    assertThat(aggregated.get(0).getTags()).containsExactly("Important", "Later");
+  }
+
+  @Test
+  public void testAggregate_readsContentOfFirstCopyOnly() {
+    LocalMessage first = newMessage("<a>", "Inbox", false, false);
+    LocalMessage second = newMessage("<a>", "Work", false, false);
+    when(first.getRawContent()).thenReturn(new byte[] {1});
+    List<LocalMessage> messages = ImmutableList.of(first, second);
+
+    FolderIndex folderIndex = FolderIndex.build(messages.iterator());
+    List<LocalMessage> aggregated = Lists.newArrayList(folderIndex.aggregate(messages.iterator()));
+
+    assertThat(aggregated).hasSize(1);
+    assertThat(aggregated.get(0).getRawContent()).isEqualTo(new byte[] {1});
+    verify(second, never()).getRawContent();
+  }
+
+  @Test
+  public void testAggregate_passesThroughMessagesNotInIndex() {
+    LocalMessage indexed = newMessage("<a>", "Inbox", false, false);
+    LocalMessage unindexed = newMessage("<b>", "Inbox", false, false);
+
+    FolderIndex folderIndex = FolderIndex.build(ImmutableList.of(indexed).iterator());
+    List<LocalMessage> aggregated =
+        Lists.newArrayList(folderIndex.aggregate(ImmutableList.of(unindexed).iterator()));
+
+    assertThat(aggregated).containsExactly(unindexed);
+  }
+
+  @Test
+  public void testReleasesMessagesThatAreDoneWith() {
+    LocalMessage first = newMessage("<a>", "Inbox", false, false);
+    LocalMessage second = newMessage("<a>", "Work", false, false);
+    List<LocalMessage> messages = ImmutableList.of(first, second);
+
+    FolderIndex folderIndex = FolderIndex.build(messages.iterator());
+    verify(first).release();
+    verify(second).release();
+
+    List<LocalMessage> aggregated = Lists.newArrayList(folderIndex.aggregate(messages.iterator()));
+    verify(first).release();
+    verify(second, times(2)).release();
+
+    aggregated.get(0).release();
+    verify(first, times(2)).release();
+  }
+
+  private static LocalMessage newMessage(
+      String messageId, String folder, boolean starred, boolean unread) {
+    LocalMessage message = mock(LocalMessage.class);
+    when(message.getMessageId()).thenReturn(messageId);
+    when(message.getFolders()).thenReturn(ImmutableList.of(folder));
+    when(message.isStarred()).thenReturn(starred);
+    when(message.isUnread()).thenReturn(unread);
+    return message;
+  }
+}
@@ -17,10 +17,19 @@
 package to.lean.tools.gmail.importer.local;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import javax.mail.Folder;
 import javax.mail.MessagingException;
 import org.junit.Before;
@@ -77,6 +86,26 @@ public class JavaxMailStorageTest {
     assertThat(javaxMailStorage).hasSize(60);
   }
 
+  @Test
+  public void testStream_readsFoldersInParallel() throws Exception {
+    javaxMailFolder =
+        makeMockFolderWithMessages(
+            5,
+            makeMockFolderWithMessages(10),
+            makeMockFolderWithMessages(
+                15,
+                makeMockFolderWithMessages(
+                    6, makeMockFolderWithMessages(9), makeMockFolderWithMessages(3)),
+                makeMockFolderWithMessages(0, makeMockFolderWithMessages(5))),
+            makeMockFolderWithMessages(7));
+
+    javaxMailStorage = newJavaxMailStorage();
+
+    try (Stream<LocalMessage> messages = javaxMailStorage.stream(4)) {
+      assertThat(messages.count()).isEqualTo(60);
+    }
+  }
+
   @Test
   public void testIterator_pathologicalNoMessages() throws Exception {
     javaxMailFolder =
@@ -114,6 +143,126 @@ public class JavaxMailStorageTest {
     assertThat(javaxMailStorage.iterator().next()).isNotNull();
   }
 
+  @Test
+  public void testIterator_checkpoints() throws Exception {
+    JavaxMailFolder a1 = makeNamedMockFolderWithMessages("a/a1", 2);
+    JavaxMailFolder a = makeNamedMockFolderWithMessages("a", 1, a1);
+    javaxMailFolder = makeMockFolderWithMessages(1, a);
+
+    javaxMailStorage = newJavaxMailStorage();
+    CheckpointIterator iterator = javaxMailStorage.iterator();
+
+    assertThat(iterator.checkpoint()).isEqualTo(Checkpoint.start());
+    iterator.next();
+    assertThat(iterator.checkpoint()).isEqualTo(Checkpoint.create(ImmutableList.of(), 1));
+    iterator.next();
+    assertThat(iterator.checkpoint()).isEqualTo(Checkpoint.create(ImmutableList.of("a"), 1));
+    iterator.next();
+    iterator.next();
+    assertThat(iterator.checkpoint())
+        .isEqualTo(Checkpoint.create(ImmutableList.of("a", "a/a1"), 2));
+    assertThat(iterator.hasNext()).isFalse();
+  }
+
+  @Test
+  public void testIterator_resumeSkipsEarlierFoldersAndMessages() throws Exception {
+    JavaxMailFolder a1 = makeNamedMockFolderWithMessages("a/a1", 2);
+    JavaxMailFolder a = makeNamedMockFolderWithMessages("a", 3, a1);
+    JavaxMailFolder b = makeNamedMockFolderWithMessages("b", 4);
+    JavaxMailFolder skipped = makeNamedMockFolderWithMessages("0", 7);
+    javaxMailFolder = makeMockFolderWithMessages(2, skipped, a, b);
+
+    javaxMailStorage = newJavaxMailStorage();
+    CheckpointIterator iterator =
+        javaxMailStorage.iterator(Checkpoint.create(ImmutableList.of("a", "a/a1"), 1));
+
+    assertThat(ImmutableList.copyOf(iterator)).hasSize(5);
+    assertThat(iterator.checkpoint()).isEqualTo(Checkpoint.create(ImmutableList.of("b"), 4));
+    verify(javaxMailFolder, never()).getMessage(anyInt());
+    verify(a, never()).getMessage(anyInt());
+    verify(a1, never()).getMessage(1);
+    verify(skipped, never()).open(anyInt());
+    verify(skipped, never()).getMessage(anyInt());
+  }
+
+  @Test
+  public void testIterator_resumeFromMissingFolderReadsLaterFolders() throws Exception {
+    javaxMailFolder =
+        makeMockFolderWithMessages(
+            2, makeNamedMockFolderWithMessages("a", 3), makeNamedMockFolderWithMessages("b", 4));
+
+    javaxMailStorage = newJavaxMailStorage();
+
+    assertThat(
+            ImmutableList.copyOf(
+                javaxMailStorage.iterator(Checkpoint.create(ImmutableList.of("gone"), 1))))
+        .hasSize(7);
+  }
+
+  @Test
+  public void testIterator_closesFoldersOnceMessagesAreReleased() throws Exception {
+    AtomicInteger openFolders = new AtomicInteger();
+    JavaxMailFolder a = makeMockFolderWithMessages(2);
+    JavaxMailFolder b = makeMockFolderWithMessages(1);
+    trackOpenFolders(openFolders, a, b);
+    javaxMailFolder = makeMockFolderWithMessages(0, a, b);
+
+    javaxMailStorage = newJavaxMailStorage();
+    Iterator<LocalMessage> iterator = javaxMailStorage.iterator();
+    LocalMessage a1 = iterator.next();
+    LocalMessage a2 = iterator.next();
+    LocalMessage b1 = iterator.next();
+
+    assertThat(iterator.hasNext()).isFalse();
+    assertThat(openFolders.get()).isEqualTo(2);
+    a1.release();
+    a1.release();
+    assertThat(openFolders.get()).isEqualTo(2);
+    a2.release();
+    verify(a).close();
+    assertThat(openFolders.get()).isEqualTo(1);
+    b1.release();
+    verify(b).close();
+  }
+
+  @Test
+  public void testIterator_manyFoldersKeepsOpenFoldersBounded() throws Exception {
+    AtomicInteger openFolders = new AtomicInteger();
+    AtomicInteger maxOpenFolders = new AtomicInteger();
+    JavaxMailFolder[] folders = new JavaxMailFolder[2000];
+    for (int i = 0; i < folders.length; i++) {
+      folders[i] = makeMockFolderWithMessages(3);
+      trackOpenFolders(openFolders, folders[i]);
+      when(folders[i].getMessageCount())
+          .then(
+              invocation -> {
+                maxOpenFolders.accumulateAndGet(openFolders.get(), Math::max);
+                return 3;
+              });
+    }
+    javaxMailFolder = makeMockFolderWithMessages(0, folders);
+
+    javaxMailStorage =
+        new JavaxMailStorage(Logger.getLogger("test"), javaxMailFolder, 8) {
+          @Override
+          public LocalMessage createLocalMessage(JavaxMailMessage message) {
+            return mock(LocalMessage.class);
+          }
+        };
+
+    // None of the messages are released, as if every batch had failed to sync.
+    assertThat(javaxMailStorage).hasSize(6000);
+    assertThat(maxOpenFolders.get()).isAtMost(9);
+    assertThat(openFolders.get()).isAtMost(8);
+  }
+
+  private JavaxMailFolder makeNamedMockFolderWithMessages(
+      String fullName, int numMessages, JavaxMailFolder... folders) {
+    JavaxMailFolder javaxMailFolder = makeMockFolderWithMessages(numMessages, folders);
+    when(javaxMailFolder.getFullName()).thenReturn(fullName);
+    return javaxMailFolder;
+  }
+
   private JavaxMailFolder makeMockFolderWithMessages(int numMessages, JavaxMailFolder... folders) {
     JavaxMailFolder javaxMailFolder = mock(JavaxMailFolder.class);
 
@@ -129,6 +278,32 @@ public class JavaxMailStorageTest {
     return javaxMailFolder;
   }
 
+  /** Makes {@code folders} count how many of them are open. */
+  private static void trackOpenFolders(AtomicInteger openFolders, JavaxMailFolder... folders) {
+    for (JavaxMailFolder folder : folders) {
+      AtomicBoolean open = new AtomicBoolean();
+      doAnswer(
+              invocation -> {
+                if (!open.getAndSet(true)) {
+                  openFolders.incrementAndGet();
+                }
+                return null;
+              })
+          .when(folder)
+          .open(anyInt());
+      doAnswer(
+              invocation -> {
+                if (open.getAndSet(false)) {
+                  openFolders.decrementAndGet();
+                }
+                return null;
+              })
+          .when(folder)
+          .close();
+      when(folder.isOpen()).then(invocation -> open.get());
+    }
+  }
+
   private JavaxMailStorage newJavaxMailStorage() {
     return new JavaxMailStorage(Logger.getLogger("test"), javaxMailFolder) {
       @Override
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import javax.mail.Folder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OpenFoldersTest {
+
+  private final OpenFolders openFolders = new OpenFolders(Logger.getLogger("test"), 2);
+
+  @Test
+  public void testClosesFolderOnceReadAndReleased() {
+    JavaxMailFolder folder = newFolder();
+
+    OpenFolders.Handle handle = openFolders.open(folder);
+    openFolders.acquire(handle);
+    openFolders.acquire(handle);
+    openFolders.doneReading(handle);
+    openFolders.release(handle);
+
+    verify(folder).open(Folder.READ_ONLY);
+    assertThat(folder.isOpen()).isTrue();
+
+    openFolders.release(handle);
+
+    assertThat(folder.isOpen()).isFalse();
+    assertThat(openFolders.getOpenFolderCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testKeepsFolderOpenWhileReading() {
+    JavaxMailFolder folder = newFolder();
+
+    OpenFolders.Handle handle = openFolders.open(folder);
+    openFolders.acquire(handle);
+    openFolders.release(handle);
+
+    assertThat(folder.isOpen()).isTrue();
+  }
+
+  @Test
+  public void testClosesLeastRecentlyUsedFolderPastMaximum() {
+    JavaxMailFolder first = newFolder();
+    JavaxMailFolder second = newFolder();
+    JavaxMailFolder reading = newFolder();
+    JavaxMailFolder third = newFolder();
+
+    OpenFolders.Handle firstHandle = openFolders.open(first);
+    OpenFolders.Handle secondHandle = openFolders.open(second);
+    openFolders.open(reading);
+    openFolders.acquire(firstHandle);
+    openFolders.acquire(secondHandle);
+    openFolders.doneReading(secondHandle);
+    openFolders.doneReading(firstHandle);
+    // The first folder was used last, so the second is closed, but the one that is still being
+    // read stays open.
+    assertThat(second.isOpen()).isFalse();
+    assertThat(first.isOpen()).isTrue();
+
+    openFolders.open(third);
+
+    assertThat(first.isOpen()).isFalse();
+    assertThat(reading.isOpen()).isTrue();
+    assertThat(third.isOpen()).isTrue();
+    assertThat(openFolders.getOpenFolderCount()).isEqualTo(2);
+
+    // Releasing the messages of a folder that was closed early does nothing.
+    openFolders.release(firstHandle);
+    verify(first).close();
+  }
+
+  @Test
+  public void testLeavesOpenFoldersOpen() {
+    JavaxMailFolder folder = newFolder();
+    folder.open(Folder.READ_ONLY);
+
+    openFolders.open(folder);
+
+    verify(folder).open(anyInt());
+    verify(folder, never()).close();
+  }
+
+  /** Returns a folder that keeps track of whether it is open. */
+  private static JavaxMailFolder newFolder() {
+    JavaxMailFolder folder = mock(JavaxMailFolder.class);
+    AtomicBoolean open = new AtomicBoolean();
+    doAnswer(invocation -> open.getAndSet(true)).when(folder).open(anyInt());
+    doAnswer(invocation -> open.getAndSet(false)).when(folder).close();
+    when(folder.isOpen()).then(invocation -> open.get());
+    return folder;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelFolderTraversalTest {
+
+  /** Folders are named by their path, like {@code 1/2}, and folder {@code n} has n messages. */
+  private static final ParallelFolderTraversal.FolderReader<String> READER =
+      new ParallelFolderTraversal.FolderReader<String>() {
+        @Override
+        public List<String> listSubfolders(String folder) {
+          return folder.length() < 5
+              ? ImmutableList.of(folder + "/1", folder + "/2")
+              : ImmutableList.of();
+        }
+
+        @Override
+        public Iterator<LocalMessage> readMessages(String folder) {
+          List<LocalMessage> messages = new ArrayList<>();
+          for (int i = 0; i < folder.length(); i++) {
+            messages.add(newMessage(folder + "#" + i));
+          }
+          return messages.iterator();
+        }
+      };
+
+  @Test
+  public void testTraversal_readsAllFolders() {
+    try (ParallelFolderTraversal<String> traversal =
+        new ParallelFolderTraversal<>(ImmutableList.of("1", "2"), READER, 3)) {
+      List<String> messageIds = messageIds(Lists.newArrayList(traversal));
+
+      // Each root has 2 + 4 subfolders, with 3 and 5 messages each.
+      assertThat(messageIds).hasSize(2 * (1 + 2 * 3 + 4 * 5));
+      assertThat(messageIds).containsNoDuplicates();
+      assertThat(messageIds.stream().filter(id -> id.startsWith("1/2/1#")).toArray())
+          .asList()
+          .containsExactly("1/2/1#0", "1/2/1#1", "1/2/1#2", "1/2/1#3", "1/2/1#4")
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void testTraversal_smallQueue() {
+    try (ParallelFolderTraversal<String> traversal =
+        new ParallelFolderTraversal<>(ImmutableList.of("1"), READER, 4, 1)) {
+      assertThat(Lists.newArrayList(traversal)).hasSize(1 + 2 * 3 + 4 * 5);
+    }
+  }
+
+  @Test
+  public void testTraversal_noFolders() {
+    try (ParallelFolderTraversal<String> traversal =
+        new ParallelFolderTraversal<>(ImmutableList.of(), READER, 2)) {
+      assertThat(traversal.hasNext()).isFalse();
+    }
+  }
+
+  @Test
+  public void testTraversal_rethrowsFailure() {
+    IllegalStateException failure = new IllegalStateException("Broken folder");
+    ParallelFolderTraversal.FolderReader<String> reader =
+        new ParallelFolderTraversal.FolderReader<String>() {
+          @Override
+          public List<String> listSubfolders(String folder) {
+            return READER.listSubfolders(folder);
+          }
+
+          @Override
+          public Iterator<LocalMessage> readMessages(String folder) {
+            if (folder.equals("1/2/1")) {
+              throw failure;
+            }
+            return READER.readMessages(folder);
+          }
+        };
+
+    try (Stream<LocalMessage> messages =
+        ParallelFolderTraversal.stream(ImmutableList.of("1"), reader, 2)) {
+      messages.count();
+      fail("Expected the failure to be rethrown");
+    } catch (IllegalStateException e) {
+      assertThat(e).isSameInstanceAs(failure);
+    }
+  }
+
+  private static List<String> messageIds(List<LocalMessage> messages) {
+    return messages.stream().map(LocalMessage::getMessageId).collect(Collectors.toList());
+  }
+
+  private static LocalMessage newMessage(String messageId) {
+    LocalMessage message = mock(LocalMessage.class);
+    when(message.getMessageId()).thenReturn(messageId);
+    return message;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+@RunWith(JUnit4.class)
+public class MboxFileTest {
+
+  private static final int MESSAGE_COUNT = 50;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testGetMessage_randomAccess() throws Exception {
+    MboxFile mboxFile = MboxFile.open(writeMbox(), "Inbox");
+
+    assertThat(mboxFile.getMessageCount()).isEqualTo(MESSAGE_COUNT);
+    for (int i : new int[] {37, 0, MESSAGE_COUNT - 1, 12}) {
+      LocalMessage message = mboxFile.getMessage(i);
+      assertThat(message.getMessageId()).isEqualTo("<" + i + "@example.com>");
+      assertThat(message.getFolders()).containsExactly("Inbox");
+      assertThat(new String(message.getRawContent(), ISO_8859_1)).isEqualTo(message(i));
+    }
+  }
+
+  @Test
+  public void testGetMessage_smallSegments() throws Exception {
+    // Each segment holds a few messages, and the large ones get a segment of their own.
+    MboxFile mboxFile = MboxFile.open(writeMbox(), "Inbox", 1000);
+
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      LocalMessage message = mboxFile.getMessage(i);
+      try (InputStream stream = message.openRawStream()) {
+        assertThat(new String(ByteStreams.toByteArray(stream), ISO_8859_1)).isEqualTo(message(i));
+      }
+      assertThat(message.getRawLength()).isEqualTo(message(i).length());
+    }
+  }
+
+  @Test
+  public void testGetMessages_readsRangesInParallel() throws Exception {
+    MboxFile mboxFile = MboxFile.open(writeMbox(), "Inbox", 1000);
+
+    List<String> contents =
+        mboxFile.getMessages().parallelStream()
+            .map(message -> new String(message.getRawContent(), ISO_8859_1))
+            .collect(Collectors.toList());
+
+    assertThat(contents)
+        .containsExactlyElementsIn(
+            IntStream.range(0, MESSAGE_COUNT)
+                .mapToObj(MboxFileTest::message)
+                .collect(Collectors.toList()))
+        .inOrder();
+  }
+
+  @Test
+  public void testOpen_empty() throws Exception {
+    Path file = temporaryFolder.newFile("Trash").toPath();
+
+    MboxFile mboxFile = MboxFile.open(file, "Trash");
+
+    assertThat(mboxFile.getMessageCount()).isEqualTo(0);
+    assertThat(mboxFile.getMessages()).isEmpty();
+  }
+
+  private Path writeMbox() throws Exception {
+    StringBuilder mbox = new StringBuilder();
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      mbox.append("From - Sat Dec 20 12:00:00 2014\n").append(message(i)).append("\n");
+    }
+    Path file = temporaryFolder.newFile("Inbox").toPath();
+    Files.write(file, mbox.toString().getBytes(ISO_8859_1));
+    return file;
+  }
+
+  private static String message(int i) {
+    return "Message-ID: <"
+        + i
+        + "@example.com>\nFrom: sender@example.com\n\n"
+        + Strings.repeat("Message " + i + "\n", i % 7 == 0 ? 200 : 10);
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import to.lean.tools.gmail.importer.local.Checkpoint;
+import to.lean.tools.gmail.importer.local.CheckpointIterator;
+import to.lean.tools.gmail.importer.local.LocalMessage;
+
+@RunWith(JUnit4.class)
+public class MboxMailStorageTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = temporaryFolder.getRoot().toPath();
+    write("Inbox", mbox("<1>", "0001", "<2>", "0004"));
+    write("Inbox.msf", "// <!-- <mdb:mork:z v=\"1.4\"/> -->");
+    write("Inbox.sbd/Work", mbox("<3>", "0000"));
+    write("Inbox.sbd/Work.sbd/Client", mbox("<4>", "0000", "<5>", "0000"));
+    write("Trash", "");
+    write("filterlog.html", "<html></html>");
+    write("Snapshot@1", mbox("<6>", "0000"));
+  }
+
+  @Test
+  public void testGetFolders() throws Exception {
+    MboxMailStorage storage = new MboxMailStorage(Logger.getAnonymousLogger(), root);
+
+    assertThat(
+            storage.getFolders().stream().map(folder -> folder.name).collect(Collectors.toList()))
+        .containsExactly("Inbox", "Inbox/Work", "Inbox/Work/Client", "Trash")
+        .inOrder();
+    assertThat(storage.getFolders().get(2).path)
+        .containsExactly("Inbox", "Inbox/Work", "Inbox/Work/Client")
+        .inOrder();
+  }
+
+  @Test
+  public void testIterator() throws Exception {
+    MboxMailStorage storage = new MboxMailStorage(Logger.getAnonymousLogger(), root);
+
+    List<LocalMessage> messages = Lists.newArrayList(storage);
+
+    assertThat(messages.stream().map(LocalMessage::getMessageId).collect(Collectors.toList()))
+        .containsExactly("<1>", "<2>", "<3>", "<4>", "<5>")
+        .inOrder();
+    LocalMessage first = messages.get(0);
+    assertThat(first.getFolders()).containsExactly("Inbox");
+    assertThat(first.getFromHeader()).isEqualTo("sender@example.com");
+    assertThat(first.isUnread()).isFalse();
+    assertThat(first.isStarred()).isFalse();
+    assertThat(messages.get(1).isUnread()).isTrue();
+    assertThat(messages.get(1).isStarred()).isTrue();
+    assertThat(messages.get(3).getFolders()).containsExactly("Inbox/Work/Client");
+
+    String expected = message("<1>", "0001");
+    assertThat(new String(first.getRawContent(), ISO_8859_1)).isEqualTo(expected);
+    assertThat(first.getRawLength()).isEqualTo(expected.length());
+    try (InputStream stream = first.openRawStream()) {
+      assertThat(new String(ByteStreams.toByteArray(stream), ISO_8859_1)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void testIterator_resumesFromCheckpoint() throws Exception {
+    MboxMailStorage storage = new MboxMailStorage(Logger.getAnonymousLogger(), root);
+    CheckpointIterator iterator = storage.iterator();
+    for (int i = 0; i < 4; i++) {
+      iterator.next();
+    }
+    Checkpoint checkpoint = iterator.checkpoint();
+
+    assertThat(checkpoint)
+        .isEqualTo(
+            Checkpoint.create(ImmutableList.of("Inbox", "Inbox/Work", "Inbox/Work/Client"), 1));
+    List<LocalMessage> rest = Lists.newArrayList(storage.iterator(checkpoint));
+    assertThat(rest.stream().map(LocalMessage::getMessageId).collect(Collectors.toList()))
+        .containsExactly("<5>");
+  }
+
+  @Test
+  public void testStream_parallel() throws Exception {
+    MboxMailStorage storage = new MboxMailStorage(Logger.getAnonymousLogger(), root);
+
+    List<String> messageIds;
+    try (Stream<LocalMessage> messages = storage.stream(3)) {
+      messageIds = messages.map(LocalMessage::getMessageId).collect(Collectors.toList());
+    }
+
+    assertThat(messageIds).containsExactly("<1>", "<2>", "<3>", "<4>", "<5>");
+  }
+
+  private void write(String name, String content) throws IOException {
+    Path file = root.resolve(name);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(ISO_8859_1));
+  }
+
+  private static String mbox(String... idsAndStatuses) {
+    StringBuilder mbox = new StringBuilder();
+    for (int i = 0; i < idsAndStatuses.length; i += 2) {
+      mbox.append("From - Sat Dec 20 12:00:00 2014\n")
+          .append(message(idsAndStatuses[i], idsAndStatuses[i + 1]))
+          .append("\n");
+    }
+    return mbox.toString();
+  }
+
+  private static String message(String messageId, String status) {
+    return "Message-ID: "
+        + messageId
+        + "\nFrom: sender@example.com\nX-Mozilla-Status: "
+        + status
+        + "\n\nHi\n";
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 The Mail Importer Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.lean.tools.gmail.importer.local.thunderbird;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Strings;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MboxScannerTest {
+
+  @Test
+  public void testScan_findsHeadersAndOffsets() throws Exception {
+    String first =
+        "Message-ID: <one@example.com>\n"
+            + "From: Alice <alice@example.com>\n"
+            + "X-Mozilla-Status: 0005\n"
+            + "Subject: Hello\n"
+            + "\n"
+            + "Body\n"
+            + ">From the start of a line\n";
+    String second = "message-id:\n <two@example.com>\nfrom: bob@example.com\n\nBody\n";
+    String mbox = "From - Mon Jan 1 00:00:00 2015\n" + first + "\n" + "From \n" + second;
+
+    List<MboxEntry> entries = scan(mbox);
+
+    assertThat(entries).hasSize(2);
+    MboxEntry entry = entries.get(0);
+    assertThat(entry.getMessageId()).isEqualTo("<one@example.com>");
+    assertThat(entry.getFrom()).isEqualTo("Alice <alice@example.com>");
+    assertThat(entry.getStatus()).isEqualTo(5);
+    assertThat(content(mbox, entry)).isEqualTo(first);
+    entry = entries.get(1);
+    assertThat(entry.getMessageId()).isEqualTo("<two@example.com>");
+    assertThat(entry.getFrom()).isEqualTo("bob@example.com");
+    assertThat(entry.getStatus()).isEqualTo(0);
+    assertThat(content(mbox, entry)).isEqualTo(second);
+  }
+
+  @Test
+  public void testScan_crlf() throws Exception {
+    String message = "Message-ID: <one@example.com>\r\nX-Mozilla-Status: 0001\r\n\r\nBody\r\n";
+    String mbox = "From - \r\n" + message + "\r\nFrom - \r\n" + message;
+
+    List<MboxEntry> entries = scan(mbox);
+
+    assertThat(entries).hasSize(2);
+    assertThat(entries.get(0).getMessageId()).isEqualTo("<one@example.com>");
+    assertThat(entries.get(0).getStatus()).isEqualTo(1);
+    assertThat(content(mbox, entries.get(0))).isEqualTo(message);
+    assertThat(content(mbox, entries.get(1))).isEqualTo(message);
+  }
+
+  @Test
+  public void testScan_messagesLongerThanBuffer() throws Exception {
+    String longHeader = "X-Long: " + Strings.repeat("h", 100_000) + "\n";
+    String message =
+        longHeader + "Message-ID: <long@example.com>\n\n" + Strings.repeat("body\n", 100_000);
+    String mbox = "From \n" + message + "\nFrom \n" + message;
+
+    List<MboxEntry> entries = scan(mbox);
+
+    assertThat(entries).hasSize(2);
+    for (MboxEntry entry : entries) {
+      assertThat(entry.getMessageId()).isEqualTo("<long@example.com>");
+      assertThat(content(mbox, entry)).isEqualTo(message);
+    }
+  }
+
+  @Test
+  public void testScan_mozillaHeaders() throws Exception {
+    String message =
+        "Message-ID: <one@example.com>\n"
+            + "X-Mozilla-Status: 1003\n"
+            + "X-Mozilla-Status2: 10010000\n"
+            + "X-Mozilla-Keys: $label1 todo                              \n"
+            + "\n"
+            + "Body\n";
+    String blankKeys = "Message-ID: <two@example.com>\nX-Mozilla-Keys:          \n\nBody\n";
+    String mbox = "From \n" + message + "\nFrom \n" + blankKeys;
+
+    List<MboxEntry> entries = scan(mbox);
+
+    MessageHeaders headers = entries.get(0).getHeaders();
+    assertThat(headers.getStatus()).isEqualTo(0x1003);
+    assertThat(headers.getStatus2()).isEqualTo(0x10010000);
+    assertThat(headers.getKeys()).containsExactly("$label1", "todo").inOrder();
+    XMozillaStatus flags = headers.getFlags();
+    assertThat(flags.isRead()).isTrue();
+    assertThat(flags.isReplied()).isTrue();
+    assertThat(flags.isForwarded()).isTrue();
+    assertThat(flags.isNew()).isTrue();
+    assertThat(flags.hasAttachment()).isTrue();
+    assertThat(entries.get(1).getHeaders().getKeys()).isEmpty();
+  }
+
+  @Test
+  public void testScan_empty() throws Exception {
+    assertThat(scan("")).isEmpty();
+    assertThat(scan("Not an mbox file\n")).isEmpty();
+  }
+
+  private static List<MboxEntry> scan(String mbox) throws IOException {
+    return MboxScanner.scan(
+        Channels.newChannel(new ByteArrayInputStream(mbox.getBytes(ISO_8859_1))));
+  }
+
+  private static String content(String mbox, MboxEntry entry) {
+    return mbox.substring((int) entry.getOffset(), (int) (entry.getOffset() + entry.getLength()));
+  }
+}
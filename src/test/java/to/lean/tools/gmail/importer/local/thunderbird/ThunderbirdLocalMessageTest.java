@@ -18,14 +18,26 @@ package to.lean.tools.gmail.importer.local.thunderbird;
 
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.VerifyException;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Vector;
 import javax.mail.Folder;
+import javax.mail.Header;
 import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -46,8 +58,7 @@ public class ThunderbirdLocalMessageTest {
     MockitoAnnotations.initMocks(this);
 
     localMailMessage =
-        new ThunderbirdLocalMessage(
-            new JavaxMailMessage(message), s -> "*" + s + "*", new XMozillaStatusParser());
+        new ThunderbirdLocalMessage(new JavaxMailMessage(message), s -> "*" + s + "*");
 
     when(message.getFolder()).thenReturn(folder);
     when(folder.getFullName()).thenReturn("folder");
@@ -64,14 +75,14 @@ public class ThunderbirdLocalMessageTest {
 
   @Test
   public void testGetMessageId_normal() throws Exception {
-    when(message.getHeader("Message-ID")).thenReturn(new String[] {"<XYZ@pdq>"});
+    setHeader("Message-ID", "<XYZ@pdq>");
 
     assertWithMessage("messageId").that(localMailMessage.getMessageId()).isEqualTo("<XYZ@pdq>");
   }
 
   @Test
   public void testGetMessageId_missing() throws Exception {
-    when(message.getHeader("Message-ID")).thenReturn(new String[0]);
+    setHeader("Message-ID");
 
     try {
       localMailMessage.getMessageId();
@@ -83,7 +94,7 @@ public class ThunderbirdLocalMessageTest {
 
   @Test
   public void testGetMessageId_multiple() throws Exception {
-    when(message.getHeader("Message-ID")).thenReturn(new String[] {"<XYZ@pdq>", "<ABC@123>"});
+    setHeader("Message-ID", "<XYZ@pdq>", "<ABC@123>");
 
     try {
       localMailMessage.getMessageId();
@@ -95,14 +106,14 @@ public class ThunderbirdLocalMessageTest {
 
   @Test
   public void testGetFromHeader_normal() throws Exception {
-    when(message.getHeader("From")).thenReturn(new String[] {"<XYZ@pdq>"});
+    setHeader("From", "<XYZ@pdq>");
 
     assertWithMessage("from header").that(localMailMessage.getFromHeader()).isEqualTo("<XYZ@pdq>");
   }
 
   @Test
   public void testGetFromHeader_missing() throws Exception {
-    when(message.getHeader("From")).thenReturn(new String[0]);
+    setHeader("From");
 
     try {
       localMailMessage.getFromHeader();
@@ -114,7 +125,7 @@ public class ThunderbirdLocalMessageTest {
 
   @Test
   public void testGetFromHeader_multiple() throws Exception {
-    when(message.getHeader("From")).thenReturn(new String[] {"<XYZ@pdq>", "<ABC@123>"});
+    setHeader("From", "<XYZ@pdq>", "<ABC@123>");
 
     try {
       localMailMessage.getFromHeader();
@@ -124,6 +135,32 @@ public class ThunderbirdLocalMessageTest {
     }
   }
 
+  @Test
+  public void testGetMessageId_multipleFromHeaders() throws Exception {
+    Vector<Header> headers = new Vector<>();
+    headers.add(new Header("Message-ID", "<XYZ@pdq>"));
+    headers.add(new Header("From", "<XYZ@pdq>"));
+    headers.add(new Header("From", "<ABC@123>"));
+    headers.add(new Header("X-Mozilla-Status", "00000001"));
+    headers.add(new Header("X-Mozilla-Status", "00000000"));
+    when(message.getAllHeaders()).thenReturn(headers.elements());
+
+    assertWithMessage("messageId").that(localMailMessage.getMessageId()).isEqualTo("<XYZ@pdq>");
+    assertWithMessage("tags").that(localMailMessage.getTags()).isEmpty();
+    try {
+      localMailMessage.getFromHeader();
+      assertWithMessage("Should have thrown an exception").fail();
+    } catch (VerifyException expected) {
+      // OK!
+    }
+    try {
+      localMailMessage.isUnread();
+      assertWithMessage("Should have thrown an exception").fail();
+    } catch (VerifyException expected) {
+      // OK!
+    }
+  }
+
   @Test
   public void testGetFolders() throws Exception {
     assertWithMessage("folders").that(localMailMessage.getFolders()).containsExactly("*folder*");
@@ -136,27 +173,111 @@ public class ThunderbirdLocalMessageTest {
         .isEqualTo("BODY".getBytes(Charsets.UTF_8));
   }
 
+  @Test
+  public void testOpenRawStream_notMime() throws Exception {
+    try (InputStream rawStream = localMailMessage.openRawStream()) {
+      assertWithMessage("raw stream")
+          .that(ByteStreams.toByteArray(rawStream))
+          .isEqualTo("BODY".getBytes(Charsets.UTF_8));
+    }
+    assertWithMessage("raw length").that(localMailMessage.getRawLength()).isEqualTo(-1);
+  }
+
+  @Test
+  public void testOpenRawStream_mime() throws Exception {
+    byte[] rawContent =
+        ("Message-ID: <XYZ@pdq>\r\n"
+                + "Subject: Hello\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "\r\n"
+                + "Qk9EWQ==\r\n")
+            .getBytes(Charsets.US_ASCII);
+    MimeMessage mimeMessage =
+        new MimeMessage(
+            Session.getInstance(new Properties()), new ByteArrayInputStream(rawContent));
+    ThunderbirdLocalMessage mimeLocalMessage =
+        new ThunderbirdLocalMessage(new JavaxMailMessage(mimeMessage), s -> s);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    mimeMessage.writeTo(written);
+
+    for (int i = 0; i < 2; i++) {
+      try (InputStream rawStream = mimeLocalMessage.openRawStream()) {
+        assertWithMessage("raw stream %s", i)
+            .that(ByteStreams.toByteArray(rawStream))
+            .isEqualTo(written.toByteArray());
+      }
+    }
+    assertWithMessage("raw length").that(mimeLocalMessage.getRawLength()).isEqualTo(-1);
+    assertWithMessage("messageId").that(mimeLocalMessage.getMessageId()).isEqualTo("<XYZ@pdq>");
+  }
+
+  @Test
+  public void testHeadersAreReadOnce() throws Exception {
+    Vector<Header> headers = new Vector<>();
+    headers.add(new Header("message-id", "<XYZ@pdq>"));
+    headers.add(new Header("From", "<ABC@123>"));
+    headers.add(new Header("X-Mozilla-Status", "0005"));
+    when(message.getAllHeaders()).thenReturn(headers.elements());
+
+    for (int i = 0; i < 3; i++) {
+      assertWithMessage("messageId").that(localMailMessage.getMessageId()).isEqualTo("<XYZ@pdq>");
+      assertWithMessage("from header")
+          .that(localMailMessage.getFromHeader())
+          .isEqualTo("<ABC@123>");
+      assertWithMessage("is unread").that(localMailMessage.isUnread()).isFalse();
+      assertWithMessage("is starred").that(localMailMessage.isStarred()).isTrue();
+    }
+    verify(message).getAllHeaders();
+    verify(message, never()).getHeader(anyString());
+  }
+
   @Test
   public void testIsUnread_true() throws Exception {
-    when(message.getHeader("X-Mozilla-Status")).thenReturn(new String[] {"00000000"});
+    setHeader("X-Mozilla-Status", "00000000");
     assertWithMessage("is unread").that(localMailMessage.isUnread()).isEqualTo(true);
   }
 
   @Test
   public void testIsUnread_false() throws Exception {
-    when(message.getHeader("X-Mozilla-Status")).thenReturn(new String[] {"00000001"});
+    setHeader("X-Mozilla-Status", "00000001");
     assertWithMessage("is unread").that(localMailMessage.isUnread()).isEqualTo(false);
   }
 
   @Test
   public void testIsStarred_true() throws Exception {
-    when(message.getHeader("X-Mozilla-Status")).thenReturn(new String[] {"00000004"});
+    setHeader("X-Mozilla-Status", "00000004");
     assertWithMessage("is starred").that(localMailMessage.isStarred()).isEqualTo(true);
   }
 
   @Test
   public void testIsStarred_false() throws Exception {
-    when(message.getHeader("X-Mozilla-Status")).thenReturn(new String[] {"00000000"});
+    setHeader("X-Mozilla-Status", "00000000");
     assertWithMessage("is starred").that(localMailMessage.isStarred()).isEqualTo(false);
   }
+
+  @Test
+  public void testGetTags() throws Exception {
+    Vector<Header> headers = new Vector<>();
+    headers.add(new Header("X-Mozilla-Status2", "04000000"));
+    headers.add(new Header("X-Mozilla-Keys", "$label1 client-x $Forwarded NonJunk"));
+    when(message.getAllHeaders()).thenReturn(headers.elements());
+
+    assertWithMessage("tags")
+        .that(localMailMessage.getTags())
+        .containsExactly("Work", "Important", "client-x");
+  }
+
+  @Test
+  public void testGetTags_none() throws Exception {
+    setHeader("X-Mozilla-Status", "00000001");
+    assertWithMessage("tags").that(localMailMessage.getTags()).isEmpty();
+  }
+
+  private void setHeader(String name, String... values) throws Exception {
+    Vector<Header> headers = new Vector<>();
+    for (String value : values) {
+      headers.add(new Header(name, value));
+    }
+    when(message.getAllHeaders()).thenReturn(headers.elements());
+  }
 }
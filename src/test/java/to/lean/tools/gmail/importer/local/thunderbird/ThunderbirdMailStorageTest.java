@@ -17,23 +17,35 @@
 package to.lean.tools.gmail.importer.local.thunderbird;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import to.lean.tools.gmail.importer.local.JavaxMailFolder;
 import to.lean.tools.gmail.importer.local.JavaxMailMessage;
+import to.lean.tools.gmail.importer.local.LocalMessage;
 
 @RunWith(JUnit4.class)
 public class ThunderbirdMailStorageTest {
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Mock private JavaxMailFolder rootFolder;
   private ThunderbirdMailStorage mailStorage;
 
@@ -41,9 +53,7 @@ public class ThunderbirdMailStorageTest {
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
 
-    mailStorage =
-        new ThunderbirdMailStorage(
-            Logger.getAnonymousLogger(), rootFolder, new XMozillaStatusParser());
+    mailStorage = new ThunderbirdMailStorage(Logger.getAnonymousLogger(), rootFolder, 32);
   }
 
   @Test
@@ -71,6 +81,32 @@ public class ThunderbirdMailStorageTest {
     assertThat(localMessage.getFolders()).containsExactlyElementsIn(ImmutableList.of("xyz/pdq"));
   }
 
+  @Test
+  public void testStreamHeaders_scansMailDirectory() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath();
+    Path work = directory.resolve("Inbox.sbd/Work");
+    Files.createDirectories(work.getParent());
+    Files.write(
+        work,
+        ("From - Sat Dec 20 12:00:00 2014\n"
+                + "Message-ID: <1@b>\nFrom: sender@example.com\nX-Mozilla-Status: 0001\n\nHi\n")
+            .getBytes(ISO_8859_1));
+    Files.write(directory.resolve("Inbox"), new byte[0]);
+    mailStorage =
+        new ThunderbirdMailStorage(Logger.getAnonymousLogger(), rootFolder, 32, directory);
+
+    List<LocalMessage> messages;
+    try (Stream<LocalMessage> stream = mailStorage.streamHeaders(1)) {
+      messages = stream.collect(Collectors.toList());
+    }
+
+    assertThat(messages).hasSize(1);
+    assertThat(messages.get(0).getMessageId()).isEqualTo("<1@b>");
+    assertThat(messages.get(0).getFolders()).containsExactly("Inbox/Work");
+    assertThat(messages.get(0).isUnread()).isFalse();
+    verifyNoInteractions(rootFolder);
+  }
+
   private JavaxMailFolder makeFolder(String name) {
     JavaxMailFolder folder = mock(JavaxMailFolder.class);
     when(folder.getFullName()).thenReturn(name);
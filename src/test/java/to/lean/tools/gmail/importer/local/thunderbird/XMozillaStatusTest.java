@@ -18,6 +18,7 @@ package to.lean.tools.gmail.importer.local.thunderbird;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -67,6 +68,54 @@ public class XMozillaStatusTest {
     assertWithMessage("isMarked").that(status.isRead()).isTrue();
   }
 
+  @Test
+  public void testStatus2() throws Exception {
+    JavaxMailMessage message = mock(JavaxMailMessage.class);
+    when(message.getHeader("X-Mozilla-Status")).thenReturn(new String[] {"1002"});
+    when(message.getHeader("X-Mozilla-Status2")).thenReturn(new String[] {"1b000000"});
+
+    XMozillaStatus status = xMozillaStatusParser.parse(message);
+
+    assertWithMessage("isRead").that(status.isRead()).isFalse();
+    assertWithMessage("isReplied").that(status.isReplied()).isTrue();
+    assertWithMessage("isForwarded").that(status.isForwarded()).isTrue();
+    assertWithMessage("isTemplate").that(status.isTemplate()).isTrue();
+    assertWithMessage("hasAttachment").that(status.hasAttachment()).isTrue();
+    assertWithMessage("label").that(status.getLabel()).isEqualTo(5);
+    assertWithMessage("isNew").that(status.isNew()).isFalse();
+  }
+
+  @Test
+  public void testStatusesAreInterned() throws Exception {
+    assertThat(statusForHeader("0005")).isSameInstanceAs(statusForHeader("0005"));
+    // Flags that aren't kept don't make a difference.
+    assertThat(XMozillaStatus.of(0x0205, 0x00400000)).isSameInstanceAs(XMozillaStatus.of(5, 0));
+    assertThat(XMozillaStatus.of(5, 0)).isNotSameInstanceAs(XMozillaStatus.of(1, 0));
+    for (int label = 0; label < 8; label++) {
+      assertThat(XMozillaStatus.of(0, label << 25).getLabel()).isEqualTo(label);
+    }
+  }
+
+  @Test
+  public void testParseValue() throws Exception {
+    assertThat(XMozillaStatusParser.parseValue(" 00a1 ", 0, 6)).isEqualTo(0xa1);
+    assertThat(XMozillaStatusParser.parseValue("x:0001", 2, 6)).isEqualTo(1);
+    assertThat(XMozillaStatusParser.parseValue("FFFFFFFF", 0, 8)).isEqualTo(0xFFFFFFFF);
+    assertThat(XMozillaStatusParser.parseValue("", 0, 0)).isEqualTo(0);
+    assertThat(XMozillaStatusParser.parseValue("00 01", 0, 5)).isEqualTo(0);
+    assertThat(XMozillaStatusParser.parseValue("1000000000", 0, 10)).isEqualTo(0);
+    assertThat(XMozillaStatusParser.parseValue("zz", 0, 2)).isEqualTo(0);
+    byte[] line = "x-mozilla-status: 8001\r".getBytes(US_ASCII);
+    assertThat(XMozillaStatusParser.parseValue(line, 17, line.length)).isEqualTo(0x8001);
+  }
+
+  @Test
+  public void testParseKeys() throws Exception {
+    assertThat(XMozillaStatusParser.parseKeys("                ")).isEmpty();
+    assertThat(XMozillaStatusParser.parseKeys(" $label2  later "))
+        .containsExactly("$label2", "later");
+  }
+
   private XMozillaStatus statusForHeader(String... headers) {
     JavaxMailMessage message = mock(JavaxMailMessage.class);
     when(message.getHeader("X-Mozilla-Status")).thenReturn(headers);